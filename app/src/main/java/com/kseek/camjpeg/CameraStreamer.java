@@ -16,21 +16,31 @@
 package com.kseek.camjpeg;
 
 import android.graphics.ImageFormat;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.Camera;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
-import android.os.SystemClock;
 import android.util.Log;
 import android.view.SurfaceHolder;
 
+import com.kseek.camjpeg.codec.FrameEncoder;
+import com.kseek.camjpeg.codec.JpegEncoder;
+import com.kseek.camjpeg.codec.Nv21Scaler;
+import com.kseek.camjpeg.codec.TileFingerprint;
+import com.kseek.camjpeg.metrics.EwmaRate;
+import com.kseek.camjpeg.metrics.StreamMetrics;
+import com.kseek.camjpeg.net.http.ChunkedOutputStream;
+import com.kseek.camjpeg.net.http.FrameChannel;
+import com.kseek.camjpeg.net.http.JpegFrame;
 import com.kseek.camjpeg.net.http.MJpegHttpStreamer;
+import com.kseek.camjpeg.record.PreEventBuffer;
+import com.kseek.camjpeg.record.SegmentArchive;
+import com.kseek.camjpeg.record.SegmentedRecorder;
 import com.kseek.camjpeg.utils.Utilities;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
@@ -44,24 +54,41 @@ final class CameraStreamer extends Object
     private static final String TAG = CameraStreamer.class.getSimpleName();
 
     private static final int MESSAGE_TRY_START_STREAMING = 0;
-    private static final int MESSAGE_SEND_PREVIEW_FRAME = 1;
+
+    /** More encoders than this only cost memory, one frame slot and preview buffer each. */
+    private static final int MAX_ENCODERS = 4;
 
     private static final long OPEN_CAMERA_POLL_INTERVAL_MS = 1000L;
 
+    private static final long BITRATE_WINDOW_NANOS = 1000L * 1000L * 1000L;
+
     private final Object lock = new Object();
-    private final MovingAverage averageSpf = new MovingAverage(50); /* numValues */
 
     private final int cameraIndex;
     private final int httpPort;
     private final int previewSizeIndex;
     private final int jpegQuality;
+    private final int targetBitrate;
+    private final int minQuality;
+    private final int maxQuality;
+    private final int previewBuffers;
+    private final boolean useJavaEncoder;
+    private final boolean motionGating;
+    private final int keepAliveSeconds;
+    private final boolean skipUnchanged;
+    private final File recordingDirectory;
+    private final int recordingMegabytes;
+    private final int recordingHours;
+    private final boolean eventRecording;
+    private final int preEventSeconds;
+    private final int postEventSeconds;
+    private final int preEventMegabytes;
 
     private StreamCameraActivity mainActivity;
     private SurfaceHolder previewDisplay;
-    private Looper looper = null;
-    private Handler workHandler = null;
+    private Looper captureLooper = null;
+    private Handler captureHandler = null;
     private Camera camera = null;
-    private Rect previewRect = null;
     //private int width = Integer.MIN_VALUE;
     //private int height = Integer.MIN_VALUE;
 
@@ -71,8 +98,20 @@ final class CameraStreamer extends Object
     private boolean useFlashLight;
     private boolean running = false;
 
-    private MemoryOutputStream jpegOutputStream = null;
+    private EncoderPool encoderPool = null;
+    private SegmentedRecorder recorder = null;
+    private EncodeJob[] encodeJobs = null;
+    // One per encoder worker.
+    private FrameEncoder[] frameEncoders = null;
+    // Per worker, room for a downscaled rendition, null if frames are not scaled.
+    private byte[][] scaledFrames = null;
     private MJpegHttpStreamer jpegHttpStreamer = null;
+    private StreamMetrics metrics = null;
+    private PreviewBufferPool previewBufferPool = null;
+    // Bytes encoded per second, all renditions together.
+    private EwmaRate encodedBytes = null;
+    // Null unless motion gating or event recording is on and the preview is NV21.
+    private MotionGate motionGate = null;
 
     private int previewBufferSize = Integer.MIN_VALUE;
     private int previewFormat = Integer.MIN_VALUE;
@@ -80,13 +119,27 @@ final class CameraStreamer extends Object
     private int previewHeight = Integer.MIN_VALUE;
 
     private long numFrames = 0L;
-    private long lastTimestamp = Long.MIN_VALUE;
 
     public CameraStreamer(final int cameraIndex,
                           final boolean useFlashLight,
                           final int httpPort,
                           final int previewSizeIndex,
                           final int jpegQuality,
+                          final int targetBitrate,
+                          final int minQuality,
+                          final int maxQuality,
+                          final int previewBuffers,
+                          final boolean useJavaEncoder,
+                          final boolean motionGating,
+                          final int keepAliveSeconds,
+                          final boolean skipUnchanged,
+                          final File recordingDirectory,
+                          final int recordingMegabytes,
+                          final int recordingHours,
+                          final boolean eventRecording,
+                          final int preEventSeconds,
+                          final int postEventSeconds,
+                          final int preEventMegabytes,
                           final SurfaceHolder previewDisplay,
                           final Utilities.Sized prefSize,
                           final Utilities.Sized screenSize,
@@ -103,6 +156,21 @@ final class CameraStreamer extends Object
         this.httpPort = httpPort;
         this.previewSizeIndex = previewSizeIndex;
         this.jpegQuality = jpegQuality;
+        this.targetBitrate = targetBitrate;
+        this.minQuality = minQuality;
+        this.maxQuality = maxQuality;
+        this.previewBuffers = previewBuffers;
+        this.useJavaEncoder = useJavaEncoder;
+        this.motionGating = motionGating;
+        this.keepAliveSeconds = keepAliveSeconds;
+        this.skipUnchanged = skipUnchanged;
+        this.recordingDirectory = recordingDirectory;
+        this.recordingMegabytes = recordingMegabytes;
+        this.recordingHours = recordingHours;
+        this.eventRecording = eventRecording;
+        this.preEventSeconds = preEventSeconds;
+        this.postEventSeconds = postEventSeconds;
+        this.preEventMegabytes = preEventMegabytes;
         this.previewDisplay = previewDisplay;
         this.prefSize = prefSize;
         this.screenSize = screenSize;
@@ -124,10 +192,6 @@ final class CameraStreamer extends Object
                     case MESSAGE_TRY_START_STREAMING:
                         tryStartStreaming();
 
-                        break;
-                    case MESSAGE_SEND_PREVIEW_FRAME:
-                        final Object[] args = (Object[]) message.obj;
-                        sendPreviewFrame((byte[]) args[0], (Camera) args[1], (Long) args[2]);
                         break;
                     default:
                         throw new IllegalArgumentException("cannot handle message");
@@ -147,12 +211,15 @@ final class CameraStreamer extends Object
             running = true;
         }
 
-        final HandlerThread worker = new HandlerThread(TAG, Process.THREAD_PRIORITY_MORE_FAVORABLE);
-        worker.setDaemon(true);
-        worker.start();
-        looper = worker.getLooper();
-        workHandler = new WorkHandler(looper);
-        workHandler.obtainMessage(MESSAGE_TRY_START_STREAMING).sendToTarget();
+        // The camera is opened on the capture thread, so that is where its
+        // preview callbacks arrive; they hand frames to the encoder pool.
+        final HandlerThread capture = new HandlerThread(TAG + "-capture",
+                Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        capture.setDaemon(true);
+        capture.start();
+        captureLooper = capture.getLooper();
+        captureHandler = new WorkHandler(captureLooper);
+        captureHandler.obtainMessage(MESSAGE_TRY_START_STREAMING).sendToTarget();
     }
 
     /**
@@ -168,6 +235,12 @@ final class CameraStreamer extends Object
             }
 
             running = false;
+            if (encoderPool != null) {
+                encoderPool.stop();
+            }
+            if (recorder != null) {
+                recorder.stop();
+            }
             if (jpegHttpStreamer != null) {
                 jpegHttpStreamer.stop();
             }
@@ -176,7 +249,21 @@ final class CameraStreamer extends Object
                 camera = null;
             }
         }
-        looper.quit();
+        captureLooper.quit();
+    }
+
+    /**
+     * Records the seconds before and after now, when recording around
+     * events; motion and the HTTP trigger route do the same. Callable from
+     * any thread.
+     */
+    public void triggerEvent()
+    {
+        synchronized (lock) {
+            if (recorder != null) {
+                recorder.trigger();
+            }
+        }
     }
 
     private void tryStartStreaming() throws InterruptedException
@@ -264,19 +351,114 @@ final class CameraStreamer extends Object
         // However, this returned an error saying it was too small. It always needed to be
         // exactly 1.5 times larger.
         previewBufferSize = previewWidth * previewHeight * bytesPerPixel * 3 / 2;
-        rawCamera.addCallbackBuffer(new byte[previewBufferSize]);
 
-        previewRect = new Rect(0, 0, previewWidth, previewHeight);
-        rawCamera.setPreviewCallbackWithBuffer(previewCallback);
+        // Frames are compressed on up to one worker per core. Each in-flight
+        // frame holds a preview buffer and a frame slot, so both are sized to
+        // keep every worker busy and the camera supplied.
+        final int encoders = Math.min(Runtime.getRuntime().availableProcessors(), MAX_ENCODERS);
+
+        // An encoder usually holds one slot, two when a thumbnail is also wanted.
+        // A compressed frame is taken to be no bigger than the uncompressed
+        // one, which bounds the chunks the slots may take between them;
+        // they are only allocated as frames need them.
+        final MJpegHttpStreamer streamer = new MJpegHttpStreamer(httpPort, previewBufferSize,
+                MJpegHttpStreamer.DEFAULT_FRAME_SLOTS + 2 * encoders);
+
+        // Renditions are cropped and scaled down from the NV21 preview before
+        // encoding, one at a time, so the largest, the half size frame, fits
+        // every one. Other preview formats are only cropped.
+        scaledFrames = new byte[encoders][];
+        if (previewFormat == ImageFormat.NV21) {
+            for (int i = 0; i < encoders; i++) {
+                scaledFrames[i] = new byte[Nv21Scaler.frameBytes(
+                        Nv21Scaler.scaledSize(previewWidth, 2),
+                        Nv21Scaler.scaledSize(previewHeight, 2))];
+            }
+        }
+
+        // Several callback buffers let the camera capture the next frames while
+        // the encoders still work on the previous ones: one per encoder, one
+        // waiting for an encoder and one left with the camera.
+        final PreviewBufferPool pool = new PreviewBufferPool(
+                Math.max(previewBuffers, encoders + 2), previewBufferSize, streamer.getMetrics());
+        final byte[][] buffers = pool.getBuffers();
+
+        // The Java encoder only reads NV21, the default preview format.
+        final boolean javaEncoder = useJavaEncoder && previewFormat == ImageFormat.NV21;
+        frameEncoders = new FrameEncoder[encoders];
+        for (int i = 0; i < encoders; i++) {
+            frameEncoders[i] = javaEncoder
+                    ? new JpegEncoder()
+                    : new YuvImageEncoder(previewFormat,
+                            buffers.length + MJpegHttpStreamer.MAX_CHANNELS);
+        }
+
+        encodeJobs = new EncodeJob[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            encodeJobs[i] = new EncodeJob(buffers[i]);
+            rawCamera.addCallbackBuffer(buffers[i]);
+        }
+        previewBufferPool = pool;
+        metrics = streamer.getMetrics();
+        encodedBytes = new EwmaRate(BITRATE_WINDOW_NANOS);
+        // Each rendition's quality starts out the same.
+        metrics.getJpegQuality().set(newQualityController().getQuality());
+        // Motion is found in the luma plane, which leads an NV21 frame.
+        // Event recording watches for motion without gating the frame rate.
+        final boolean recordEvents = recordingDirectory != null && eventRecording;
+        motionGate = (motionGating || recordEvents) && previewFormat == ImageFormat.NV21
+                ? new MotionGate(previewWidth, previewHeight, motionGating, keepAliveSeconds,
+                        metrics)
+                : null;
+        if (skipUnchanged && previewFormat == ImageFormat.NV21) {
+            for (final EncodeJob job : encodeJobs) {
+                job.fingerprint = new TileFingerprint(previewWidth, previewHeight);
+            }
+        }
 
-        // We assumed that the compressed image will be no bigger than the uncompressed image.
-        jpegOutputStream = new MemoryOutputStream(previewBufferSize);
+        // The window is the number of workers: a frame is never queued
+        // behind a busy encoder, only the newest one waits for the next.
+        final EncoderPool encoding = new EncoderPool(TAG, encoders, encoders);
+
+        // The recorder keeps the full size frames, which makes them wanted
+        // whether anybody watches or not. Recording around events, the
+        // frames in between are held in memory only.
+        final SegmentedRecorder recording = recordingDirectory == null
+                ? null
+                : new SegmentedRecorder(recordingDirectory,
+                        SegmentedRecorder.DEFAULT_SEGMENT_SECONDS,
+                        recordingMegabytes * 1024L * 1024L,
+                        recordingHours * 60L * 60L,
+                        recordEvents
+                                ? new PreEventBuffer(preEventMegabytes, preEventSeconds)
+                                : null,
+                        postEventSeconds,
+                        metrics);
+
+        rawCamera.setPreviewCallbackWithBuffer(previewCallback);
 
-        final MJpegHttpStreamer streamer = new MJpegHttpStreamer(httpPort, previewBufferSize);
         streamer.start();
+        encoding.start();
+        if (recording != null) {
+            recording.start();
+            streamer.addFrameListener(streamer.getChannels().get(0), recording);
+            streamer.setFrameArchive(new SegmentArchive(recording.getSegments()));
+            if (recording.isEventTriggered()) {
+                streamer.setEventTrigger(new Runnable() {
+                    @Override
+                    public void run() {
+                        recording.trigger();
+                    }
+                });
+            }
+        }
 
         synchronized (lock) {
             if (!running) {
+                encoding.stop();
+                if (recording != null) {
+                    recording.stop();
+                }
                 streamer.stop();
                 rawCamera.release();
                 return;
@@ -285,12 +467,18 @@ final class CameraStreamer extends Object
             try {
                 rawCamera.setPreviewDisplay(previewDisplay);
             } catch (final IOException e) {
+                encoding.stop();
+                if (recording != null) {
+                    recording.stop();
+                }
                 streamer.stop();
                 rawCamera.release();
                 throw e;
             }
 
             jpegHttpStreamer = streamer;
+            encoderPool = encoding;
+            recorder = recording;
             rawCamera.startPreview();
             camera = rawCamera;
         }
@@ -349,44 +537,351 @@ final class CameraStreamer extends Object
         @Override
         public void onPreviewFrame(final byte[] data, final Camera camera)
         {
-            final Long timestamp = SystemClock.elapsedRealtime();
-            final Message message = workHandler.obtainMessage();
-            message.what = MESSAGE_SEND_PREVIEW_FRAME;
-            message.obj = new Object[]{data, camera, timestamp};
-            message.sendToTarget();
+            final long captureNanos = System.nanoTime();
+            metrics.getFramesCaptured().increment();
+            metrics.getCaptureRate().record(captureNanos);
+
+            // While the scene is static only a keep-alive frame now and then goes on.
+            if (motionGate != null && !motionGate.admit(data, captureNanos)) {
+                metrics.getFramesStatic().increment();
+                camera.addCallbackBuffer(data);
+                return;
+            }
+            // Every moving frame extends the event, the recorder ignores the rest.
+            if (recorder != null && motionGate != null && motionGate.isMoving()) {
+                recorder.trigger();
+            }
+
+            // Keep a buffer queued with the camera, whatever the encoders are
+            // doing. Checked before taking any demand, so that a frame dropped
+            // here does not use up a paced viewer's slot: the next one it gets.
+            if (!previewBufferPool.tryHold()) {
+                metrics.getFramesDropped().increment();
+                camera.addCallbackBuffer(data);
+                return;
+            }
+
+            // Only encode the renditions viewers ask for: nothing while nobody
+            // watches. Crops come and go with their viewers, so the channels
+            // are looked up again for every frame.
+            final EncodeJob job = encodeJobFor(data);
+            final List<FrameChannel> channels = jpegHttpStreamer.getChannels();
+            job.wantedCount = 0;
+            for (int c = 0; c < channels.size(); c++) {
+                final FrameChannel channel = channels.get(c);
+                if (channel.takeFrameDemand(captureNanos)) {
+                    job.states[job.wantedCount] = stateOf(channel);
+                    job.wanted[job.wantedCount++] = channel;
+                }
+            }
+            if (job.wantedCount == 0) {
+                metrics.getFramesSkipped().increment();
+                camera.addCallbackBuffer(data);
+                previewBufferPool.release();
+                return;
+            }
+
+            // A rendition that would come out the same as the one the viewers
+            // have is not encoded again, the streamer just refreshes it.
+            if (job.fingerprint != null) {
+                job.fingerprint.compute(data);
+                for (int c = 0; c < job.wantedCount; c++) {
+                    matchReference(job, c);
+                }
+            }
+
+            job.camera = camera;
+            // The one clock of live parts, recordings and replay requests.
+            job.timestamp = System.currentTimeMillis();
+            job.captureNanos = captureNanos;
+            // Latest wins: if every encoder is busy the frame waits for the
+            // next free one, superseding any older frame still waiting.
+            final EncodeJob superseded = (EncodeJob) encoderPool.submit(job);
+            if (superseded != null) {
+                metrics.getFramesCoalesced().increment();
+                superseded.releaseReferences();
+                superseded.clearWanted();
+                returnPreviewBuffer(superseded.data, superseded.camera);
+            }
         }
     };
 
-    private void sendPreviewFrame(final byte[] data, final Camera camera, final long timestamp)
+    /** Starts from the configured quality, then holds the target bitrate. */
+    private QualityController newQualityController()
+    {
+        return new QualityController(jpegQuality, targetBitrate * 1000L, minQuality, maxQuality);
+    }
+
+    /** The encoder's state of the channel, attached to it on the first frame it wants. */
+    private ChannelState stateOf(final FrameChannel channel)
+    {
+        ChannelState state = (ChannelState) channel.attachment();
+        if (state == null) {
+            state = new ChannelState(newQualityController(),
+                    skipUnchanged && previewFormat == ImageFormat.NV21
+                            ? new TileFingerprint(previewWidth, previewHeight)
+                            : null);
+            channel.attach(state);
+        }
+        return state;
+    }
+
+    /**
+     * Compares the frame with the one the channel's latest JPEG was encoded
+     * from and marks the job's rendition as a repeat if they match. A frame
+     * is only compared while no other frame is being encoded for the
+     * channel: that one may yet replace the latest JPEG, or never make it.
+     */
+    private void matchReference(final EncodeJob job, final int index)
+    {
+        final FrameChannel channel = job.wanted[index];
+        final ChannelState state = job.states[index];
+        synchronized (state) {
+            job.repeats[index] = state.encoding == 0
+                    && state.published.matches(job.fingerprint,
+                            TileFingerprint.DEFAULT_TOLERANCE, channel.getLeft(),
+                            channel.getTop(), channel.getWidth(), channel.getHeight());
+            if (!job.repeats[index]) {
+                state.encoding++;
+            }
+        }
+    }
+
+    /**
+     * What the encoder keeps per channel: the quality of its rendition, and
+     * unless unchanged frames are encoded anyway, what its latest JPEG was
+     * encoded from and how many frames are being encoded for it. Shared by
+     * the preview callback and the completions, which hold its lock for
+     * the latter two.
+     */
+    private static final class ChannelState
+    {
+        private final QualityController quality;
+        private final TileFingerprint published;
+        private int encoding = 0;
+
+        private ChannelState(final QualityController quality, final TileFingerprint published)
+        {
+            super();
+            this.quality = quality;
+            this.published = published;
+        }
+    }
+
+    private EncodeJob encodeJobFor(final byte[] data)
+    {
+        for (final EncodeJob job : encodeJobs) {
+            if (job.data == data) {
+                return job;
+            }
+        }
+        throw new IllegalStateException("unknown preview buffer");
+    }
+
+    private void returnPreviewBuffer(final byte[] data, final Camera camera)
+    {
+        // Hand the buffer back to the camera unless it was released in the
+        // meantime; addCallbackBuffer may be called from any thread.
+        synchronized (lock) {
+            if (this.camera == camera) {
+                camera.addCallbackBuffer(data);
+            }
+        }
+        previewBufferPool.release();
+    }
+
+    private void updateFrameRate(final boolean encoded, final long captureNanos)
     {
-        // Calculate the timestamp
-        final long MILLI_PER_SECOND = 1000L;
-        final long timestampSeconds = timestamp / MILLI_PER_SECOND;
+        // Measured on the capture times, which are nanosecond accurate and
+        // in order here, not on the millisecond frame timestamps.
+        if (encoded) {
+            metrics.getEncodeRate().record(captureNanos);
+        }
 
-        // Update and log the frame rate
+        // Log the frame rate
         final long LOGS_PER_FRAME = 5L;
         numFrames++;
-        if (lastTimestamp != Long.MIN_VALUE) {
-            averageSpf.update(timestampSeconds - lastTimestamp);
-            if (numFrames % LOGS_PER_FRAME == LOGS_PER_FRAME - 1) {
-                Log.d(TAG, "FPS: " + 1.0 / averageSpf.getAverage());
+        if (numFrames % LOGS_PER_FRAME == LOGS_PER_FRAME - 1) {
+            Log.d(TAG, "FPS: " + metrics.getCaptureRate().getFramesPerSecond()
+                    + " captured, " + metrics.getEncodeRate().getFramesPerSecond() + " encoded");
+        }
+    }
+
+    /**
+     * One preview buffer on its way through the encoder pool. There is a job
+     * per buffer, reused for every frame the camera delivers into it. It
+     * encodes every wanted rendition of the frame, each into its own slot.
+     */
+    private final class EncodeJob implements EncoderPool.Job
+    {
+        private final byte[] data;
+        // The channels that want this frame, the first wantedCount of them,
+        // and what was encoded for each.
+        private final FrameChannel[] wanted = new FrameChannel[MJpegHttpStreamer.MAX_CHANNELS];
+        private final JpegFrame[] frames = new JpegFrame[MJpegHttpStreamer.MAX_CHANNELS];
+        private final int[] lengths = new int[MJpegHttpStreamer.MAX_CHANNELS];
+        // Renditions that match what the viewers have, and the encoder's
+        // state of each channel.
+        private final boolean[] repeats = new boolean[MJpegHttpStreamer.MAX_CHANNELS];
+        private final ChannelState[] states = new ChannelState[MJpegHttpStreamer.MAX_CHANNELS];
+        private int wantedCount = 0;
+        // The frame's fingerprint, null unless unchanged frames are skipped.
+        private TileFingerprint fingerprint = null;
+
+        private Camera camera = null;
+        private long timestamp = 0L;
+        private long captureNanos = 0L;
+
+        private EncodeJob(final byte[] data)
+        {
+            super();
+            this.data = data;
+        }
+
+        /** Forgets the channels, so that a closed crop is not kept around. */
+        private void clearWanted()
+        {
+            for (int c = 0; c < wantedCount; c++) {
+                wanted[c] = null;
+                states[c] = null;
+                repeats[c] = false;
+            }
+            wantedCount = 0;
+        }
+
+        /**
+         * Ends the encode of a rendition on its channel's reference, which
+         * becomes this frame if it was published.
+         */
+        private void releaseReference(final int index, final boolean published)
+        {
+            final ChannelState state = states[index];
+            if (fingerprint == null || repeats[index]) {
+                return;
+            }
+            synchronized (state) {
+                if (published) {
+                    state.published.copyFrom(fingerprint);
+                }
+                state.encoding--;
+            }
+        }
+
+        /** For a frame that will not be encoded after all. */
+        private void releaseReferences()
+        {
+            for (int c = 0; c < wantedCount; c++) {
+                releaseReference(c, false);
+            }
+        }
+
+        @Override
+        public boolean encode(final int worker)
+        {
+            final long dequeueNanos = System.nanoTime();
+            boolean encodedAny = false;
+            for (int c = 0; c < wantedCount; c++) {
+                if (!repeats[c]) {
+                    encodedAny |= encodeChannel(worker, c, dequeueNanos);
+                }
             }
+            return encodedAny;
         }
 
-        lastTimestamp = timestampSeconds;
-        // Create JPEG
-        final YuvImage image = new YuvImage(data, previewFormat, previewWidth, previewHeight, null);
-        image.compressToJpeg(previewRect, jpegQuality, jpegOutputStream);
+        private boolean encodeChannel(final int worker, final int index,
+                                      final long dequeueNanos)
+        {
+            // Encode straight into a frame slot of the streamer, viewers read it
+            // from there without another copy. If every slot is still being sent
+            // to slow viewers this frame is dropped.
+            final JpegFrame frame = jpegHttpStreamer.acquireFrame();
+            if (frame == null) {
+                return false;
+            }
 
-        jpegHttpStreamer.streamJpeg(jpegOutputStream.getBuffer(), jpegOutputStream.getLength(),
-                timestamp);
+            final ChunkedOutputStream jpegOutputStream = frame.getOutputStream();
+
+            // The crop is clipped to the preview on the chroma grid, and the
+            // scale reduced if it would leave less than 2 x 2 pixels.
+            final FrameChannel channel = wanted[index];
+            final int left = channel.clipLeft(previewWidth);
+            final int top = channel.clipTop(previewHeight);
+            final int width = channel.clipWidth(previewWidth);
+            final int height = channel.clipHeight(previewHeight);
+            final int scale = channel.scaleFor(width, height);
+            final int quality = states[index].quality.getQuality();
+
+            // Create JPEG
+            final long encodeStartNanos = System.nanoTime();
+            boolean encoded;
+            try {
+                final byte[] scaled = scaledFrames[worker];
+                if (scaled == null || scale == 1) {
+                    encoded = frameEncoders[worker].encode(data, previewWidth, previewHeight,
+                            left, top, width, height, quality, jpegOutputStream);
+                } else {
+                    final int scaledWidth = Nv21Scaler.scaledSize(width, scale);
+                    final int scaledHeight = Nv21Scaler.scaledSize(height, scale);
+                    Nv21Scaler.scale(data, previewWidth, previewHeight,
+                            left, top, width, height, scale, scaled);
+                    encoded = frameEncoders[worker].encode(scaled, scaledWidth, scaledHeight,
+                            0, 0, scaledWidth, scaledHeight, quality, jpegOutputStream);
+                }
+            } catch (final IOException poolExhausted) {
+                LogE("Failed to encode frame | " + poolExhausted);
+                encoded = false;
+            }
+            if (!encoded) {
+                frame.release();
+                return false;
+            }
+            frame.setStageTimes(captureNanos, dequeueNanos, encodeStartNanos, System.nanoTime());
+            frames[index] = frame;
+            lengths[index] = jpegOutputStream.getLength();
+            return true;
+        }
 
-        // Clean up
-        jpegOutputStream.seek(0);
-        // XXX: I believe that this is thread-safe because we're not calling methods in other
-        // threads.
-        // I might be wrong, the documentation is not clear.
-        camera.addCallbackBuffer(data);
+        @Override
+        public void complete(final boolean encoded)
+        {
+            // Frames complete in capture order, so they are published in
+            // timestamp order whichever encoder finished first.
+            updateFrameRate(encoded, captureNanos);
+            long bytes = 0L;
+            for (int c = 0; c < wantedCount; c++) {
+                final FrameChannel channel = wanted[c];
+                final JpegFrame frame = frames[c];
+                final int length;
+                if (repeats[c]) {
+                    length = 0;
+                    metrics.getFramesRepeated().increment();
+                    jpegHttpStreamer.refreshFrame(channel);
+                } else if (frame != null) {
+                    length = lengths[c];
+                    metrics.getFramesEncoded().increment();
+                    jpegHttpStreamer.publishFrame(channel, frame, length, timestamp);
+                    frames[c] = null;
+                    releaseReference(c, true);
+                } else {
+                    metrics.getFramesDropped().increment();
+                    // The viewers keep the frame the reference already holds.
+                    releaseReference(c, false);
+                    continue;
+                }
+                // Each rendition holds the rate its own viewers can take.
+                final QualityController quality = states[c].quality;
+                quality.update(length, captureNanos, channel.getCongestedDrainRate());
+                if (channel.isFullFrame() && channel.getScale() == 1) {
+                    metrics.getJpegQuality().set(quality.getQuality());
+                }
+                bytes += length;
+            }
+            if (encoded) {
+                encodedBytes.update(bytes, captureNanos);
+                metrics.getEncodedBitrate().set((long) (encodedBytes.get(captureNanos) * 8.0));
+            }
+            clearWanted();
+            returnPreviewBuffer(data, camera);
+        }
     }
 }
-
@@ -0,0 +1,219 @@
+package com.kseek.camjpeg;
+
+/**
+ * Encodes frames on several worker threads and completes them in the order
+ * they were submitted. At most {@code window} jobs are in flight, submitted
+ * but not yet completed, which caps the latency a frame can pick up waiting
+ * for the encoders. Beyond that one more job waits in a single handoff slot
+ * for the next free place, and a newer job replaces it there: the encoders
+ * always move on to the newest frame, never to a backlog.
+ * <p>
+ * Completion is the reorder stage: whichever worker finishes the oldest
+ * outstanding job completes it and every later job that is already done,
+ * one at a time, so {@link Job#complete} calls never overlap and always
+ * arrive in capture order, whatever order the encodes finished in.
+ */
+final class EncoderPool
+{
+    /** A unit of work. Jobs are reused, but a job is never submitted twice at once. */
+    interface Job
+    {
+        /**
+         * Encodes on the given worker thread, {@code 0 <= worker < workers}.
+         * Returns false if there is nothing to publish.
+         */
+        boolean encode(int worker);
+
+        /** Called for every job, in submission order, with the result of {@link #encode}. */
+        void complete(boolean encoded);
+    }
+
+    private static final int SLOT_EMPTY = 0;
+    private static final int SLOT_QUEUED = 1;
+    private static final int SLOT_RUNNING = 2;
+    private static final int SLOT_ENCODED = 3;
+    private static final int SLOT_FAILED = 4;
+
+    private final String name;
+    private final Thread[] workers;
+    private final Job[] jobs;
+    private final int[] slots;
+
+    private final Object lock = new Object();
+    // Only held while completing, so that completions never overlap.
+    private final Object completeLock = new Object();
+
+    // Guarded by lock: job sequence numbers, the slot of job n is n % window.
+    private long nextSubmit = 0L;
+    private long nextTake = 0L;
+    private long nextComplete = 0L;
+    private boolean running = false;
+    // The newest job that did not fit into the window.
+    private Job waiting = null;
+
+    EncoderPool(final String name, final int workers, final int window)
+    {
+        super();
+
+        if (workers < 1 || window < workers) {
+            throw new IllegalArgumentException("need 1 <= workers <= window");
+        }
+
+        this.name = name;
+        this.workers = new Thread[workers];
+        jobs = new Job[window];
+        slots = new int[window];
+    }
+
+    int getWorkers()
+    {
+        return workers.length;
+    }
+
+    void start()
+    {
+        synchronized (lock) {
+            if (running) {
+                throw new IllegalStateException("EncoderPool is already running");
+            }
+            running = true;
+        }
+
+        for (int i = 0; i < workers.length; i++) {
+            final int worker = i;
+            workers[i] = new Thread(name + "-" + i)
+            {
+                @Override
+                public void run()
+                {
+                    workerRun(worker);
+                }
+            };
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Stops the workers. Jobs not completed by then are never completed, a
+     * completion already under way still finishes.
+     */
+    void stop()
+    {
+        synchronized (lock) {
+            if (!running) {
+                throw new IllegalStateException("EncoderPool is already stopped");
+            }
+            running = false;
+            waiting = null;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Queues a job for encoding. If the window is full the job takes the
+     * handoff slot. Returns the job that is given up instead, for the caller
+     * to recycle: the one it superseded in the handoff slot, the job itself
+     * if the pool is stopped, or null.
+     */
+    Job submit(final Job job)
+    {
+        synchronized (lock) {
+            if (!running) {
+                return job;
+            }
+            if (nextSubmit - nextComplete >= jobs.length) {
+                final Job superseded = waiting;
+                waiting = job;
+                return superseded;
+            }
+            enqueue(job);
+            return null;
+        }
+    }
+
+    // Called with lock held and room in the window.
+    private void enqueue(final Job job)
+    {
+        final int slot = (int) (nextSubmit % jobs.length);
+        jobs[slot] = job;
+        slots[slot] = SLOT_QUEUED;
+        nextSubmit++;
+        lock.notify();
+    }
+
+    private void workerRun(final int worker)
+    {
+        while (true) {
+            final int slot;
+            final Job job;
+            synchronized (lock) {
+                while (running && nextTake == nextSubmit) {
+                    try {
+                        lock.wait();
+                    }
+                    catch (final InterruptedException stopWaiting) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+                slot = (int) (nextTake % jobs.length);
+                nextTake++;
+                slots[slot] = SLOT_RUNNING;
+                job = jobs[slot];
+            }
+
+            boolean encoded = false;
+            try {
+                encoded = job.encode(worker);
+            }
+            catch (final RuntimeException encodeFailed) {
+                System.err.println(encodeFailed);
+            }
+
+            synchronized (lock) {
+                slots[slot] = encoded ? SLOT_ENCODED : SLOT_FAILED;
+            }
+            completeInOrder();
+        }
+    }
+
+    private void completeInOrder()
+    {
+        synchronized (completeLock) {
+            while (true) {
+                final Job job;
+                final boolean encoded;
+                synchronized (lock) {
+                    if (!running || nextComplete == nextSubmit) {
+                        return;
+                    }
+                    final int slot = (int) (nextComplete % jobs.length);
+                    if (slots[slot] != SLOT_ENCODED && slots[slot] != SLOT_FAILED) {
+                        // The oldest job is still being encoded, its worker
+                        // completes it and everything behind it.
+                        return;
+                    }
+                    encoded = slots[slot] == SLOT_ENCODED;
+                    job = jobs[slot];
+                    jobs[slot] = null;
+                    slots[slot] = SLOT_EMPTY;
+                    nextComplete++;
+                    if (waiting != null) {
+                        enqueue(waiting);
+                        waiting = null;
+                    }
+                }
+                try {
+                    job.complete(encoded);
+                }
+                catch (final RuntimeException completeFailed) {
+                    // The window has moved on already, the jobs behind this one still complete.
+                    System.err.println(completeFailed);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.kseek.camjpeg;
+
+import com.kseek.camjpeg.codec.MotionDetector;
+import com.kseek.camjpeg.metrics.StreamMetrics;
+
+/**
+ * Lets captured frames through to the encoders at full rate while the scene
+ * moves, and at a keep-alive rate while it is static. Most of the time a
+ * camera watches an empty room, and there one frame every few seconds tells
+ * the viewers as much as thirty a second.
+ * <p>
+ * Every frame goes through the {@link MotionDetector}. The scene counts as
+ * moving from the first frame with motion until {@link #HOLD_NANOS} after
+ * the last one, so that a pause in the middle of a movement does not cut
+ * the rate. The start of a movement is counted as a motion event and its
+ * time kept in {@link StreamCameraActivity#lastMotionTime}; the time of the
+ * last keep-alive frame goes to
+ * {@link StreamCameraActivity#lastMotionKeepAliveTime}. Without gating it
+ * only tracks motion, for event recording, and lets every frame through.
+ * <p>
+ * Called from the preview callback only.
+ */
+final class MotionGate
+{
+    static final int DEFAULT_KEEP_ALIVE_SECONDS = 2;
+
+    private static final long NANOS_PER_SECOND = 1000L * 1000L * 1000L;
+
+    /** How long the scene counts as moving after the last frame with motion. */
+    private static final long HOLD_NANOS = 3L * NANOS_PER_SECOND;
+
+    private final MotionDetector detector;
+    private final boolean gating;
+    private final long keepAliveNanos;
+    private final StreamMetrics metrics;
+
+    private boolean moving = false;
+    private long lastMotionNanos = 0L;
+    private long lastKeepAliveNanos = 0L;
+
+    /** @param gating false to only watch for motion and let every frame through */
+    MotionGate(final int frameWidth, final int frameHeight, final boolean gating,
+               final int keepAliveSeconds, final StreamMetrics metrics)
+    {
+        super();
+        detector = new MotionDetector(frameWidth, frameHeight);
+        this.gating = gating;
+        keepAliveNanos = keepAliveSeconds * NANOS_PER_SECOND;
+        this.metrics = metrics;
+    }
+
+    /** Whether the scene counted as moving at the last frame. */
+    boolean isMoving()
+    {
+        return moving;
+    }
+
+    /**
+     * Looks for motion in the frame and returns whether it should be
+     * encoded: always while the scene moves or when not gating, otherwise
+     * once per keep-alive interval.
+     */
+    boolean admit(final byte[] nv21, final long captureNanos)
+    {
+        if (detector.detect(nv21)) {
+            if (!moving) {
+                moving = true;
+                metrics.getMotionEvents().increment();
+                metrics.getMotionActive().set(1L);
+                StreamCameraActivity.lastMotionTime = System.currentTimeMillis();
+            }
+            lastMotionNanos = captureNanos;
+        }
+        else if (moving && captureNanos - lastMotionNanos > HOLD_NANOS) {
+            moving = false;
+            metrics.getMotionActive().set(0L);
+            // The first static frame counts as a keep-alive, the next is due an interval later.
+            lastKeepAliveNanos = captureNanos;
+            StreamCameraActivity.lastMotionKeepAliveTime = System.currentTimeMillis();
+            return true;
+        }
+
+        if (moving || !gating) {
+            return true;
+        }
+        if (captureNanos - lastKeepAliveNanos >= keepAliveNanos) {
+            lastKeepAliveNanos = captureNanos;
+            StreamCameraActivity.lastMotionKeepAliveTime = System.currentTimeMillis();
+            return true;
+        }
+        return false;
+    }
+}
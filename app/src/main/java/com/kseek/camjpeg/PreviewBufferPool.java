@@ -0,0 +1,76 @@
+package com.kseek.camjpeg;
+
+import com.kseek.camjpeg.metrics.StreamMetrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The callback buffers handed to the camera for preview frames. A buffer is
+ * either queued with the camera or held by us, from the preview callback
+ * until the encoder gives it back. With several buffers the camera keeps
+ * filling the next one while the previous frame is being encoded.
+ * <p>
+ * The camera stops delivering once it has no buffer left, so the pool
+ * refuses a frame that would leave it without one: that frame is dropped at
+ * capture and its buffer is queued again straight away. Capture keeps
+ * running at the sensor rate and only the encoder falls behind, which the
+ * metrics report as buffer starvation.
+ */
+final class PreviewBufferPool
+{
+    static final int DEFAULT_BUFFERS = 3;
+    static final int MIN_BUFFERS = 2;
+    static final int MAX_BUFFERS = 8;
+
+    /** Buffers that always stay queued with the camera. */
+    private static final int RESERVE = 1;
+
+    private final byte[][] buffers;
+    private final AtomicInteger held = new AtomicInteger();
+    private final StreamMetrics metrics;
+
+    PreviewBufferPool(final int count, final int bufferSize, final StreamMetrics metrics)
+    {
+        super();
+
+        if (count < MIN_BUFFERS) {
+            throw new IllegalArgumentException("at least " + MIN_BUFFERS + " buffers are needed");
+        }
+
+        buffers = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            buffers[i] = new byte[bufferSize];
+        }
+        this.metrics = metrics;
+        metrics.getPreviewBuffers().set(count);
+    }
+
+    /** The buffers to queue with the camera before starting the preview. */
+    byte[][] getBuffers()
+    {
+        return buffers;
+    }
+
+    /**
+     * Called from the preview callback. Returns true if the frame may go to
+     * the encoder, in which case the buffer must be handed back with
+     * {@link #release()} once it is requeued. Returns false if the camera
+     * would be left without a buffer; the caller requeues it immediately.
+     */
+    boolean tryHold()
+    {
+        final int nowHeld = held.incrementAndGet();
+        if (nowHeld > buffers.length - RESERVE) {
+            held.decrementAndGet();
+            metrics.getPreviewBuffersStarved().increment();
+            return false;
+        }
+        metrics.getPreviewBuffersInUse().set(nowHeld);
+        return true;
+    }
+
+    void release()
+    {
+        metrics.getPreviewBuffersInUse().set(held.decrementAndGet());
+    }
+}
@@ -0,0 +1,141 @@
+package com.kseek.camjpeg;
+
+/**
+ * Steers the JPEG quality of one rendition towards a bitrate budget. The
+ * size of a JPEG follows the scene far more than the quality setting, so a
+ * fixed quality either wastes the uplink on a quiet scene or saturates it on
+ * a busy one.
+ * <p>
+ * After every frame encoded for the rendition the controller folds the
+ * bytes produced into a smoothed output rate and compares it with the
+ * budget: the configured target, or what the slowest of the rendition's
+ * viewers that is losing frames could take if that is lower. Each rendition
+ * has a controller of its own, so a viewer on a slow link only lowers the
+ * quality of what it watches. The quality moves down quickly while the rate
+ * is over the budget and creeps back up while it is well below, with a dead
+ * band in between so that it does not hunt from frame to frame. With a
+ * target of 0 the quality stays fixed.
+ * <p>
+ * {@link #update} is called from one thread at a time, the encoder pool's
+ * completion; {@link #getQuality} from any.
+ */
+final class QualityController
+{
+    static final int DEFAULT_MIN_QUALITY = 30;
+    static final int DEFAULT_MAX_QUALITY = 90;
+
+    private static final long NANOS_PER_SECOND = 1000L * 1000L * 1000L;
+
+    /** Weight of the newest frame in the smoothed output rate. */
+    private static final double RATE_ALPHA = 0.15;
+
+    /** A gap longer than this, e.g. nobody watching, restarts the rate estimate. */
+    private static final long RESTART_NANOS = NANOS_PER_SECOND;
+
+    /** The rate may exceed the budget by this much before the quality drops. */
+    private static final double OVER_BUDGET = 1.05;
+
+    /** The rate must be this far below the budget before the quality rises. */
+    private static final double UNDER_BUDGET = 0.8;
+
+    /** The largest quality change after a single frame. */
+    private static final int MAX_STEP = 5;
+
+    /**
+     * Frames to let through after a change before the next one. Frames
+     * already in the encoders still carry the old quality, and the smoothed
+     * rate needs a few more to follow.
+     */
+    private static final int SETTLE_FRAMES = 4;
+
+    private final long targetBytesPerSecond;
+    private final int minQuality;
+    private final int maxQuality;
+
+    private volatile int quality;
+
+    // Only touched by update().
+    private double bytesPerSecond = 0.0;
+    private long lastFrameNanos = 0L;
+    private int settleFrames = 0;
+
+    /**
+     * @param quality             the quality to start from, and to keep with no target
+     * @param targetBitsPerSecond the budget of the rendition, 0 to keep the quality fixed
+     */
+    QualityController(final int quality, final long targetBitsPerSecond, final int minQuality,
+                      final int maxQuality)
+    {
+        super();
+
+        if (minQuality < 0 || maxQuality > 100 || minQuality > maxQuality) {
+            throw new IllegalArgumentException("need 0 <= minQuality <= maxQuality <= 100");
+        }
+
+        targetBytesPerSecond = targetBitsPerSecond / 8L;
+        this.minQuality = minQuality;
+        this.maxQuality = maxQuality;
+        this.quality = targetBytesPerSecond > 0L
+                ? Math.max(minQuality, Math.min(maxQuality, quality))
+                : quality;
+    }
+
+    /** The quality to encode the next frame with. */
+    int getQuality()
+    {
+        return quality;
+    }
+
+    /**
+     * Accounts for one frame of the rendition.
+     *
+     * @param bytes              the JPEG bytes produced for the frame, 0 if
+     *                           the previous one was repeated
+     * @param captureNanos       when the frame was captured
+     * @param congestedDrainRate the bytes per second of the rendition its
+     *                           slowest viewer that is losing frames could
+     *                           take, 0 if every viewer keeps up, see
+     *                           {@link com.kseek.camjpeg.net.http.FrameChannel#getCongestedDrainRate}
+     */
+    void update(final long bytes, final long captureNanos, final long congestedDrainRate)
+    {
+        final long elapsed = captureNanos - lastFrameNanos;
+        lastFrameNanos = captureNanos;
+        if (elapsed <= 0L || elapsed > RESTART_NANOS) {
+            bytesPerSecond = 0.0;
+            return;
+        }
+        final double sample = bytes * (double) NANOS_PER_SECOND / elapsed;
+        bytesPerSecond = bytesPerSecond == 0.0
+                ? sample
+                : bytesPerSecond + RATE_ALPHA * (sample - bytesPerSecond);
+
+        if (targetBytesPerSecond <= 0L) {
+            return;
+        }
+        if (settleFrames > 0) {
+            settleFrames--;
+            return;
+        }
+        long budget = targetBytesPerSecond;
+        if (congestedDrainRate > 0L && congestedDrainRate < budget) {
+            budget = congestedDrainRate;
+        }
+
+        // JPEG sizes change by a few percent per quality step in the useful
+        // range, so the step grows with how far off the rate is.
+        final double ratio = bytesPerSecond / budget;
+        int next = quality;
+        if (ratio > OVER_BUDGET) {
+            next -= Math.min(MAX_STEP, 1 + (int) ((ratio - 1.0) * 10.0));
+        }
+        else if (ratio < UNDER_BUDGET) {
+            next++;
+        }
+        next = Math.max(minQuality, Math.min(maxQuality, next));
+        if (next != quality) {
+            quality = next;
+            settleFrames = SETTLE_FRAMES;
+        }
+    }
+}
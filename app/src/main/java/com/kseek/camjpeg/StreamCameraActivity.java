@@ -21,6 +21,7 @@ import android.view.SurfaceView;
 import android.widget.TextView;
 
 import com.kseek.camjpeg.net.http.MJpegHttpStreamer;
+import com.kseek.camjpeg.record.PreEventBuffer;
 import com.kseek.camjpeg.utils.PreferenceHelper;
 import com.kseek.camjpeg.utils.Utilities;
 
@@ -35,6 +36,12 @@ public final class StreamCameraActivity extends Activity
 
     private static final String WAKE_LOCK_TAG = "camjpeg";
 
+    /** Under the app's external files directory; no recording if storage is missing. */
+    private static final String RECORDINGS_DIRECTORY = "recordings";
+    private static final int DEFAULT_RECORDING_MEGABYTES = 1024;
+    private static final int DEFAULT_RECORDING_HOURS = 24;
+    private static final int DEFAULT_POST_EVENT_SECONDS = 10;
+
     private SurfaceHolder previewDisplay = null;
     private CameraStreamer cameraStreamer = null;
 
@@ -54,8 +61,9 @@ public final class StreamCameraActivity extends Activity
 
     public static boolean isRunning = false;
 
-    public static long lastMotionTime = 0;
-    public static long lastMotionKeepAliveTime = 0;
+    // Wall clock milliseconds, written by the capture thread when motion gating is on.
+    public static volatile long lastMotionTime = 0;
+    public static volatile long lastMotionKeepAliveTime = 0;
 
     private boolean running = false;
     private boolean previewDisplayCreated = false;
@@ -65,6 +73,22 @@ public final class StreamCameraActivity extends Activity
     private boolean useFlashLight = false;
 
     private int jpegQuality = 80;
+    // In kbit/s, 0 keeps jpegQuality fixed.
+    private int targetBitrate = 0;
+    private int minQuality = QualityController.DEFAULT_MIN_QUALITY;
+    private int maxQuality = QualityController.DEFAULT_MAX_QUALITY;
+    private int previewBuffers = PreviewBufferPool.DEFAULT_BUFFERS;
+    private boolean useJavaEncoder = false;
+    private boolean motionGating = false;
+    private boolean skipUnchanged = false;
+    private boolean recording = false;
+    private int recordingMegabytes = DEFAULT_RECORDING_MEGABYTES;
+    private int recordingHours = DEFAULT_RECORDING_HOURS;
+    private boolean eventRecording = false;
+    private int preEventSeconds = PreEventBuffer.DEFAULT_SECONDS;
+    private int postEventSeconds = DEFAULT_POST_EVENT_SECONDS;
+    private int preEventMegabytes = PreEventBuffer.DEFAULT_MEGABYTES;
+    private int keepAliveSeconds = MotionGate.DEFAULT_KEEP_ALIVE_SECONDS;
     // preview sizes will always have at least one element, so this is safe
     private int previewSizeIndex = 0;
 
@@ -230,6 +254,21 @@ public final class StreamCameraActivity extends Activity
                     httpPort,
                     previewSizeIndex,
                     jpegQuality,
+                    targetBitrate,
+                    minQuality,
+                    maxQuality,
+                    previewBuffers,
+                    useJavaEncoder,
+                    motionGating,
+                    keepAliveSeconds,
+                    skipUnchanged,
+                    recording ? getExternalFilesDir(RECORDINGS_DIRECTORY) : null,
+                    recordingMegabytes,
+                    recordingHours,
+                    eventRecording,
+                    preEventSeconds,
+                    postEventSeconds,
+                    preEventMegabytes,
                     previewDisplay,
                     prefSize,
                     screenSize, this);
@@ -335,6 +374,67 @@ public final class StreamCameraActivity extends Activity
             jpegQuality = 100;
         }
 
+        targetBitrate = Math.max(0, preferenceHelper
+                .intPreference(R.string.key_pref_target_bitrate, 0));
+
+        // Both bounds must be in the range [0 100], the lower one first
+        minQuality = Math.max(0, Math.min(100, preferenceHelper
+                .intPreference(R.string.key_pref_min_quality,
+                        QualityController.DEFAULT_MIN_QUALITY)));
+        maxQuality = Math.max(minQuality, Math.min(100, preferenceHelper
+                .intPreference(R.string.key_pref_max_quality,
+                        QualityController.DEFAULT_MAX_QUALITY)));
+
+        useJavaEncoder = preferenceHelper
+                .booleanPreference(R.string.key_pref_java_encoder, false);
+
+        motionGating = preferenceHelper
+                .booleanPreference(R.string.key_pref_motion_gating, false);
+
+        keepAliveSeconds = Math.max(1, preferenceHelper
+                .intPreference(R.string.key_pref_keep_alive_seconds,
+                        MotionGate.DEFAULT_KEEP_ALIVE_SECONDS));
+
+        skipUnchanged = preferenceHelper
+                .booleanPreference(R.string.key_pref_skip_unchanged, false);
+
+        recording = preferenceHelper
+                .booleanPreference(R.string.key_pref_recording, false);
+
+        recordingMegabytes = Math.max(16, preferenceHelper
+                .intPreference(R.string.key_pref_recording_megabytes,
+                        DEFAULT_RECORDING_MEGABYTES));
+
+        recordingHours = Math.max(1, preferenceHelper
+                .intPreference(R.string.key_pref_recording_hours,
+                        DEFAULT_RECORDING_HOURS));
+
+        eventRecording = preferenceHelper
+                .booleanPreference(R.string.key_pref_event_recording, false);
+
+        preEventSeconds = Math.max(1, preferenceHelper
+                .intPreference(R.string.key_pref_pre_event_seconds,
+                        PreEventBuffer.DEFAULT_SECONDS));
+
+        postEventSeconds = Math.max(1, preferenceHelper
+                .intPreference(R.string.key_pref_post_event_seconds,
+                        DEFAULT_POST_EVENT_SECONDS));
+
+        // At least two slabs, see PreEventBuffer.
+        preEventMegabytes = Math.max(2, preferenceHelper
+                .intPreference(R.string.key_pref_pre_event_megabytes,
+                        PreEventBuffer.DEFAULT_MEGABYTES));
+
+        previewBuffers = preferenceHelper
+                .intPreference(R.string.key_pref_preview_buffers,
+                        PreviewBufferPool.DEFAULT_BUFFERS);
+
+        if (previewBuffers < PreviewBufferPool.MIN_BUFFERS) {
+            previewBuffers = PreviewBufferPool.MIN_BUFFERS;
+        } else if (previewBuffers > PreviewBufferPool.MAX_BUFFERS) {
+            previewBuffers = PreviewBufferPool.MAX_BUFFERS;
+        }
+
         DisplayMetrics metrics = new DisplayMetrics();
         getWindowManager().getDefaultDisplay().getMetrics(metrics);
         int screenHeight = metrics.heightPixels;
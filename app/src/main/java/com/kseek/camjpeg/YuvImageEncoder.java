@@ -0,0 +1,68 @@
+package com.kseek.camjpeg;
+
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import com.kseek.camjpeg.codec.FrameEncoder;
+
+import java.io.OutputStream;
+
+/**
+ * The platform JPEG encoder behind {@link FrameEncoder}. A YuvImage wraps a
+ * particular buffer at particular dimensions, so one is kept per buffer and
+ * size seen and reused for every frame delivered into it. A scratch buffer
+ * holding renditions of different sizes has one per size; when the cache
+ * is full the oldest entry makes room.
+ */
+final class YuvImageEncoder implements FrameEncoder
+{
+    private final int format;
+    private final Rect rect = new Rect();
+    private final byte[][] buffers;
+    private final YuvImage[] images;
+    private int nextEvicted = 0;
+
+    /** @param maxImages the number of distinct buffer and size pairs worth keeping */
+    YuvImageEncoder(final int format, final int maxImages)
+    {
+        super();
+        this.format = format;
+        buffers = new byte[maxImages][];
+        images = new YuvImage[maxImages];
+    }
+
+    @Override
+    public boolean encode(final byte[] nv21, final int frameWidth, final int frameHeight,
+                          final int left, final int top, final int width, final int height,
+                          final int quality, final OutputStream out)
+    {
+        final int x0 = left & ~1;
+        final int y0 = top & ~1;
+        rect.set(x0, y0, x0 + width, y0 + height);
+        return imageFor(nv21, frameWidth, frameHeight).compressToJpeg(rect, quality, out);
+    }
+
+    private YuvImage imageFor(final byte[] nv21, final int frameWidth, final int frameHeight)
+    {
+        int free = -1;
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i] == nv21) {
+                final YuvImage image = images[i];
+                if (image.getWidth() == frameWidth && image.getHeight() == frameHeight) {
+                    return image;
+                }
+            }
+            else if (buffers[i] == null && free < 0) {
+                free = i;
+            }
+        }
+        if (free < 0) {
+            free = nextEvicted;
+            nextEvicted = (nextEvicted + 1) % buffers.length;
+        }
+        final YuvImage image = new YuvImage(nv21, format, frameWidth, frameHeight, null);
+        buffers[free] = nv21;
+        images[free] = image;
+        return image;
+    }
+}
@@ -0,0 +1,23 @@
+package com.kseek.camjpeg.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses NV21 preview frames to JPEG. An encoder may keep scratch state
+ * between calls, so each encoding thread uses its own instance.
+ */
+public interface FrameEncoder
+{
+    /**
+     * Compresses the rectangle at (left, top) of width x height pixels of a
+     * frameWidth x frameHeight NV21 frame and writes the JPEG to out.
+     * Odd left and top coordinates are rounded down to the chroma grid.
+     *
+     * @return false if the platform refused to encode the frame
+     * @throws IOException if out cannot take the compressed frame
+     */
+    boolean encode(byte[] nv21, int frameWidth, int frameHeight,
+                   int left, int top, int width, int height,
+                   int quality, OutputStream out) throws IOException;
+}
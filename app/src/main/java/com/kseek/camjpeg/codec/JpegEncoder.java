@@ -0,0 +1,546 @@
+package com.kseek.camjpeg.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Baseline JPEG encoder for NV21 frames in plain Java, so that encoding can
+ * be tuned and benchmarked on any JVM and compared with the platform path.
+ * <p>
+ * The NV21 planes already are YCbCr 4:2:0, so blocks are read straight from
+ * them without colour conversion. The forward DCT is the integer one of the
+ * IJG library, quantization multiplies by reciprocals precomputed for the
+ * current quality, and the standard Huffman tables of ITU T.81 Annex K are
+ * expanded once into code and length lookups. Nothing is allocated per
+ * frame; output is staged in a private buffer and written in large chunks.
+ */
+public final class JpegEncoder implements FrameEncoder
+{
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63};
+
+    // Annex K.1 and K.2, in natural order.
+    private static final int[] LUMA_QUANT = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99};
+    private static final int[] CHROMA_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99};
+
+    // Annex K.3, code counts per length 1..16 followed by the symbols.
+    private static final HuffmanTable DC_LUMA = new HuffmanTable(0x00,
+            new int[]{0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0},
+            new int[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11});
+    private static final HuffmanTable DC_CHROMA = new HuffmanTable(0x01,
+            new int[]{0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0},
+            new int[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11});
+    private static final HuffmanTable AC_LUMA = new HuffmanTable(0x10,
+            new int[]{0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d},
+            new int[]{
+                    0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+                    0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+                    0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+                    0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+                    0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+                    0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+                    0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+                    0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+                    0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+                    0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+                    0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+                    0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+                    0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+                    0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+                    0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+                    0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+                    0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+                    0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+                    0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+                    0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+                    0xf9, 0xfa});
+    private static final HuffmanTable AC_CHROMA = new HuffmanTable(0x11,
+            new int[]{0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77},
+            new int[]{
+                    0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+                    0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+                    0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+                    0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+                    0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+                    0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+                    0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+                    0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+                    0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+                    0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+                    0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+                    0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+                    0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+                    0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+                    0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+                    0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+                    0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+                    0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+                    0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+                    0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+                    0xf9, 0xfa});
+
+    // Integer DCT constants, FIX(x) = x * 2^13 rounded.
+    private static final int CONST_BITS = 13;
+    private static final int PASS1_BITS = 2;
+    private static final int FIX_0_298631336 = 2446;
+    private static final int FIX_0_390180644 = 3196;
+    private static final int FIX_0_541196100 = 4433;
+    private static final int FIX_0_765366865 = 6270;
+    private static final int FIX_0_899976223 = 7373;
+    private static final int FIX_1_175875602 = 9633;
+    private static final int FIX_1_501321110 = 12299;
+    private static final int FIX_1_847759065 = 15137;
+    private static final int FIX_1_961570560 = 16069;
+    private static final int FIX_2_053119869 = 16819;
+    private static final int FIX_2_562915447 = 20995;
+    private static final int FIX_3_072711026 = 25172;
+
+    // The DCT output is scaled by 8, quantizing divides by 8 * q through a
+    // multiply by 2^18 / (8 * q). |coefficient| < 2^15 keeps it in an int.
+    private static final int RECIPROCAL_BITS = 18;
+    private static final int RECIPROCAL_HALF = 1 << (RECIPROCAL_BITS - 1);
+
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+
+    private final int[] block = new int[64];
+    private final byte[] lumaTable = new byte[64];
+    private final byte[] chromaTable = new byte[64];
+    private final int[] lumaReciprocals = new int[64];
+    private final int[] chromaReciprocals = new int[64];
+    private int tableQuality = -1;
+
+    private final byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+    private int bufferPosition = 0;
+    private int bitBuffer = 0;
+    private int bitCount = 0;
+    private OutputStream out = null;
+
+    public JpegEncoder()
+    {
+        super();
+    }
+
+    @Override
+    public boolean encode(final byte[] nv21, final int frameWidth, final int frameHeight,
+                          final int left, final int top, final int width, final int height,
+                          final int quality, final OutputStream out) throws IOException
+    {
+        final int x0 = left & ~1;
+        final int y0 = top & ~1;
+        if (x0 < 0 || y0 < 0 || width <= 0 || height <= 0
+                || x0 + width > frameWidth || y0 + height > frameHeight) {
+            throw new IllegalArgumentException("rectangle outside the frame");
+        }
+
+        setQuality(quality);
+        this.out = out;
+        bufferPosition = 0;
+        bitBuffer = 0;
+        bitCount = 0;
+        writeHeaders(width, height);
+
+        final int chromaBase = frameWidth * frameHeight;
+        final int lumaRight = x0 + width - 1;
+        final int lumaBottom = y0 + height - 1;
+        final int chromaRight = lumaRight >> 1;
+        final int chromaBottom = lumaBottom >> 1;
+        int dcY = 0;
+        int dcCb = 0;
+        int dcCr = 0;
+
+        for (int y = y0; y <= lumaBottom; y += 16) {
+            for (int x = x0; x <= lumaRight; x += 16) {
+                loadBlock(nv21, 0, frameWidth, 1, x, y, lumaRight, lumaBottom);
+                dcY = encodeBlock(dcY, lumaReciprocals, DC_LUMA, AC_LUMA);
+                loadBlock(nv21, 0, frameWidth, 1, x + 8, y, lumaRight, lumaBottom);
+                dcY = encodeBlock(dcY, lumaReciprocals, DC_LUMA, AC_LUMA);
+                loadBlock(nv21, 0, frameWidth, 1, x, y + 8, lumaRight, lumaBottom);
+                dcY = encodeBlock(dcY, lumaReciprocals, DC_LUMA, AC_LUMA);
+                loadBlock(nv21, 0, frameWidth, 1, x + 8, y + 8, lumaRight, lumaBottom);
+                dcY = encodeBlock(dcY, lumaReciprocals, DC_LUMA, AC_LUMA);
+
+                // NV21 interleaves V and U, Cb is U.
+                loadBlock(nv21, chromaBase + 1, frameWidth, 2, x >> 1, y >> 1,
+                        chromaRight, chromaBottom);
+                dcCb = encodeBlock(dcCb, chromaReciprocals, DC_CHROMA, AC_CHROMA);
+                loadBlock(nv21, chromaBase, frameWidth, 2, x >> 1, y >> 1,
+                        chromaRight, chromaBottom);
+                dcCr = encodeBlock(dcCr, chromaReciprocals, DC_CHROMA, AC_CHROMA);
+            }
+        }
+
+        // Pad the last byte with one bits.
+        if (bitCount > 0) {
+            writeBits(0x7f, 8 - bitCount);
+        }
+        writeByte(0xff);
+        writeByte(0xd9); // EOI
+        flushBuffer();
+        this.out = null;
+        return true;
+    }
+
+    private void setQuality(final int quality)
+    {
+        final int clamped = Math.max(1, Math.min(100, quality));
+        if (clamped == tableQuality) {
+            return;
+        }
+
+        // The IJG quality scaling.
+        final int scale = clamped < 50 ? 5000 / clamped : 200 - clamped * 2;
+        scaleTable(LUMA_QUANT, scale, lumaTable, lumaReciprocals);
+        scaleTable(CHROMA_QUANT, scale, chromaTable, chromaReciprocals);
+        tableQuality = clamped;
+    }
+
+    private static void scaleTable(final int[] base, final int scale, final byte[] zigzag,
+                                   final int[] reciprocals)
+    {
+        for (int k = 0; k < 64; k++) {
+            final int natural = ZIGZAG[k];
+            final int q = Math.max(1, Math.min(255, (base[natural] * scale + 50) / 100));
+            zigzag[k] = (byte) q;
+            final int divisor = q << 3;
+            reciprocals[natural] = ((1 << RECIPROCAL_BITS) + (divisor >> 1)) / divisor;
+        }
+    }
+
+    private void writeHeaders(final int width, final int height) throws IOException
+    {
+        // SOI and a JFIF APP0 segment.
+        writeByte(0xff);
+        writeByte(0xd8);
+        writeMarker(0xe0, 16);
+        writeByte('J');
+        writeByte('F');
+        writeByte('I');
+        writeByte('F');
+        writeByte(0);
+        writeByte(1);
+        writeByte(1);
+        writeByte(0);
+        writeShort(1);
+        writeShort(1);
+        writeByte(0);
+        writeByte(0);
+
+        // DQT, tables 0 and 1 in zigzag order.
+        writeMarker(0xdb, 2 + 2 * 65);
+        writeByte(0);
+        writeBytes(lumaTable);
+        writeByte(1);
+        writeBytes(chromaTable);
+
+        // SOF0: Y sampled 2x2 against table 0, Cb and Cr 1x1 against table 1.
+        writeMarker(0xc0, 17);
+        writeByte(8);
+        writeShort(height);
+        writeShort(width);
+        writeByte(3);
+        writeByte(1);
+        writeByte(0x22);
+        writeByte(0);
+        writeByte(2);
+        writeByte(0x11);
+        writeByte(1);
+        writeByte(3);
+        writeByte(0x11);
+        writeByte(1);
+
+        writeMarker(0xc4, 2 + DC_LUMA.segmentLength() + AC_LUMA.segmentLength()
+                + DC_CHROMA.segmentLength() + AC_CHROMA.segmentLength());
+        writeHuffmanTable(DC_LUMA);
+        writeHuffmanTable(AC_LUMA);
+        writeHuffmanTable(DC_CHROMA);
+        writeHuffmanTable(AC_CHROMA);
+
+        // SOS for all three components, full spectral range.
+        writeMarker(0xda, 12);
+        writeByte(3);
+        writeByte(1);
+        writeByte(0x00);
+        writeByte(2);
+        writeByte(0x11);
+        writeByte(3);
+        writeByte(0x11);
+        writeByte(0);
+        writeByte(63);
+        writeByte(0);
+    }
+
+    private void writeHuffmanTable(final HuffmanTable table) throws IOException
+    {
+        writeByte(table.classAndId);
+        for (final int count : table.bits) {
+            writeByte(count);
+        }
+        for (final int value : table.values) {
+            writeByte(value);
+        }
+    }
+
+    /**
+     * Fills the block with level shifted samples of an 8x8 area starting at
+     * (x0, y0) of a plane, repeating the last column and row where the area
+     * extends past (xMax, yMax).
+     */
+    private void loadBlock(final byte[] data, final int base, final int stride, final int step,
+                           final int x0, final int y0, final int xMax, final int yMax)
+    {
+        final int[] block = this.block;
+        if (x0 + 7 <= xMax && y0 + 7 <= yMax) {
+            for (int y = 0; y < 8; y++) {
+                int p = base + (y0 + y) * stride + x0 * step;
+                final int row = y << 3;
+                for (int x = 0; x < 8; x++) {
+                    block[row + x] = (data[p] & 0xff) - 128;
+                    p += step;
+                }
+            }
+            return;
+        }
+
+        for (int y = 0; y < 8; y++) {
+            final int line = base + Math.min(y0 + y, yMax) * stride;
+            final int row = y << 3;
+            for (int x = 0; x < 8; x++) {
+                block[row + x] = (data[line + Math.min(x0 + x, xMax) * step] & 0xff) - 128;
+            }
+        }
+    }
+
+    /** Transforms, quantizes and entropy codes the block. Returns its DC value. */
+    private int encodeBlock(final int previousDc, final int[] reciprocals,
+                            final HuffmanTable dcTable, final HuffmanTable acTable)
+            throws IOException
+    {
+        final int[] block = this.block;
+        forwardDct(block);
+
+        final int dc = quantize(block[0], reciprocals[0]);
+        final int diff = dc - previousDc;
+        final int dcSize = magnitudeBits(diff);
+        writeBits(dcTable.codes[dcSize], dcTable.sizes[dcSize]);
+        if (dcSize > 0) {
+            writeBits(diff < 0 ? diff - 1 : diff, dcSize);
+        }
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            final int natural = ZIGZAG[k];
+            final int value = quantize(block[natural], reciprocals[natural]);
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                writeBits(acTable.codes[0xf0], acTable.sizes[0xf0]); // ZRL
+                run -= 16;
+            }
+            final int size = magnitudeBits(value);
+            final int symbol = (run << 4) | size;
+            writeBits(acTable.codes[symbol], acTable.sizes[symbol]);
+            writeBits(value < 0 ? value - 1 : value, size);
+            run = 0;
+        }
+        if (run > 0) {
+            writeBits(acTable.codes[0x00], acTable.sizes[0x00]); // EOB
+        }
+        return dc;
+    }
+
+    private static int quantize(final int coefficient, final int reciprocal)
+    {
+        return coefficient < 0
+                ? -((-coefficient * reciprocal + RECIPROCAL_HALF) >> RECIPROCAL_BITS)
+                : (coefficient * reciprocal + RECIPROCAL_HALF) >> RECIPROCAL_BITS;
+    }
+
+    private static int magnitudeBits(final int value)
+    {
+        return 32 - Integer.numberOfLeadingZeros(value < 0 ? -value : value);
+    }
+
+    /** The slow-but-accurate integer DCT of the IJG library (jfdctint.c), output scaled by 8. */
+    private static void forwardDct(final int[] data)
+    {
+        for (int row = 0; row < 64; row += 8) {
+            final int tmp0 = data[row] + data[row + 7];
+            final int tmp7 = data[row] - data[row + 7];
+            final int tmp1 = data[row + 1] + data[row + 6];
+            final int tmp6 = data[row + 1] - data[row + 6];
+            final int tmp2 = data[row + 2] + data[row + 5];
+            final int tmp5 = data[row + 2] - data[row + 5];
+            final int tmp3 = data[row + 3] + data[row + 4];
+            final int tmp4 = data[row + 3] - data[row + 4];
+
+            final int tmp10 = tmp0 + tmp3;
+            final int tmp13 = tmp0 - tmp3;
+            final int tmp11 = tmp1 + tmp2;
+            final int tmp12 = tmp1 - tmp2;
+
+            data[row] = (tmp10 + tmp11) << PASS1_BITS;
+            data[row + 4] = (tmp10 - tmp11) << PASS1_BITS;
+
+            final int z1 = (tmp12 + tmp13) * FIX_0_541196100;
+            data[row + 2] = descale(z1 + tmp13 * FIX_0_765366865, CONST_BITS - PASS1_BITS);
+            data[row + 6] = descale(z1 - tmp12 * FIX_1_847759065, CONST_BITS - PASS1_BITS);
+
+            oddPart(data, row, 1, tmp4, tmp5, tmp6, tmp7, CONST_BITS - PASS1_BITS);
+        }
+
+        for (int column = 0; column < 8; column++) {
+            final int tmp0 = data[column] + data[column + 56];
+            final int tmp7 = data[column] - data[column + 56];
+            final int tmp1 = data[column + 8] + data[column + 48];
+            final int tmp6 = data[column + 8] - data[column + 48];
+            final int tmp2 = data[column + 16] + data[column + 40];
+            final int tmp5 = data[column + 16] - data[column + 40];
+            final int tmp3 = data[column + 24] + data[column + 32];
+            final int tmp4 = data[column + 24] - data[column + 32];
+
+            final int tmp10 = tmp0 + tmp3;
+            final int tmp13 = tmp0 - tmp3;
+            final int tmp11 = tmp1 + tmp2;
+            final int tmp12 = tmp1 - tmp2;
+
+            data[column] = descale(tmp10 + tmp11, PASS1_BITS);
+            data[column + 32] = descale(tmp10 - tmp11, PASS1_BITS);
+
+            final int z1 = (tmp12 + tmp13) * FIX_0_541196100;
+            data[column + 16] = descale(z1 + tmp13 * FIX_0_765366865, CONST_BITS + PASS1_BITS);
+            data[column + 48] = descale(z1 - tmp12 * FIX_1_847759065, CONST_BITS + PASS1_BITS);
+
+            oddPart(data, column, 8, tmp4, tmp5, tmp6, tmp7, CONST_BITS + PASS1_BITS);
+        }
+    }
+
+    private static void oddPart(final int[] data, final int offset, final int stride,
+                                final int tmp4, final int tmp5, final int tmp6, final int tmp7,
+                                final int shift)
+    {
+        final int z5 = (tmp4 + tmp5 + tmp6 + tmp7) * FIX_1_175875602;
+        final int z1 = -(tmp4 + tmp7) * FIX_0_899976223;
+        final int z2 = -(tmp5 + tmp6) * FIX_2_562915447;
+        final int z3 = -(tmp4 + tmp6) * FIX_1_961570560 + z5;
+        final int z4 = -(tmp5 + tmp7) * FIX_0_390180644 + z5;
+
+        data[offset + 7 * stride] = descale(tmp4 * FIX_0_298631336 + z1 + z3, shift);
+        data[offset + 5 * stride] = descale(tmp5 * FIX_2_053119869 + z2 + z4, shift);
+        data[offset + 3 * stride] = descale(tmp6 * FIX_3_072711026 + z2 + z3, shift);
+        data[offset + stride] = descale(tmp7 * FIX_1_501321110 + z1 + z4, shift);
+    }
+
+    private static int descale(final int x, final int n)
+    {
+        return (x + (1 << (n - 1))) >> n;
+    }
+
+    private void writeBits(final int bits, final int size) throws IOException
+    {
+        // At most 7 bits are pending on entry, so 16 more still fit.
+        bitBuffer = (bitBuffer << size) | (bits & ((1 << size) - 1));
+        bitCount += size;
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            final int b = (bitBuffer >>> bitCount) & 0xff;
+            writeByte(b);
+            if (b == 0xff) {
+                writeByte(0); // byte stuffing
+            }
+        }
+    }
+
+    private void writeMarker(final int marker, final int length) throws IOException
+    {
+        writeByte(0xff);
+        writeByte(marker);
+        writeShort(length);
+    }
+
+    private void writeShort(final int value) throws IOException
+    {
+        writeByte(value >> 8);
+        writeByte(value);
+    }
+
+    private void writeBytes(final byte[] bytes) throws IOException
+    {
+        for (final byte b : bytes) {
+            writeByte(b);
+        }
+    }
+
+    private void writeByte(final int b) throws IOException
+    {
+        if (bufferPosition == buffer.length) {
+            flushBuffer();
+        }
+        buffer[bufferPosition++] = (byte) b;
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        out.write(buffer, 0, bufferPosition);
+        bufferPosition = 0;
+    }
+
+    /** A Huffman table of Annex K expanded into code and length per symbol. */
+    private static final class HuffmanTable
+    {
+        private final int classAndId;
+        private final int[] bits;
+        private final int[] values;
+        private final int[] codes = new int[256];
+        private final int[] sizes = new int[256];
+
+        private HuffmanTable(final int classAndId, final int[] bits, final int[] values)
+        {
+            this.classAndId = classAndId;
+            this.bits = bits;
+            this.values = values;
+
+            // Canonical codes, Annex C.
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    codes[values[k]] = code;
+                    sizes[values[k]] = length;
+                    code++;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+
+        private int segmentLength()
+        {
+            return 1 + bits.length + values.length;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.kseek.camjpeg.codec;
+
+/**
+ * Detects motion from the luma plane of NV21 frames. Only a grid of
+ * samples, one every {@code step} pixels in each direction, is read, so a
+ * VGA frame costs under five thousand byte loads at the default step.
+ * <p>
+ * Each sample is compared with a slowly adapting background rather than
+ * with the previous frame, so that slow movement accumulates into a
+ * difference instead of hiding below the threshold from frame to frame.
+ * The mean difference over the grid is taken out first: an exposure change
+ * shifts every sample alike and is not motion. A frame shows motion when
+ * more than the given share of samples differ by more than the threshold.
+ * <p>
+ * Not thread safe, feed it frames from one thread.
+ */
+public final class MotionDetector
+{
+    /** Sample spacing in pixels. */
+    public static final int DEFAULT_STEP = 8;
+
+    /** Luma difference from the background that counts a sample as changed. */
+    public static final int DEFAULT_THRESHOLD = 24;
+
+    /** Changed samples, in thousandths of the grid, that make a frame show motion. */
+    public static final int DEFAULT_AREA_PERMILLE = 4;
+
+    /** The background keeps 1 - 1/2^BACKGROUND_SHIFT of itself per frame. */
+    private static final int BACKGROUND_SHIFT = 3;
+
+    /** Fixed point fraction bits of the background values. */
+    private static final int FRACTION_BITS = 4;
+
+    private final int frameWidth;
+    private final int step;
+    private final int threshold;
+    private final int columns;
+    private final int rows;
+    private final int minChanged;
+    private final int[] background;
+    private final int[] samples;
+    private boolean primed = false;
+    private int changed = 0;
+
+    public MotionDetector(final int frameWidth, final int frameHeight)
+    {
+        this(frameWidth, frameHeight, DEFAULT_STEP, DEFAULT_THRESHOLD, DEFAULT_AREA_PERMILLE);
+    }
+
+    public MotionDetector(final int frameWidth, final int frameHeight, final int step,
+                          final int threshold, final int areaPermille)
+    {
+        super();
+
+        if (frameWidth < step || frameHeight < step || step < 1) {
+            throw new IllegalArgumentException("frame smaller than the sample step");
+        }
+
+        this.frameWidth = frameWidth;
+        this.step = step;
+        this.threshold = threshold;
+        columns = frameWidth / step;
+        rows = frameHeight / step;
+        minChanged = Math.max(1, columns * rows * areaPermille / 1000);
+        background = new int[columns * rows];
+        samples = new int[columns * rows];
+    }
+
+    /**
+     * Samples the luma plane of the frame, updates the background and
+     * returns whether the frame shows motion. The first frame only primes
+     * the background and never does.
+     */
+    public boolean detect(final byte[] nv21)
+    {
+        // Sample, centred in each cell, and sum the differences.
+        final int offset = step >> 1;
+        long sum = 0L;
+        int i = 0;
+        for (int row = 0; row < rows; row++) {
+            int p = (row * step + offset) * frameWidth + offset;
+            for (int column = 0; column < columns; column++) {
+                final int sample = (nv21[p] & 0xff) << FRACTION_BITS;
+                samples[i] = sample;
+                sum += sample - background[i];
+                p += step;
+                i++;
+            }
+        }
+
+        if (!primed) {
+            System.arraycopy(samples, 0, background, 0, samples.length);
+            primed = true;
+            changed = 0;
+            return false;
+        }
+
+        final int shift = (int) (sum / samples.length);
+        final int limit = threshold << FRACTION_BITS;
+        int count = 0;
+        for (i = 0; i < samples.length; i++) {
+            final int difference = samples[i] - background[i];
+            final int compensated = difference - shift;
+            if (compensated > limit || compensated < -limit) {
+                count++;
+            }
+            background[i] += difference >> BACKGROUND_SHIFT;
+        }
+        changed = count;
+        return count >= minChanged;
+    }
+
+    /** Samples that differed from the background in the last frame. */
+    public int getChangedSamples()
+    {
+        return changed;
+    }
+
+    /** Samples in the grid. */
+    public int getSamples()
+    {
+        return samples.length;
+    }
+
+    /** Forgets the background, the next frame primes it again. */
+    public void reset()
+    {
+        primed = false;
+    }
+}
@@ -0,0 +1,122 @@
+package com.kseek.camjpeg.codec;
+
+/**
+ * Downscales NV21 frames by a power of two with a box filter, averaging
+ * each factor x factor block of luma and of interleaved chroma samples.
+ * The output keeps the NV21 layout, so it can go to any {@link FrameEncoder}.
+ */
+public final class Nv21Scaler
+{
+    private Nv21Scaler()
+    {
+        super();
+    }
+
+    /** The width or height of a frame of the given size scaled down by factor, even. */
+    public static int scaledSize(final int size, final int factor)
+    {
+        return (size / factor) & ~1;
+    }
+
+    /** The bytes needed for a width x height NV21 frame. */
+    public static int frameBytes(final int width, final int height)
+    {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Scales the rectangle at (left, top) of width x height pixels of an
+     * NV21 frame down by factor, a power of two, into dst, which must hold
+     * {@link #frameBytes} of the scaled size. Odd left and top coordinates
+     * are rounded down to the chroma grid.
+     */
+    public static void scale(final byte[] src, final int frameWidth, final int frameHeight,
+                             final int left, final int top, final int width, final int height,
+                             final int factor, final byte[] dst)
+    {
+        if (factor < 1 || (factor & (factor - 1)) != 0) {
+            throw new IllegalArgumentException("factor must be a power of two");
+        }
+        final int x0 = left & ~1;
+        final int y0 = top & ~1;
+        if (x0 < 0 || y0 < 0 || x0 + width > frameWidth || y0 + height > frameHeight) {
+            throw new IllegalArgumentException("rectangle outside the frame");
+        }
+
+        final int outWidth = scaledSize(width, factor);
+        final int outHeight = scaledSize(height, factor);
+        final int shift = Integer.numberOfTrailingZeros(factor);
+
+        // Luma.
+        if (factor == 2) {
+            halveLuma(src, frameWidth, x0, y0, dst, outWidth, outHeight);
+        }
+        else {
+            boxLuma(src, frameWidth, x0, y0, factor, shift, dst, outWidth, outHeight);
+        }
+
+        // Chroma, V and U pairs at half resolution.
+        final int srcChroma = frameWidth * frameHeight + (y0 >> 1) * frameWidth + x0;
+        final int dstChroma = outWidth * outHeight;
+        final int chromaWidth = outWidth >> 1;
+        final int chromaHeight = outHeight >> 1;
+        final int area = factor * factor;
+        final int half = area >> 1;
+        for (int y = 0; y < chromaHeight; y++) {
+            int out = dstChroma + y * outWidth;
+            final int rowBase = srcChroma + y * factor * frameWidth;
+            for (int x = 0; x < chromaWidth; x++) {
+                int v = 0;
+                int u = 0;
+                int row = rowBase + x * factor * 2;
+                for (int j = 0; j < factor; j++) {
+                    int p = row;
+                    for (int i = 0; i < factor; i++) {
+                        v += src[p] & 0xff;
+                        u += src[p + 1] & 0xff;
+                        p += 2;
+                    }
+                    row += frameWidth;
+                }
+                dst[out++] = (byte) ((v + half) >> (shift * 2));
+                dst[out++] = (byte) ((u + half) >> (shift * 2));
+            }
+        }
+    }
+
+    private static void halveLuma(final byte[] src, final int stride, final int x0, final int y0,
+                                  final byte[] dst, final int outWidth, final int outHeight)
+    {
+        int out = 0;
+        for (int y = 0; y < outHeight; y++) {
+            int p = (y0 + 2 * y) * stride + x0;
+            for (int x = 0; x < outWidth; x++) {
+                dst[out++] = (byte) (((src[p] & 0xff) + (src[p + 1] & 0xff)
+                        + (src[p + stride] & 0xff) + (src[p + stride + 1] & 0xff) + 2) >> 2);
+                p += 2;
+            }
+        }
+    }
+
+    private static void boxLuma(final byte[] src, final int stride, final int x0, final int y0,
+                                final int factor, final int shift,
+                                final byte[] dst, final int outWidth, final int outHeight)
+    {
+        final int half = (factor * factor) >> 1;
+        int out = 0;
+        for (int y = 0; y < outHeight; y++) {
+            final int rowBase = (y0 + y * factor) * stride + x0;
+            for (int x = 0; x < outWidth; x++) {
+                int sum = 0;
+                int row = rowBase + x * factor;
+                for (int j = 0; j < factor; j++) {
+                    for (int i = 0; i < factor; i++) {
+                        sum += src[row + i] & 0xff;
+                    }
+                    row += stride;
+                }
+                dst[out++] = (byte) ((sum + half) >> (shift * 2));
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.kseek.camjpeg.codec;
+
+/**
+ * A coarse fingerprint of the luma plane of an NV21 frame: the mean of
+ * every 16 x 16 tile, taken from a 4 pixel grid of samples. Two frames
+ * whose tiles all agree within a tolerance look the same once compressed,
+ * so the JPEG of the first can stand in for the second. Comparing tile
+ * means rather than exact hashes lets sensor noise through, while a change
+ * confined to a single tile still shows. When the frame is not a multiple
+ * of the tile size, the last column and row of tiles are moved in to end at
+ * its edge, overlapping their neighbours, so that every pixel is covered.
+ * <p>
+ * Used by the thread that owns the fingerprint only.
+ */
+public final class TileFingerprint
+{
+    /** Tile size in pixels. */
+    public static final int TILE = 16;
+
+    /** Largest difference of a tile mean, in luma levels, that still counts as unchanged. */
+    public static final int DEFAULT_TOLERANCE = 6;
+
+    private static final int SAMPLE_STEP = 4;
+    private static final int SAMPLES_SHIFT = 4; // (TILE / SAMPLE_STEP)^2 = 16 samples
+
+    private final int frameWidth;
+    // Where the last column and row of tiles start.
+    private final int lastLeft;
+    private final int lastTop;
+    private final int columns;
+    private final int rows;
+    private final int[] tiles;
+    private boolean valid = false;
+
+    public TileFingerprint(final int frameWidth, final int frameHeight)
+    {
+        super();
+
+        if (frameWidth < TILE || frameHeight < TILE) {
+            throw new IllegalArgumentException("frame smaller than a tile");
+        }
+
+        this.frameWidth = frameWidth;
+        lastLeft = frameWidth - TILE;
+        lastTop = frameHeight - TILE;
+        columns = (frameWidth + TILE - 1) / TILE;
+        rows = (frameHeight + TILE - 1) / TILE;
+        tiles = new int[columns * rows];
+    }
+
+    /** Fingerprints the luma plane of the frame. */
+    public void compute(final byte[] nv21)
+    {
+        final int offset = SAMPLE_STEP >> 1;
+        for (int row = 0; row < rows; row++) {
+            final int tileBase = row * columns;
+            for (int column = 0; column < columns; column++) {
+                tiles[tileBase + column] = 0;
+            }
+            final int top = Math.min(row * TILE, lastTop);
+            for (int y = top + offset; y < top + TILE; y += SAMPLE_STEP) {
+                final int line = y * frameWidth + offset;
+                for (int column = 0; column < columns; column++) {
+                    final int p = line + Math.min(column * TILE, lastLeft);
+                    tiles[tileBase + column] += (nv21[p] & 0xff)
+                            + (nv21[p + SAMPLE_STEP] & 0xff)
+                            + (nv21[p + 2 * SAMPLE_STEP] & 0xff)
+                            + (nv21[p + 3 * SAMPLE_STEP] & 0xff);
+                }
+            }
+        }
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] >>= SAMPLES_SHIFT;
+        }
+        valid = true;
+    }
+
+    /** Makes this a copy of another fingerprint of a frame of the same size. */
+    public void copyFrom(final TileFingerprint other)
+    {
+        System.arraycopy(other.tiles, 0, tiles, 0, tiles.length);
+        valid = other.valid;
+    }
+
+    /**
+     * Whether every tile touching the rectangle, the whole frame if width is
+     * 0, differs from the other fingerprint by at most tolerance.
+     */
+    public boolean matches(final TileFingerprint other, final int tolerance, final int left,
+                           final int top, final int width, final int height)
+    {
+        if (!valid || !other.valid || other.tiles.length != tiles.length) {
+            return false;
+        }
+        int firstColumn = 0;
+        int firstRow = 0;
+        int endColumn = columns;
+        int endRow = rows;
+        if (width > 0) {
+            firstColumn = Math.min(left / TILE, columns - 1);
+            firstRow = Math.min(top / TILE, rows - 1);
+            endColumn = Math.max(firstColumn + 1, Math.min(columns, (left + width + TILE - 1) / TILE));
+            endRow = Math.max(firstRow + 1, Math.min(rows, (top + height + TILE - 1) / TILE));
+        }
+        for (int row = firstRow; row < endRow; row++) {
+            for (int i = row * columns + firstColumn; i < row * columns + endColumn; i++) {
+                final int difference = tiles[i] - other.tiles[i];
+                if (difference > tolerance || difference < -tolerance) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,29 @@
+package com.kseek.camjpeg.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Monotonic event counter, safe to bump from any thread without locking. */
+public final class Counter
+{
+    private final AtomicLong count = new AtomicLong();
+
+    public Counter()
+    {
+        super();
+    }
+
+    public void increment()
+    {
+        count.incrementAndGet();
+    }
+
+    public void add(final long delta)
+    {
+        count.addAndGet(delta);
+    }
+
+    public long get()
+    {
+        return count.get();
+    }
+}
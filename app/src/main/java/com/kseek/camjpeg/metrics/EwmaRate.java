@@ -0,0 +1,77 @@
+package com.kseek.camjpeg.metrics;
+
+/**
+ * Exponentially weighted rate of an amount per second, e.g. bytes or
+ * frames. Every amount is weighted by how long ago it was recorded, so
+ * irregular updates are averaged over time rather than over samples, and
+ * the rate falls towards zero on its own once updates stop. The first
+ * update only starts the clock; the rate is corrected for the time since
+ * then, so it is right from the second update on rather than ramping up
+ * over a whole window.
+ * <p>
+ * Updated by one thread at a time, read from any without locking. A read
+ * racing an update may mix the two by the amount recorded meanwhile.
+ */
+public final class EwmaRate
+{
+    private final static double NANOS_PER_SECOND = 1e9;
+
+    private final double windowNanos;
+
+    private boolean started = false;
+    // Written by the updating thread only, volatile so that get() can be
+    // called from any thread.
+    private volatile long startNanos = 0L;
+    private volatile long lastNanos = 0L;
+    /** Sum of the amounts recorded, each decayed to lastNanos. */
+    private volatile double decayedSum = 0.0;
+
+    /** @param windowNanos the time constant: older amounts weigh 1/e less per window */
+    public EwmaRate(final long windowNanos)
+    {
+        super();
+
+        if (windowNanos <= 0L) {
+            throw new IllegalArgumentException("windowNanos must be positive");
+        }
+
+        this.windowNanos = windowNanos;
+    }
+
+    /** Records an amount at the given time, from {@link System#nanoTime()}. */
+    public void update(final long amount, final long nanos)
+    {
+        if (!started) {
+            started = true;
+            startNanos = nanos;
+            lastNanos = nanos;
+            return;
+        }
+        final long elapsed = Math.max(0L, nanos - lastNanos);
+        decayedSum = decayedSum * Math.exp(-elapsed / windowNanos) + amount;
+        lastNanos = Math.max(lastNanos, nanos);
+    }
+
+    /** The rate per second now, 0 before two updates. */
+    public double get()
+    {
+        return get(System.nanoTime());
+    }
+
+    /** The rate per second at the given time, from {@link System#nanoTime()}. */
+    public double get(final long nanos)
+    {
+        final long start = startNanos;
+        final long last = lastNanos;
+        final double sum = decayedSum;
+        final long sinceStart = nanos - start;
+        if (sum == 0.0 || sinceStart <= 0L) {
+            return 0.0;
+        }
+        // Amounts decay from when they were recorded, and only time since
+        // the start counts towards the window.
+        final double decayed = sum * Math.exp(-Math.max(0L, nanos - last) / windowNanos);
+        final double weight = 1.0 - Math.exp(-sinceStart / windowNanos);
+        return decayed * NANOS_PER_SECOND / (windowNanos * weight);
+    }
+}
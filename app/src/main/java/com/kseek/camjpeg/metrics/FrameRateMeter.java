@@ -0,0 +1,38 @@
+package com.kseek.camjpeg.metrics;
+
+/**
+ * Frames per second from nanosecond frame times, smoothed over a time
+ * window, see {@link EwmaRate}. The first frame starts the clock, so a
+ * stream of frames exactly 1/30 s apart reads 30 from the second one on.
+ * <p>
+ * Recorded by one thread at a time, read from any without locking.
+ */
+public final class FrameRateMeter
+{
+    private final EwmaRate rate;
+
+    /** @param windowNanos how long a frame keeps weighing in, see {@link EwmaRate} */
+    public FrameRateMeter(final long windowNanos)
+    {
+        super();
+        rate = new EwmaRate(windowNanos);
+    }
+
+    /** Counts a frame at the given time, from {@link System#nanoTime()}. */
+    public void record(final long frameNanos)
+    {
+        rate.update(1L, frameNanos);
+    }
+
+    /** The frame rate now, falling once frames stop coming. */
+    public double getFramesPerSecond()
+    {
+        return rate.get();
+    }
+
+    /** The frame rate at the given time, from {@link System#nanoTime()}. */
+    public double getFramesPerSecond(final long nanos)
+    {
+        return rate.get(nanos);
+    }
+}
@@ -0,0 +1,29 @@
+package com.kseek.camjpeg.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Last reported value of a level, e.g. a queue depth, readable from any thread. */
+public final class Gauge
+{
+    private final AtomicLong value = new AtomicLong();
+
+    public Gauge()
+    {
+        super();
+    }
+
+    public void set(final long newValue)
+    {
+        value.set(newValue);
+    }
+
+    public void add(final long delta)
+    {
+        value.addAndGet(delta);
+    }
+
+    public long get()
+    {
+        return value.get();
+    }
+}
@@ -0,0 +1,104 @@
+package com.kseek.camjpeg.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-bucket latency histogram with microsecond resolution. Buckets are
+ * powers of two split into four linear steps, so any recorded value is
+ * reported within 25% from 1us up to about a minute. Recording is one
+ * atomic increment on a preallocated array: no locks, no allocation.
+ */
+public final class LatencyHistogram
+{
+    private final static int SUB_BUCKETS = 4;
+    /** 2^26 us is about 67 s, anything above lands in the last bucket. */
+    private final static int MAX_EXPONENT = 26;
+    private final static int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - 1) * SUB_BUCKETS;
+
+    private final static long NANOS_PER_MICRO = 1000L;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public LatencyHistogram()
+    {
+        super();
+    }
+
+    public void recordNanos(final long nanos)
+    {
+        final long value = Math.max(0L, nanos);
+        buckets.incrementAndGet(bucketOf(value / NANOS_PER_MICRO));
+        count.incrementAndGet();
+        sumNanos.addAndGet(value);
+
+        long max = maxNanos.get();
+        while (value > max && !maxNanos.compareAndSet(max, value)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getSumNanos()
+    {
+        return sumNanos.get();
+    }
+
+    public long getMaxNanos()
+    {
+        return maxNanos.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given quantile
+     * (0..1), in nanoseconds, or 0 if nothing has been recorded. Concurrent
+     * recording may skew the answer by the few values recorded meanwhile.
+     */
+    public long getPercentileNanos(final double quantile)
+    {
+        final long total = count.get();
+        if (total == 0L) {
+            return 0L;
+        }
+
+        final long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundMicros(i) * NANOS_PER_MICRO, maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    static int bucketOf(final long micros)
+    {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        final int sub = (int) (micros >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, SUB_BUCKETS + (exponent - 2) * SUB_BUCKETS + sub);
+    }
+
+    static long upperBoundMicros(final int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket + 1;
+        }
+        final int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + 2;
+        final int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub + 1) << (exponent - 2);
+    }
+}
@@ -0,0 +1,235 @@
+package com.kseek.camjpeg.metrics;
+
+/**
+ * Counters of the capture, encode and delivery pipeline. Everything is
+ * updated with single atomic operations, so the hot paths can record
+ * freely while the HTTP server reads from another thread.
+ */
+public final class StreamMetrics
+{
+    /** How long a frame or byte keeps weighing in the rates. */
+    private final static long RATE_WINDOW_NANOS = 5L * 1000L * 1000L * 1000L;
+
+    private final Counter framesCaptured = new Counter();
+    private final Counter framesEncoded = new Counter();
+    private final Counter framesDropped = new Counter();
+    private final Counter framesSkipped = new Counter();
+    private final Counter framesCoalesced = new Counter();
+    private final Counter framesStatic = new Counter();
+    private final Counter framesRepeated = new Counter();
+    private final Counter motionEvents = new Counter();
+    private final Counter framesRecorded = new Counter();
+    private final Counter bytesRecorded = new Counter();
+    private final Counter framesRecordDropped = new Counter();
+    private final Counter recordingEvents = new Counter();
+    private final Counter framesSent = new Counter();
+    private final Counter bytesSent = new Counter();
+    private final Counter previewBuffersStarved = new Counter();
+    private final Gauge previewBuffers = new Gauge();
+    private final Gauge previewBuffersInUse = new Gauge();
+    private final Gauge jpegQuality = new Gauge();
+    private final Gauge encodedBitrate = new Gauge();
+    private final Gauge motionActive = new Gauge();
+    private final Gauge preEventFrames = new Gauge();
+    private final Gauge preEventBytes = new Gauge();
+    private final FrameRateMeter captureRate = new FrameRateMeter(RATE_WINDOW_NANOS);
+    private final FrameRateMeter encodeRate = new FrameRateMeter(RATE_WINDOW_NANOS);
+    private final FrameRateMeter sendRate = new FrameRateMeter(RATE_WINDOW_NANOS);
+    private final EwmaRate sendByteRate = new EwmaRate(RATE_WINDOW_NANOS);
+    private final LatencyHistogram queueTime = new LatencyHistogram();
+    private final LatencyHistogram encodeTime = new LatencyHistogram();
+    private final LatencyHistogram publishTime = new LatencyHistogram();
+    private final LatencyHistogram deliveryTime = new LatencyHistogram();
+    private final LatencyHistogram endToEndTime = new LatencyHistogram();
+
+    public StreamMetrics()
+    {
+        super();
+    }
+
+    /** Preview frames delivered by the camera. */
+    public Counter getFramesCaptured()
+    {
+        return framesCaptured;
+    }
+
+    /** Frames compressed to JPEG and published. */
+    public Counter getFramesEncoded()
+    {
+        return framesEncoded;
+    }
+
+    /** Captured frames that never got published, e.g. for lack of a frame slot. */
+    public Counter getFramesDropped()
+    {
+        return framesDropped;
+    }
+
+    /** Captured frames not encoded because no viewer wanted them, or not that soon. */
+    public Counter getFramesSkipped()
+    {
+        return framesSkipped;
+    }
+
+    /** Captured frames superseded by a newer one while waiting for an encoder. */
+    public Counter getFramesCoalesced()
+    {
+        return framesCoalesced;
+    }
+
+    /** Captured frames not encoded because the scene was static, between keep-alives. */
+    public Counter getFramesStatic()
+    {
+        return framesStatic;
+    }
+
+    /** Renditions not encoded because they matched the latest frame, which was refreshed instead. */
+    public Counter getFramesRepeated()
+    {
+        return framesRepeated;
+    }
+
+    /** Frames written to recording segments. */
+    public Counter getFramesRecorded()
+    {
+        return framesRecorded;
+    }
+
+    /** Bytes of frames and their headers written to recording segments. */
+    public Counter getBytesRecorded()
+    {
+        return bytesRecorded;
+    }
+
+    /** Frames left out of the recording because the disk fell behind or failed. */
+    public Counter getFramesRecordDropped()
+    {
+        return framesRecordDropped;
+    }
+
+    /** Triggers that started an event recording, not counting those that extended one. */
+    public Counter getRecordingEvents()
+    {
+        return recordingEvents;
+    }
+
+    /** Frames held in memory to go ahead of the next event recording. */
+    public Gauge getPreEventFrames()
+    {
+        return preEventFrames;
+    }
+
+    /** Bytes of JPEG held in memory to go ahead of the next event recording. */
+    public Gauge getPreEventBytes()
+    {
+        return preEventBytes;
+    }
+
+    /** Movements that started in front of the camera. */
+    public Counter getMotionEvents()
+    {
+        return motionEvents;
+    }
+
+    /** 1 while the scene moves and frames are encoded at full rate, 0 otherwise. */
+    public Gauge getMotionActive()
+    {
+        return motionActive;
+    }
+
+    /** MJPEG parts delivered, summed over all viewers. */
+    public Counter getFramesSent()
+    {
+        return framesSent;
+    }
+
+    /** Bytes written to all connections. */
+    public Counter getBytesSent()
+    {
+        return bytesSent;
+    }
+
+    /** Preview frames dropped at capture so the camera would not run out of buffers. */
+    public Counter getPreviewBuffersStarved()
+    {
+        return previewBuffersStarved;
+    }
+
+    /** Callback buffers allocated for the camera preview. */
+    public Gauge getPreviewBuffers()
+    {
+        return previewBuffers;
+    }
+
+    /** Callback buffers holding a frame that waits for or is being encoded. */
+    public Gauge getPreviewBuffersInUse()
+    {
+        return previewBuffersInUse;
+    }
+
+    /** The JPEG quality the full frame is currently encoded with, each rendition has its own. */
+    public Gauge getJpegQuality()
+    {
+        return jpegQuality;
+    }
+
+    /** Smoothed bits per second coming out of the encoders, all renditions together. */
+    public Gauge getEncodedBitrate()
+    {
+        return encodedBitrate;
+    }
+
+    /** Preview frames per second delivered by the camera. */
+    public FrameRateMeter getCaptureRate()
+    {
+        return captureRate;
+    }
+
+    /** Captured frames per second that were encoded, in any rendition, and published. */
+    public FrameRateMeter getEncodeRate()
+    {
+        return encodeRate;
+    }
+
+    /** MJPEG parts per second delivered, summed over all viewers. */
+    public FrameRateMeter getSendRate()
+    {
+        return sendRate;
+    }
+
+    /** Bytes per second written to all connections. */
+    public EwmaRate getSendByteRate()
+    {
+        return sendByteRate;
+    }
+
+    /** Capture callback to the encoder picking the frame up. */
+    public LatencyHistogram getQueueTime()
+    {
+        return queueTime;
+    }
+
+    /** Time spent compressing one frame. */
+    public LatencyHistogram getEncodeTime()
+    {
+        return encodeTime;
+    }
+
+    /** End of compression to the frame being handed to the viewers. */
+    public LatencyHistogram getPublishTime()
+    {
+        return publishTime;
+    }
+
+    /** Publication to the last byte written, once per viewer and frame. */
+    public LatencyHistogram getDeliveryTime()
+    {
+        return deliveryTime;
+    }
+
+    /** Capture callback to the last byte written, once per viewer and frame. */
+    public LatencyHistogram getEndToEndTime()
+    {
+        return endToEndTime;
+    }
+}
@@ -0,0 +1,91 @@
+package com.kseek.camjpeg.net.http;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A shared pool of fixed-size buffers, heap or direct, that
+ * {@link ChunkedOutputStream}s grow by. Chunks are allocated on first
+ * demand, up to a limit, and kept for reuse once released, so memory
+ * follows the frames actually encoded rather than the worst case.
+ * <p>
+ * Chunks are known by their index in the pool, which lets every reader
+ * keep one view per chunk instead of allocating views per frame. Thread
+ * safe.
+ */
+public final class ChunkPool
+{
+    public static final int DEFAULT_CHUNK_BYTES = 64 * 1024;
+
+    private final int chunkBytes;
+    private final boolean direct;
+    // Guarded by this, as are the free list and allocated count.
+    private final ByteBuffer[] chunks;
+    private final int[] free;
+    private int freeCount = 0;
+    private int allocated = 0;
+
+    /**
+     * @param maxChunks the most chunks ever allocated, beyond which writes fail
+     * @param direct    whether chunks live outside the Java heap, which
+     *                  saves a copy when they are written to a socket
+     */
+    public ChunkPool(final int chunkBytes, final int maxChunks, final boolean direct)
+    {
+        super();
+
+        if (chunkBytes < 1 || maxChunks < 1) {
+            throw new IllegalArgumentException("chunk size and count must be positive");
+        }
+
+        this.chunkBytes = chunkBytes;
+        this.direct = direct;
+        chunks = new ByteBuffer[maxChunks];
+        free = new int[maxChunks];
+    }
+
+    public int getChunkBytes()
+    {
+        return chunkBytes;
+    }
+
+    /** The most chunks the pool hands out, and one more than the largest index. */
+    public int getCapacity()
+    {
+        return chunks.length;
+    }
+
+    /** Chunks allocated so far, in use or free. */
+    public synchronized int getAllocatedChunks()
+    {
+        return allocated;
+    }
+
+    /** Takes a chunk and returns its index, or -1 when all are in use. */
+    synchronized int acquire()
+    {
+        if (freeCount > 0) {
+            return free[--freeCount];
+        }
+        if (allocated == chunks.length) {
+            return -1;
+        }
+        chunks[allocated] = direct
+                ? ByteBuffer.allocateDirect(chunkBytes)
+                : ByteBuffer.allocate(chunkBytes);
+        return allocated++;
+    }
+
+    synchronized void release(final int index)
+    {
+        free[freeCount++] = index;
+    }
+
+    /**
+     * The chunk with the given index. Its position and limit belong to the
+     * stream that holds it; readers take a duplicate.
+     */
+    synchronized ByteBuffer chunk(final int index)
+    {
+        return chunks[index];
+    }
+}
@@ -0,0 +1,137 @@
+package com.kseek.camjpeg.net.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An output stream that grows by chunks from a {@link ChunkPool}, so it
+ * never copies what it already holds and needs no size up front. The
+ * contents are read as a sequence of buffers, suited to gathering writes,
+ * see {@link #getBuffers}, and the chunks go back to the pool on
+ * {@link #reset}.
+ * <p>
+ * Written by one thread at a time. Once writing is done, and the stream
+ * handed over with a happens-before edge, any number of threads may read
+ * it through their own views.
+ */
+public final class ChunkedOutputStream extends OutputStream
+{
+    private final ChunkPool pool;
+    private final int chunkBytes;
+    private int[] chunkIds = new int[4];
+    private int chunkCount = 0;
+    private int length = 0;
+    // The last chunk, which writes go to; null until the first write.
+    private ByteBuffer current = null;
+
+    public ChunkedOutputStream(final ChunkPool pool)
+    {
+        super();
+        this.pool = pool;
+        chunkBytes = pool.getChunkBytes();
+    }
+
+    @Override
+    public void write(final int oneByte) throws IOException
+    {
+        if (current == null || !current.hasRemaining()) {
+            nextChunk();
+        }
+        current.put((byte) oneByte);
+        length++;
+    }
+
+    @Override
+    public void write(final byte[] bytes, final int offset, final int count) throws IOException
+    {
+        int written = 0;
+        while (written < count) {
+            if (current == null || !current.hasRemaining()) {
+                nextChunk();
+            }
+            final int part = Math.min(count - written, current.remaining());
+            current.put(bytes, offset + written, part);
+            written += part;
+            length += part;
+        }
+    }
+
+    /** Takes another chunk from the pool; fails if the pool is exhausted. */
+    private void nextChunk() throws IOException
+    {
+        final int id = pool.acquire();
+        if (id < 0) {
+            throw new IOException("chunk pool exhausted");
+        }
+        if (chunkCount == chunkIds.length) {
+            chunkIds = Arrays.copyOf(chunkIds, chunkCount * 2);
+        }
+        chunkIds[chunkCount++] = id;
+        current = pool.chunk(id);
+        current.clear();
+    }
+
+    public int getLength()
+    {
+        return length;
+    }
+
+    /** Chunks holding the contents, as many as {@link #getBuffers} fills in. */
+    public int getChunkCount()
+    {
+        return chunkCount;
+    }
+
+    /**
+     * Puts views of the contents into buffers from offset on, positioned at
+     * their start, and returns how many. views is the caller's own cache,
+     * {@link ChunkPool#getCapacity} long, of one view per chunk of the pool,
+     * filled in on first use, so that steady use allocates nothing and two
+     * callers never move each other's positions.
+     */
+    public int getBuffers(final ByteBuffer[] views, final ByteBuffer[] buffers, final int offset)
+    {
+        for (int i = 0; i < chunkCount; i++) {
+            final int id = chunkIds[i];
+            ByteBuffer view = views[id];
+            if (view == null) {
+                view = pool.chunk(id).duplicate();
+                views[id] = view;
+            }
+            view.clear();
+            view.limit(i == chunkCount - 1 ? length - i * chunkBytes : chunkBytes);
+            buffers[offset + i] = view;
+        }
+        return chunkCount;
+    }
+
+    /**
+     * Copies the contents into dst, which must have room for them. Uses the
+     * chunks themselves, so only the thread that wrote the stream, or the
+     * one it was handed to, may call it.
+     */
+    public void copyTo(final ByteBuffer dst)
+    {
+        for (int i = 0; i < chunkCount; i++) {
+            final ByteBuffer chunk = pool.chunk(chunkIds[i]);
+            final int position = chunk.position();
+            chunk.flip();
+            dst.put(chunk);
+            chunk.limit(chunk.capacity());
+            chunk.position(position);
+        }
+    }
+
+    /** Returns every chunk to the pool and empties the stream. */
+    public void reset()
+    {
+        for (int i = 0; i < chunkCount; i++) {
+            pool.release(chunkIds[i]);
+        }
+        chunkCount = 0;
+        length = 0;
+        current = null;
+    }
+}
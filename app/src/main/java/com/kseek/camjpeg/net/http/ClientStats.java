@@ -0,0 +1,69 @@
+package com.kseek.camjpeg.net.http;
+
+/** Point-in-time flow control figures of one streaming viewer. */
+public final class ClientStats
+{
+    private final String remoteAddress;
+    private final long framesSent;
+    private final long framesDropped;
+    private final long bytesSent;
+    private final long drainBytesPerSecond;
+    private final long lagMillis;
+    private final long maxLagMillis;
+
+    ClientStats(final String remoteAddress,
+                final long framesSent,
+                final long framesDropped,
+                final long bytesSent,
+                final long drainBytesPerSecond,
+                final long lagMillis,
+                final long maxLagMillis)
+    {
+        super();
+        this.remoteAddress = remoteAddress;
+        this.framesSent = framesSent;
+        this.framesDropped = framesDropped;
+        this.bytesSent = bytesSent;
+        this.drainBytesPerSecond = drainBytesPerSecond;
+        this.lagMillis = lagMillis;
+        this.maxLagMillis = maxLagMillis;
+    }
+
+    public String getRemoteAddress()
+    {
+        return remoteAddress;
+    }
+
+    public long getFramesSent()
+    {
+        return framesSent;
+    }
+
+    /** Frames published while this viewer was still busy with an older one. */
+    public long getFramesDropped()
+    {
+        return framesDropped;
+    }
+
+    public long getBytesSent()
+    {
+        return bytesSent;
+    }
+
+    /** Smoothed rate at which the viewer's socket has been accepting data. */
+    public long getDrainBytesPerSecond()
+    {
+        return drainBytesPerSecond;
+    }
+
+    /** Time from publication to the last byte of the most recent frame sent. */
+    public long getLagMillis()
+    {
+        return lagMillis;
+    }
+
+    public long getMaxLagMillis()
+    {
+        return maxLagMillis;
+    }
+}
@@ -0,0 +1,25 @@
+package com.kseek.camjpeg.net.http;
+
+import java.io.IOException;
+
+/**
+ * Recorded frames that can be replayed from any point in time, served by
+ * {@link MJpegHttpStreamer#REPLAY_PATH}. See
+ * {@link MJpegHttpStreamer#setFrameArchive}.
+ */
+public interface FrameArchive
+{
+    /**
+     * Returns a cursor on the first frame recorded at or after the given
+     * wall clock time, or null if there is none. Called on the streamer's
+     * replay thread, never on the selector, so it may wait for the disk,
+     * though a viewer waits for it too.
+     */
+    FrameCursor seek(long millis) throws IOException;
+
+    /**
+     * Whether frames are still being added. A replay that has caught up
+     * with the recording then waits for the next frame rather than end.
+     */
+    boolean isRecording();
+}
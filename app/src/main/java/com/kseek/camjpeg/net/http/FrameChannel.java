@@ -0,0 +1,206 @@
+package com.kseek.camjpeg.net.http;
+
+import com.kseek.camjpeg.metrics.FrameRateMeter;
+
+/**
+ * One rendition of the camera stream: a region of the preview, the whole
+ * frame unless a crop is given, scaled down by a power of two. Each channel
+ * has its own latest frame and sequence, and its own demand: the encoder
+ * only produces a rendition somebody is watching, and clients asking for
+ * the same rendition share its frames.
+ * <p>
+ * The encoder asks {@link #takeFrameDemand} for every frame it can take, then
+ * crops and scales it as described here and publishes it to this channel.
+ * The crop is in preview pixels; the encoder clips it to the frame with
+ * {@link #clipLeft} and the like.
+ */
+public final class FrameChannel
+{
+    /** {@link #demandIntervalNanos} while nobody wants frames. */
+    final static long NO_DEMAND = -1L;
+
+    final static FrameListener[] NO_LISTENERS = new FrameListener[0];
+
+    private final static long RATE_WINDOW_NANOS = 1000L * 1000L * 1000L;
+
+    private final String name;
+    private final int left;
+    private final int top;
+    private final int width;
+    private final int height;
+    private final int scale;
+
+    // Guarded by the streamer's bufferLock. The channel holds one reference
+    // to its latest frame; once closed it takes no more frames. The frame is
+    // fresh as of refreshedNanos, when it was published or last confirmed
+    // to still show the scene.
+    JpegFrame latestFrame = null;
+    long latestSequence = 0L;
+    long refreshedNanos = 0L;
+    boolean closed = false;
+    // Frames published per second, recorded under bufferLock.
+    final FrameRateMeter publishRate = new FrameRateMeter(RATE_WINDOW_NANOS);
+    // Replaced, never modified, under bufferLock. A channel with listeners
+    // wants every frame.
+    volatile FrameListener[] listeners = NO_LISTENERS;
+
+    // The shortest frame interval any client of this channel asks for, 0 for
+    // every frame or NO_DEMAND. Written by the selector thread.
+    volatile long demandIntervalNanos = NO_DEMAND;
+    // See getCongestedDrainRate(). Written by the selector thread.
+    volatile long congestedDrainRate = 0L;
+    // Only used by the thread calling takeFrameDemand().
+    private final FramePacer demandPacer = new FramePacer();
+    private Object attachment = null;
+
+    /** A rendition of the whole frame. */
+    FrameChannel(final String name, final int scale)
+    {
+        this(name, 0, 0, 0, 0, scale);
+    }
+
+    FrameChannel(final String name, final int left, final int top, final int width,
+                 final int height, final int scale)
+    {
+        super();
+        this.name = name;
+        this.left = left;
+        this.top = top;
+        this.width = width;
+        this.height = height;
+        this.scale = scale;
+    }
+
+    /** The name clients select this channel by. */
+    public String getName()
+    {
+        return name;
+    }
+
+    /** Whether the channel covers the whole frame rather than a crop. */
+    public boolean isFullFrame()
+    {
+        return width == 0;
+    }
+
+    public int getLeft()
+    {
+        return left;
+    }
+
+    public int getTop()
+    {
+        return top;
+    }
+
+    /** The crop width, 0 for the whole frame. */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /** The crop height, 0 for the whole frame. */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /** The divisor of the cropped width and height, a power of two. */
+    public int getScale()
+    {
+        return scale;
+    }
+
+    /**
+     * Returns the bytes per second of this rendition that the slowest of its
+     * streaming viewers losing frames because its link cannot keep up could
+     * take, or 0 if every viewer keeps up. A viewer with an fps limit only
+     * gets some of the channel's frames, so it can take a higher rate than
+     * its link's. The encoder can lower the channel's output towards this.
+     */
+    public long getCongestedDrainRate()
+    {
+        return congestedDrainRate;
+    }
+
+    /**
+     * The left edge of the region to encode from a frame of the given width:
+     * the crop's, clipped to the frame on the chroma grid.
+     */
+    public int clipLeft(final int frameWidth)
+    {
+        return isFullFrame() ? 0 : Math.min(left, frameWidth - 2) & ~1;
+    }
+
+    /** The top edge of the region to encode, see {@link #clipLeft}. */
+    public int clipTop(final int frameHeight)
+    {
+        return isFullFrame() ? 0 : Math.min(top, frameHeight - 2) & ~1;
+    }
+
+    /** The width of the region to encode, the crop's up to the frame's edge. */
+    public int clipWidth(final int frameWidth)
+    {
+        return isFullFrame() ? frameWidth
+                : Math.min(width, frameWidth - clipLeft(frameWidth)) & ~1;
+    }
+
+    /** The height of the region to encode, see {@link #clipWidth}. */
+    public int clipHeight(final int frameHeight)
+    {
+        return isFullFrame() ? frameHeight
+                : Math.min(height, frameHeight - clipTop(frameHeight)) & ~1;
+    }
+
+    /**
+     * The divisor to scale a region of the given size by: the channel's,
+     * reduced if it would leave less than 2 x 2 pixels.
+     */
+    public int scaleFor(final int regionWidth, final int regionHeight)
+    {
+        int divisor = scale;
+        while (divisor > 1 && (regionWidth / divisor < 2 || regionHeight / divisor < 2)) {
+            divisor >>= 1;
+        }
+        return divisor;
+    }
+
+    boolean matches(final int left, final int top, final int width, final int height,
+                    final int scale)
+    {
+        return this.left == left && this.top == top && this.width == width
+                && this.height == height && this.scale == scale;
+    }
+
+    /**
+     * Attaches an object of the encoder's to the channel, e.g. what it needs
+     * to know about the frame it last encoded for it. Like the demand, the
+     * attachment belongs to the thread calling {@link #takeFrameDemand}.
+     */
+    public void attach(final Object attachment)
+    {
+        this.attachment = attachment;
+    }
+
+    /** The object last given to {@link #attach}, or null. */
+    public Object attachment()
+    {
+        return attachment;
+    }
+
+    /**
+     * Decides whether the frame captured at the given time should be encoded
+     * for this channel. Nothing is wanted without viewers or waiting snapshot
+     * requests; otherwise frames are wanted at the highest rate any viewer
+     * asked for with the fps parameter, every frame if one did not. The
+     * first frame after a viewer arrives is always wanted. Call it from a
+     * single thread, once per captured frame the caller is able to encode: a
+     * wanted frame counts as sent to a viewer with an fps limit, so dropping
+     * it afterwards leaves that viewer a frame short until its next slot.
+     */
+    public boolean takeFrameDemand(final long captureNanos)
+    {
+        final long interval = demandIntervalNanos;
+        return interval != NO_DEMAND && demandPacer.take(captureNanos, interval);
+    }
+}
@@ -0,0 +1,39 @@
+package com.kseek.camjpeg.net.http;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A position in a {@link FrameArchive}, on one frame at a time, whose
+ * bytes are sent without passing through the Java heap.
+ * <p>
+ * The streamer hands a cursor back and forth between two threads, never
+ * using it on both at once: its replay thread moves it with
+ * {@link #next}, and the selector sends the frame it is on.
+ */
+public interface FrameCursor
+{
+    /** The wall clock time the current frame was captured at. */
+    long getMillis();
+
+    /** The length of the current JPEG. */
+    int getLength();
+
+    /**
+     * Writes up to count bytes of the current JPEG, starting at offset into
+     * it, to a possibly non-blocking target. Returns the bytes written.
+     * Called on the selector thread, so it must not read anything but the
+     * JPEG itself.
+     */
+    long transferTo(long offset, long count, WritableByteChannel target) throws IOException;
+
+    /**
+     * Moves on to the next frame, returns false at the end of the recording.
+     * While the archive is recording it may be called again after returning
+     * false, and then finds the frames added since. Called on the replay
+     * thread, it may wait for the disk.
+     */
+    boolean next() throws IOException;
+
+    void close();
+}
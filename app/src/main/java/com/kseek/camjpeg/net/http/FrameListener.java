@@ -0,0 +1,17 @@
+package com.kseek.camjpeg.net.http;
+
+/**
+ * Receives the frames published to a {@link FrameChannel}, next to the
+ * viewers, e.g. to record them. See
+ * {@link MJpegHttpStreamer#addFrameListener}.
+ */
+public interface FrameListener
+{
+    /**
+     * Called on the publishing thread, which is the encoder's, for every
+     * frame of the channel in publication order. The frame is only valid
+     * during the call: copy what is needed and return, never block or the
+     * encoder stalls with it.
+     */
+    void onFrame(FrameChannel channel, JpegFrame frame);
+}
@@ -0,0 +1,32 @@
+package com.kseek.camjpeg.net.http;
+
+/**
+ * Thins a sequence of frame times out to at most one frame per interval.
+ * A frame is accepted up to a quarter interval early, otherwise capture
+ * jitter would make it wait for the next frame and undershoot the rate.
+ * After a long gap the schedule restarts from the next accepted frame.
+ */
+final class FramePacer
+{
+    private long nextNanos = 0L;
+
+    FramePacer()
+    {
+        super();
+    }
+
+    /** Returns true if the frame at the given time is due, and if so schedules the next. */
+    boolean take(final long nanos, final long intervalNanos)
+    {
+        if (intervalNanos <= 0L) {
+            return true;
+        }
+        if (nanos + (intervalNanos >> 2) < nextNanos) {
+            return false;
+        }
+        nextNanos = nanos - nextNanos > intervalNanos
+                ? nanos + intervalNanos
+                : nextNanos + intervalNanos;
+        return true;
+    }
+}
@@ -0,0 +1,43 @@
+package com.kseek.camjpeg.net.http;
+
+/**
+ * Fixed-size pool of {@link JpegFrame} slots. Slots are handed out
+ * round-robin so the frame a slow viewer is still sending is the last one
+ * to be considered for reuse. The slots share one {@link ChunkPool} for
+ * their contents.
+ */
+final class FrameRing
+{
+    private final JpegFrame[] slots;
+    private int next = 0;
+
+    FrameRing(final int size, final ChunkPool pool)
+    {
+        super();
+        slots = new JpegFrame[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new JpegFrame(i, pool);
+        }
+    }
+
+    int size()
+    {
+        return slots.length;
+    }
+
+    /**
+     * Returns a free slot holding a single reference owned by the caller,
+     * or null when every slot is still referenced by a reader.
+     */
+    synchronized JpegFrame acquire()
+    {
+        for (int i = 0; i < slots.length; i++) {
+            final JpegFrame frame = slots[next];
+            next = (next + 1) % slots.length;
+            if (frame.tryAcquire()) {
+                return frame;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,17 @@
+package com.kseek.camjpeg.net.http;
+
+import java.io.IOException;
+
+/** A request the server refuses, carrying the status code to answer with. */
+final class HttpException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    HttpException(final int status, final String message)
+    {
+        super(message);
+        this.status = status;
+    }
+}
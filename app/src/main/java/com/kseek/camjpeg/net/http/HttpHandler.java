@@ -0,0 +1,10 @@
+package com.kseek.camjpeg.net.http;
+
+import java.io.IOException;
+
+/** Serves the requests routed to one path. */
+interface HttpHandler
+{
+    /** Starts the response on the client, called on the selector thread. */
+    void handle(MJpegClient client, HttpRequest request) throws IOException;
+}
@@ -0,0 +1,78 @@
+package com.kseek.camjpeg.net.http;
+
+import java.util.Map;
+
+/** A parsed HTTP/1.x request head. */
+final class HttpRequest
+{
+    final String method;
+    final String path;
+    final int minorVersion;
+    /** Bytes the head took up in the connection's input, blank line included. */
+    final int headLength;
+    private final Map<String, String> parameters;
+    private final Map<String, String> headers;
+
+    HttpRequest(final String method,
+                final String path,
+                final int minorVersion,
+                final int headLength,
+                final Map<String, String> parameters,
+                final Map<String, String> headers)
+    {
+        super();
+        this.method = method;
+        this.path = path;
+        this.minorVersion = minorVersion;
+        this.headLength = headLength;
+        this.parameters = parameters;
+        this.headers = headers;
+    }
+
+    /** Returns the header value, names are case insensitive. */
+    String getHeader(final String name)
+    {
+        return headers.get(name.toLowerCase());
+    }
+
+    /** Returns the decoded value of a query parameter, "" if it has none, null if absent. */
+    String getParameter(final String name)
+    {
+        return parameters.get(name);
+    }
+
+    boolean hasParameter(final String name)
+    {
+        return parameters.containsKey(name);
+    }
+
+    /** Returns the parameter as an int, or defaultValue if absent or not a number. */
+    int getIntParameter(final String name, final int defaultValue)
+    {
+        final String value = parameters.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        }
+        catch (final NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    boolean isHead()
+    {
+        return "HEAD".equals(method);
+    }
+
+    /** HTTP/1.1 keeps the connection by default, HTTP/1.0 only when asked to. */
+    boolean isKeepAlive()
+    {
+        final String connection = getHeader("Connection");
+        if (minorVersion >= 1) {
+            return connection == null || !connection.equalsIgnoreCase("close");
+        }
+        return connection != null && connection.equalsIgnoreCase("keep-alive");
+    }
+}
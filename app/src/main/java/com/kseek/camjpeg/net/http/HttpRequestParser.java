@@ -0,0 +1,181 @@
+package com.kseek.camjpeg.net.http;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses HTTP/1.x request heads straight out of a connection's fixed-size
+ * input buffer. The request line is validated as soon as it is complete,
+ * so garbage is rejected after its first line instead of after the buffer
+ * fills up; anything that cannot fit the buffer is refused outright.
+ */
+final class HttpRequestParser
+{
+    /** Longest request line accepted, the rest of the buffer is for headers. */
+    final static int MAX_REQUEST_LINE = 1024;
+
+    private final static int MAX_HEADERS = 64;
+
+    private HttpRequestParser()
+    {
+        super();
+    }
+
+    /**
+     * Parses the head in bytes[0, length). Returns null while the head is
+     * incomplete and there is still room for it in a buffer of capacity
+     * bytes.
+     *
+     * @throws HttpException if the request is malformed or too large.
+     */
+    static HttpRequest parse(final byte[] bytes, final int length, final int capacity)
+            throws HttpException
+    {
+        final int lineEnd = indexOfEol(bytes, 0, length);
+        if (lineEnd < 0) {
+            if (length > MAX_REQUEST_LINE) {
+                throw new HttpException(414, "request line too long");
+            }
+            checkToken(bytes, 0, length);
+            return null;
+        }
+        if (lineEnd > MAX_REQUEST_LINE) {
+            throw new HttpException(414, "request line too long");
+        }
+
+        // Method
+        final int methodEnd = indexOf(bytes, 0, lineEnd, (byte) ' ');
+        if (methodEnd <= 0) {
+            throw new HttpException(400, "malformed request line");
+        }
+        checkToken(bytes, 0, methodEnd);
+
+        // Request target
+        final int targetEnd = indexOf(bytes, methodEnd + 1, lineEnd, (byte) ' ');
+        if (targetEnd < 0 || bytes[methodEnd + 1] != '/') {
+            throw new HttpException(400, "malformed request target");
+        }
+
+        // Version, HTTP/1.0 or HTTP/1.1
+        final String version = latin1(bytes, targetEnd + 1, lineEnd);
+        final int minorVersion;
+        if ("HTTP/1.1".equals(version)) {
+            minorVersion = 1;
+        }
+        else if ("HTTP/1.0".equals(version)) {
+            minorVersion = 0;
+        }
+        else if (version.startsWith("HTTP/")) {
+            throw new HttpException(505, "unsupported version " + version);
+        }
+        else {
+            throw new HttpException(400, "malformed request line");
+        }
+
+        // Headers, up to the blank line
+        final Map<String, String> headers = new HashMap<String, String>();
+        int lineStart = lineEnd + 2;
+        while (true) {
+            final int end = indexOfEol(bytes, lineStart, length);
+            if (end < 0) {
+                if (length >= capacity) {
+                    throw new HttpException(431, "request head too large");
+                }
+                return null;
+            }
+            if (end == lineStart) {
+                break;
+            }
+            final int colon = indexOf(bytes, lineStart, end, (byte) ':');
+            if (colon <= lineStart) {
+                throw new HttpException(400, "malformed header");
+            }
+            if (headers.size() == MAX_HEADERS) {
+                throw new HttpException(431, "too many headers");
+            }
+            headers.put(latin1(bytes, lineStart, colon).trim().toLowerCase(),
+                    latin1(bytes, colon + 1, end).trim());
+            lineStart = end + 2;
+        }
+
+        final String target = latin1(bytes, methodEnd + 1, targetEnd);
+        final int question = target.indexOf('?');
+        final String path = question < 0 ? target : target.substring(0, question);
+        final Map<String, String> parameters = question < 0
+                ? new HashMap<String, String>()
+                : parseQuery(target.substring(question + 1));
+
+        return new HttpRequest(latin1(bytes, 0, methodEnd), path, minorVersion,
+                lineStart + 2, parameters, headers);
+    }
+
+    private static Map<String, String> parseQuery(final String query) throws HttpException
+    {
+        final Map<String, String> parameters = new HashMap<String, String>();
+        try {
+            for (final String pair : query.split("&")) {
+                if (pair.length() == 0) {
+                    continue;
+                }
+                final int equals = pair.indexOf('=');
+                if (equals < 0) {
+                    parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+                }
+                else {
+                    parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+        catch (final IllegalArgumentException badEscape) {
+            throw new HttpException(400, "malformed query");
+        }
+        catch (final UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        return parameters;
+    }
+
+    /** Methods are upper-case tokens, anything else is not HTTP. */
+    private static void checkToken(final byte[] bytes, final int from, final int to)
+            throws HttpException
+    {
+        for (int i = from; i < to && bytes[i] != ' '; i++) {
+            if (bytes[i] < 'A' || bytes[i] > 'Z') {
+                throw new HttpException(400, "malformed method");
+            }
+        }
+    }
+
+    private static int indexOfEol(final byte[] bytes, final int from, final int to)
+    {
+        for (int i = from; i + 1 < to; i++) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(final byte[] bytes, final int from, final int to, final byte b)
+    {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String latin1(final byte[] bytes, final int from, final int to)
+    {
+        try {
+            return new String(bytes, from, to - from, "ISO-8859-1");
+        }
+        catch (final UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.kseek.camjpeg.net.http;
+
+/** Builders for the heads of the non-streaming responses. */
+final class HttpResponses
+{
+    private final static String EOL = MJpegHttpStreamer.EOL_STRING;
+
+    private HttpResponses()
+    {
+        super();
+    }
+
+    static String reason(final int status)
+    {
+        switch (status) {
+            case 200: return "OK";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 414: return "URI Too Long";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            case 505: return "HTTP Version Not Supported";
+            default: return "Error";
+        }
+    }
+
+    /**
+     * Builds a response head. extraHeaders are complete header lines without
+     * their line ends.
+     */
+    static byte[] head(final int status,
+                       final String contentType,
+                       final long contentLength,
+                       final boolean keepAlive,
+                       final String... extraHeaders)
+    {
+        final StringBuilder head = new StringBuilder(256);
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append(EOL);
+        head.append("Server: MJPG-Streamer").append(EOL);
+        head.append(keepAlive ? "Connection: keep-alive" : "Connection: close").append(EOL);
+        head.append(MJpegHttpStreamer.ACCESS_CONTROL).append(EOL);
+        if (contentType != null) {
+            head.append("Content-Type: ").append(contentType).append(EOL);
+        }
+        head.append("Content-Length: ").append(contentLength).append(EOL);
+        for (final String header : extraHeaders) {
+            head.append(header).append(EOL);
+        }
+        head.append(EOL);
+        return MJpegHttpStreamer.ascii(head.toString());
+    }
+
+    /** A short plain-text error, the connection is always closed afterwards. */
+    static byte[] error(final int status, final String... extraHeaders)
+    {
+        final String body = status + " " + reason(status) + EOL;
+        final byte[] head = head(status, "text/plain", body.length(), false, extraHeaders);
+        final byte[] response = new byte[head.length + body.length()];
+        System.arraycopy(head, 0, response, 0, head.length);
+        System.arraycopy(MJpegHttpStreamer.ascii(body), 0, response, head.length, body.length());
+        return response;
+    }
+}
@@ -0,0 +1,26 @@
+package com.kseek.camjpeg.net.http;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Exact-path routing table, filled once before the server starts. */
+final class HttpRouter
+{
+    private final Map<String, HttpHandler> routes = new HashMap<String, HttpHandler>();
+
+    HttpRouter()
+    {
+        super();
+    }
+
+    void add(final String path, final HttpHandler handler)
+    {
+        routes.put(path, handler);
+    }
+
+    /** Returns the handler for the path, or null if nothing is routed there. */
+    HttpHandler route(final String path)
+    {
+        return routes.get(path);
+    }
+}
@@ -0,0 +1,100 @@
+package com.kseek.camjpeg.net.http;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One pooled slot of a {@link FrameRing}. The encoder writes the JPEG into
+ * its output stream and publishes the frame once; every reader takes a
+ * reference instead of a copy. When the last one is released the stream's
+ * chunks go back to the {@link ChunkPool} and the slot to the ring.
+ */
+public final class JpegFrame
+{
+    private final AtomicInteger refCount = new AtomicInteger(0);
+
+    final int index;
+    final ChunkedOutputStream data;
+    int length = 0;
+    long timestamp = Long.MIN_VALUE;
+    long sequence = 0L;
+    // Pipeline stamps, all System.nanoTime().
+    long captureNanos = 0L;
+    long dequeueNanos = 0L;
+    long encodeStartNanos = 0L;
+    long encodeEndNanos = 0L;
+    long publishedNanos = 0L;
+
+    JpegFrame(final int index, final ChunkPool pool)
+    {
+        super();
+        this.index = index;
+        data = new ChunkedOutputStream(pool);
+    }
+
+    /** The stream the encoder writes the JPEG into, empty when the slot is acquired. */
+    public ChunkedOutputStream getOutputStream()
+    {
+        return data;
+    }
+
+    public int getLength()
+    {
+        return length;
+    }
+
+    /** The wall clock time the frame was captured at, in epoch milliseconds. */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Records when the frame was captured, picked up by the encoder and
+     * compressed, all on the System.nanoTime() clock. Publication and
+     * delivery are stamped by the streamer.
+     */
+    public void setStageTimes(final long captureNanos,
+                              final long dequeueNanos,
+                              final long encodeStartNanos,
+                              final long encodeEndNanos)
+    {
+        this.captureNanos = captureNanos;
+        this.dequeueNanos = dequeueNanos;
+        this.encodeStartNanos = encodeStartNanos;
+        this.encodeEndNanos = encodeEndNanos;
+    }
+
+    /** Claims a free slot, used by the ring only. */
+    boolean tryAcquire()
+    {
+        return refCount.compareAndSet(0, 1);
+    }
+
+    public void retain()
+    {
+        if (refCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("frame has already been recycled");
+        }
+    }
+
+    public void release()
+    {
+        while (true) {
+            final int count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("frame released too many times");
+            }
+            if (count == 1) {
+                // The caller holds the only reference, so nobody can retain
+                // the frame meanwhile. The chunks are returned before the
+                // zero count marks the slot free for FrameRing.acquire().
+                data.reset();
+                refCount.set(0);
+                return;
+            }
+            if (refCount.compareAndSet(count, count - 1)) {
+                return;
+            }
+        }
+    }
+}
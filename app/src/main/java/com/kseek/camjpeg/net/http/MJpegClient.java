@@ -0,0 +1,542 @@
+package com.kseek.camjpeg.net.http;
+
+import com.kseek.camjpeg.metrics.StreamMetrics;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * State of one HTTP connection on the selector thread. Everything it sends
+ * goes out as a single gathering write of {head, part header, JPEG chunks}.
+ * For a stream the head is the response preamble, which is only non-empty
+ * for the very first part. The chunks are read straight from the shared
+ * {@link JpegFrame}, the client holds a reference to it until it is sent.
+ * <p>
+ * Flow control is per client: a viewer only takes a frame when its socket
+ * has drained the previous one, and then always the newest, so a slow link
+ * skips frames (counted in {@link #framesDropped}) without holding back
+ * anybody else.
+ * <p>
+ * A replay sends recorded frames instead, from a {@link FrameCursor}: the
+ * part header goes out by a gathering write and the JPEG follows straight
+ * from the file by {@link FrameCursor#transferTo}. Parts are paced by their
+ * recording times, scaled by the replay speed. The cursor is positioned on
+ * the {@link ReplayReader}'s thread, before the first part and after every
+ * part, and the client waits for it meanwhile.
+ */
+final class MJpegClient
+{
+    /** Waiting for the request head. */
+    static final int STATE_REQUEST = 0;
+    /** Streaming MJPEG parts. */
+    static final int STATE_STREAM = 1;
+    /** Long-polling for a frame newer than {@link #lastSequence}. */
+    static final int STATE_SNAPSHOT_WAIT = 2;
+    /** Sending a single response, see {@link #keepAlive} for what comes after. */
+    static final int STATE_RESPONSE = 3;
+    /** Replaying recorded frames. */
+    static final int STATE_REPLAY = 4;
+
+    /** Capacity of the request buffer, larger request heads are refused. */
+    private final static int MAX_REQUEST_BYTES = 4096;
+
+    /** Weight of the newest sample in the smoothed drain rate. */
+    private final static double DRAIN_RATE_ALPHA = 0.2;
+
+    private final static long NANOS_PER_SECOND = 1000000000L;
+    private final static long NANOS_PER_MILLI = 1000000L;
+    private final static long NANOS_PER_MICRO = 1000L;
+    private final static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final StreamMetrics metrics;
+    private final MJpegPartHeader header = new MJpegPartHeader();
+    // One view per pooled chunk, created on first use, so that sending a
+    // frame never allocates and never disturbs another client's positions.
+    private final ByteBuffer[] chunkViews;
+    // Head, part header and payload; a frame's payload takes one per chunk.
+    private ByteBuffer[] parts = {EMPTY, EMPTY, EMPTY};
+    private int partCount = 3;
+    private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+
+    SelectionKey key = null;
+    int state = STATE_REQUEST;
+    /** The rendition streamed or snapshotted, set by the request handler. */
+    FrameChannel frameChannel = null;
+    long lastSequence = 0L;
+    /** When a snapshot request started waiting, a refresh after it answers it too. */
+    long waitSinceNanos = 0L;
+    /** Whether the waiting snapshot request was a HEAD. */
+    boolean waitHeadOnly = false;
+    /** The If-None-Match of the waiting snapshot request, null if it had none. */
+    String waitIfNoneMatch = null;
+    /** Whether the connection goes back to STATE_REQUEST after the response. */
+    boolean keepAlive = false;
+    long lastActivityNanos = System.nanoTime();
+
+    private JpegFrame frame = null;
+    private boolean sending = false;
+    private long lastCompletionNanos = 0L;
+    private long lastCompletionBytes = 0L;
+    // The fps limit of a stream as a minimum time between parts, 0 for none.
+    private long partIntervalNanos = 0L;
+    // Whether the viewer missed frames before its latest part.
+    private boolean congested = false;
+    private final FramePacer pacer = new FramePacer();
+    // The recorded frame being replayed, and how much of it has been sent.
+    private FrameCursor replay = null;
+    private long replayOffset = 0L;
+    private long replayStartNanos = 0L;
+    private long replayStartMillis = 0L;
+    private double replaySpeed = 1.0;
+    private boolean replayStarted = false;
+    // Whether the cursor's frame has been sent, so it has to move on.
+    private boolean replaySent = false;
+    // Whether the reader has the client, whose cursor and the fields it
+    // sets are then the reader's.
+    private boolean replayReading = false;
+    // Read by the reader too.
+    private volatile boolean closed = false;
+    // Set by the reader.
+    private FrameArchive replayArchive = null;
+    private long replayFromMillis = 0L;
+    private boolean replayFinished = false;
+    private boolean replayFailed = false;
+    // Whether the replay has caught up with a recording still in progress.
+    private boolean replayWaiting = false;
+    /** When the reader is to look for new frames again, used by the reader only. */
+    long replayRetryNanos = 0L;
+
+    // Written by the selector thread only, volatile so that stats() can be
+    // called from any thread.
+    private volatile long framesSent = 0L;
+    private volatile long framesDropped = 0L;
+    private volatile long bytesSent = 0L;
+    private volatile double drainRate = 0.0;
+    private volatile long lagNanos = 0L;
+    private volatile long maxLagNanos = 0L;
+
+    MJpegClient(final SocketChannel channel, final int poolChunks, final StreamMetrics metrics)
+    {
+        this.channel = channel;
+        this.metrics = metrics;
+        chunkViews = new ByteBuffer[poolChunks];
+    }
+
+    ClientStats stats()
+    {
+        final Socket socket = channel.socket();
+        return new ClientStats(socket.getInetAddress().getHostAddress() + ":" + socket.getPort(),
+                framesSent,
+                framesDropped,
+                bytesSent,
+                (long) drainRate,
+                lagNanos / NANOS_PER_MILLI,
+                maxLagNanos / NANOS_PER_MILLI);
+    }
+
+    boolean isSending()
+    {
+        return sending;
+    }
+
+    /**
+     * Reads whatever the peer has sent into the request buffer. While the
+     * connection is not expecting a request the input is discarded, which
+     * still detects disconnects; a pipelined request arriving during a
+     * keep-alive response is kept for later.
+     */
+    void readInput() throws IOException
+    {
+        if (state == STATE_STREAM || state == STATE_SNAPSHOT_WAIT || state == STATE_REPLAY) {
+            request.clear();
+        }
+        else if (!request.hasRemaining()) {
+            // Full with a pipelined request we have not got to yet.
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            return;
+        }
+        if (channel.read(request) < 0) {
+            throw new IOException("connection closed by peer");
+        }
+        lastActivityNanos = System.nanoTime();
+    }
+
+    /**
+     * Parses the buffered request head. Returns it once complete, removing
+     * it from the buffer, or null while more input is needed.
+     */
+    HttpRequest parseRequest() throws HttpException
+    {
+        final HttpRequest parsed = HttpRequestParser.parse(
+                request.array(), request.position(), request.capacity());
+        if (parsed != null) {
+            request.flip();
+            request.position(parsed.headLength);
+            request.compact();
+        }
+        return parsed;
+    }
+
+    void beginStream(final FrameChannel frameChannel, final long partIntervalNanos)
+    {
+        state = STATE_STREAM;
+        this.frameChannel = frameChannel;
+        this.partIntervalNanos = partIntervalNanos;
+        parts[0] = ByteBuffer.wrap(MJpegHttpStreamer.RESPONSE_MJPG);
+    }
+
+    /**
+     * Starts a replay from the first frame recorded at or after fromMillis,
+     * which the reader seeks, see {@link #readReplay}.
+     */
+    void beginReplay(final FrameArchive archive, final long fromMillis, final double speed)
+    {
+        state = STATE_REPLAY;
+        replayArchive = archive;
+        replayFromMillis = fromMillis;
+        replaySpeed = speed;
+    }
+
+    /**
+     * On the reader thread: seeks the archive for a new replay, or moves the
+     * cursor on from the frame just sent. Having caught up with a recording
+     * still in progress, the replay waits for the next frame, see
+     * {@link #isReplayWaiting}; it ends once the recording has stopped.
+     */
+    void readReplay()
+    {
+        try {
+            // Asked first: frames written before the recording stopped are
+            // found by the read after it.
+            final boolean recording = replayArchive.isRecording();
+            final boolean found;
+            if (replay == null) {
+                replay = replayArchive.seek(replayFromMillis);
+                found = replay != null;
+            }
+            else {
+                found = replay.next();
+                replayFinished = !found && !recording;
+            }
+            replayWaiting = !found && recording;
+        }
+        catch (final IOException readFailed) {
+            System.err.println(readFailed);
+            replayFailed = true;
+        }
+    }
+
+    /** Hands the client over to the reader. */
+    void beginReplayRead()
+    {
+        replayReading = true;
+        replaySent = false;
+    }
+
+    /**
+     * Takes the client back from the reader. Returns false, having closed
+     * the cursor, if the connection was closed meanwhile.
+     */
+    boolean endReplayRead()
+    {
+        replayReading = false;
+        if (closed) {
+            closeReplay();
+            return false;
+        }
+        return true;
+    }
+
+    boolean isReplayReading()
+    {
+        return replayReading;
+    }
+
+    /** Whether the reader found no frame yet to send, but more are being recorded. */
+    boolean isReplayWaiting()
+    {
+        return replayWaiting;
+    }
+
+    /** Whether the connection has been closed, callable from the reader too. */
+    boolean isClosed()
+    {
+        return closed;
+    }
+
+    /** Whether the archive could not be read. */
+    boolean isReplayFailed()
+    {
+        return replayFailed;
+    }
+
+    /**
+     * Starts sending the replay once the reader has found its first frame.
+     * Returns false if there is none.
+     */
+    boolean startReplay()
+    {
+        if (replay == null) {
+            return false;
+        }
+        replayStarted = true;
+        replayStartNanos = System.nanoTime();
+        replayStartMillis = replay.getMillis();
+        parts[0] = ByteBuffer.wrap(MJpegHttpStreamer.RESPONSE_MJPG);
+        return true;
+    }
+
+    boolean isReplayStarted()
+    {
+        return replayStarted;
+    }
+
+    /** Whether the cursor is on a frame yet to be sent, and not with the reader. */
+    boolean isReplayReady()
+    {
+        return replayStarted && !replayReading && !replaySent && !replayFinished;
+    }
+
+    /** When the next recorded frame is due, on the System.nanoTime() clock. */
+    long getReplayDueNanos()
+    {
+        return replayStartNanos
+                + (long) ((replay.getMillis() - replayStartMillis) * NANOS_PER_MILLI / replaySpeed);
+    }
+
+    /** Whether the last recorded frame has been sent. */
+    boolean isReplayFinished()
+    {
+        return replayFinished;
+    }
+
+    /** Starts sending the cursor's frame as a stream part. */
+    void beginReplayPart()
+    {
+        parts[1] = header.encode(replay.getLength(), replay.getMillis());
+        partCount = 2;
+        replayOffset = 0L;
+        beginSending();
+    }
+
+    long getPartIntervalNanos()
+    {
+        return partIntervalNanos;
+    }
+
+    /** Whether the viewer's fps limit says to skip this frame. */
+    boolean isThrottled(final JpegFrame newFrame)
+    {
+        return !pacer.take(newFrame.publishedNanos, partIntervalNanos);
+    }
+
+    /**
+     * Whether the socket could not keep up with the frames of the stream,
+     * in which case {@link #getDrainRate} is the capacity of the link.
+     */
+    boolean isCongested()
+    {
+        return congested;
+    }
+
+    /** The smoothed bytes per second the socket accepted. */
+    double getDrainRate()
+    {
+        return drainRate;
+    }
+
+    /** Starts sending a stream part from a frame the caller has retained for us. */
+    void beginPart(final JpegFrame newFrame)
+    {
+        if (lastSequence != 0L) {
+            final long missed = newFrame.sequence - lastSequence - 1;
+            framesDropped += missed;
+            congested = missed > 0L;
+        }
+        frame = newFrame;
+        lastSequence = newFrame.sequence;
+        if (newFrame.captureNanos == 0L) {
+            parts[1] = header.encode(newFrame.length, newFrame.timestamp);
+        }
+        else {
+            parts[1] = header.encode(newFrame.length, newFrame.timestamp,
+                    (System.nanoTime() - newFrame.captureNanos) / NANOS_PER_MICRO);
+        }
+        setPayload(newFrame);
+        beginSending();
+    }
+
+    /**
+     * Starts sending a complete response. The body, if any, is a frame the
+     * caller has retained for us.
+     */
+    void beginResponse(final byte[] head, final JpegFrame body, final boolean keepAlive)
+    {
+        beginResponseHead(head, keepAlive);
+        frame = body;
+        if (body == null) {
+            parts[2] = EMPTY;
+            partCount = 3;
+        }
+        else {
+            setPayload(body);
+        }
+        beginSending();
+    }
+
+    void beginResponse(final byte[] head, final byte[] body, final boolean keepAlive)
+    {
+        beginResponseHead(head, keepAlive);
+        parts[2] = body == null ? EMPTY : ByteBuffer.wrap(body);
+        partCount = 3;
+        beginSending();
+    }
+
+    private void beginResponseHead(final byte[] head, final boolean keepAlive)
+    {
+        state = STATE_RESPONSE;
+        this.keepAlive = keepAlive;
+        parts[0] = ByteBuffer.wrap(head);
+        parts[1] = EMPTY;
+    }
+
+    /** Readies a kept-alive connection for its next request. */
+    void endResponse()
+    {
+        state = STATE_REQUEST;
+        parts[0] = EMPTY;
+        parts[2] = EMPTY;
+        partCount = 3;
+        lastActivityNanos = System.nanoTime();
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void beginSending()
+    {
+        sending = true;
+        if (lastCompletionNanos == 0L) {
+            lastCompletionNanos = System.nanoTime();
+        }
+    }
+
+    /** Puts views of the frame's chunks after the head and part header. */
+    private void setPayload(final JpegFrame newFrame)
+    {
+        final int chunks = newFrame.data.getChunkCount();
+        if (parts.length < 2 + chunks) {
+            parts = Arrays.copyOf(parts, 2 + chunks);
+        }
+        partCount = 2 + newFrame.data.getBuffers(chunkViews, parts, 2);
+    }
+
+    /** Returns true once the current part or response has been fully written. */
+    boolean write() throws IOException
+    {
+        long written = channel.write(parts, 0, partCount);
+        boolean complete = true;
+        for (int i = partCount - 1; i >= 0 && complete; i--) {
+            complete = !parts[i].hasRemaining();
+        }
+        if (complete && state == STATE_REPLAY) {
+            final int length = replay.getLength();
+            long sent = 1L;
+            while (replayOffset < length && sent > 0L) {
+                sent = replay.transferTo(replayOffset, length - replayOffset, channel);
+                replayOffset += sent;
+                written += sent;
+            }
+            complete = replayOffset == length;
+        }
+        final long now = System.nanoTime();
+        bytesSent += written;
+        metrics.getBytesSent().add(written);
+        metrics.getSendByteRate().update(written, now);
+        if (!complete) {
+            return false;
+        }
+
+        // The drain rate is what the socket actually accepted between two
+        // completed parts: the link capacity for a congested viewer, the
+        // stream's own rate for one that keeps up.
+        final double sample = (bytesSent - lastCompletionBytes) * (double) NANOS_PER_SECOND
+                / Math.max(1L, now - lastCompletionNanos);
+        drainRate = drainRate == 0.0
+                ? sample
+                : drainRate + DRAIN_RATE_ALPHA * (sample - drainRate);
+        lastCompletionNanos = now;
+        lastCompletionBytes = bytesSent;
+
+        if (state == STATE_STREAM) {
+            framesSent++;
+            metrics.getFramesSent().increment();
+            metrics.getSendRate().record(now);
+            lagNanos = now - frame.publishedNanos;
+            metrics.getDeliveryTime().recordNanos(lagNanos);
+            if (frame.captureNanos != 0L) {
+                metrics.getEndToEndTime().recordNanos(now - frame.captureNanos);
+            }
+            if (lagNanos > maxLagNanos) {
+                maxLagNanos = lagNanos;
+            }
+        }
+
+        else if (state == STATE_REPLAY) {
+            framesSent++;
+            metrics.getFramesSent().increment();
+            metrics.getSendRate().record(now);
+            replaySent = true;
+        }
+
+        releaseFrame();
+        sending = false;
+        return true;
+    }
+
+    private void releaseFrame()
+    {
+        if (frame != null) {
+            frame.release();
+            frame = null;
+        }
+    }
+
+    void setWriteInterest(final boolean interested)
+    {
+        key.interestOps(interested
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ);
+    }
+
+    /** Closes the replay's cursor, which must not be with the reader. */
+    void closeReplay()
+    {
+        if (replay != null) {
+            replay.close();
+            replay = null;
+        }
+    }
+
+    void close()
+    {
+        releaseFrame();
+        closed = true;
+        // A cursor with the reader is closed when the client comes back.
+        if (!replayReading) {
+            closeReplay();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        }
+        catch (final IOException closingChannel) {
+            System.err.println(closingChannel);
+        }
+    }
+}
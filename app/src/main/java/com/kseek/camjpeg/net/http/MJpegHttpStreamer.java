@@ -1,10 +1,19 @@
 package com.kseek.camjpeg.net.http;
 
-import java.io.DataOutputStream;
+import com.kseek.camjpeg.metrics.StreamMetrics;
+
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 
 public final class MJpegHttpStreamer
 {
@@ -33,13 +42,13 @@ public final class MJpegHttpStreamer
 
     private final static String EXPIRES = "Expires: 0";
 
-    private final static String ACCESS_CONTROL = "Access-Control-Allow-Origin:*";
+    final static String ACCESS_CONTROL = "Access-Control-Allow-Origin:*";
 
     private final static byte EOL[] = {(byte) '\r', (byte) '\n'};
 
-    private final static String EOL_STRING = "\r\n";
+    final static String EOL_STRING = "\r\n";
 
-    private final static String BOUNDARY_LINES = "\r\n" + BOUNDARY_MJPG + "\r\n";
+    final static String BOUNDARY_LINES = "\r\n" + BOUNDARY_MJPG + "\r\n";
 
     /*private static final String HTTP_HEADER =
         "HTTP/1.0 200 OK\r\n"
@@ -55,31 +64,242 @@ public final class MJpegHttpStreamer
             + "boundary=" + BOUNDARY_MJPG + "\r\n"
         + BOUNDARY_LINES;*/
 
-    protected final static int httpPort = DEFAULT_HTTP_PORT;
+    /**
+     * Sent once to every viewer, the first boundary line terminates it. The
+     * stream has no length, it ends when the connection closes.
+     */
+    final static byte[] RESPONSE_MJPG = ascii("HTTP/1.1 200 OK" + EOL_STRING
+            + "Connection: close" + EOL_STRING
+            + "Server: MJPG-Streamer" + EOL_STRING
+            + MAX_AGE + EOL_STRING
+            + EXPIRES + EOL_STRING
+            + CACHE_CONTROL + EOL_STRING
+            + PRAGMA + EOL_STRING
+            + ACCESS_CONTROL + EOL_STRING
+            + "Content-Type: " + MINE_MJPG + EOL_STRING);
+
+    private final static byte[] HEAD_RESPONSE_MJPG =
+            ascii(new String(RESPONSE_MJPG) + EOL_STRING);
+
+    /** Routes serving the MJPEG stream. */
+    public final static String STREAM_PATH = "/stream.mjpg";
+    public final static String ROOT_PATH = "/";
+
+    /**
+     * Route serving the latest frame as a single JPEG. Without a fresh frame,
+     * or with the next parameter, the request waits for the next one, and is
+     * answered 503 if none comes within a few seconds, e.g. while the camera
+     * is stopped.
+     */
+    public final static String SNAPSHOT_PATH = "/snapshot.jpg";
+
+    /** Route serving the pipeline and per-viewer statistics as JSON. */
+    public final static String STATS_PATH = "/stats";
+
+    /** Route serving the same statistics in Prometheus text format. */
+    public final static String METRICS_PATH = "/metrics";
+
+    /**
+     * Route firing the event trigger, see {@link #setEventTrigger}. A HEAD
+     * request does not fire it, and without a trigger the route answers 404.
+     */
+    public final static String TRIGGER_PATH = "/trigger";
+
+    /**
+     * Route streaming recorded frames as MJPEG, see {@link #setFrameArchive}.
+     * Each part's X-Timestamp is the frame's capture time, on the same clock
+     * as the live stream's, see {@link #FROM_PARAMETER}.
+     * A replay that catches up with a recording in progress follows it, frame
+     * by frame as they reach the disk, and ends after the last frame once
+     * recording has stopped. Answers 404 without an archive, or without
+     * footage from the requested time when nothing is being recorded.
+     */
+    public final static String REPLAY_PATH = "/replay.mjpg";
+
+    /**
+     * Query parameter of the replay route: the wall clock time, in epoch
+     * milliseconds, to start from, or if negative how far back from now.
+     * The oldest footage when absent. Frames are stamped once, on this clock,
+     * when captured: the X-Timestamp and snapshot ETag of the live routes and
+     * the recordings all carry that stamp, so a time seen live can be passed
+     * here to replay from that frame.
+     */
+    public final static String FROM_PARAMETER = "from";
+
+    /** Query parameter of the replay route multiplying the playback rate, 1 when absent. */
+    public final static String SPEED_PARAMETER = "speed";
+
+    /** The largest {@link #SPEED_PARAMETER} accepted. */
+    public final static double MAX_SPEED = 64.0;
+
+    /** Keep-alive connections idle for longer than this are closed. */
+    private final static long KEEP_ALIVE_TIMEOUT_NANOS = 15L * 1000L * 1000L * 1000L;
+
+    /** How long a snapshot request waits for a frame before it is answered 503. */
+    private final static long SNAPSHOT_TIMEOUT_NANOS = 5L * 1000L * 1000L * 1000L;
+
+    /** How often the selector wakes up to look for idle connections. */
+    private final static long IDLE_CHECK_MS = 1000L;
+
+    /**
+     * A frame neither published nor refreshed for this long is not shown to
+     * a new viewer or snapshot request, they wait for a fresh one instead.
+     * Frames are only encoded on demand, so the latest one may be from long
+     * ago.
+     */
+    private final static long STALE_FRAME_NANOS = 1000L * 1000L * 1000L;
+
+    private final static long NANOS_PER_SECOND = 1000L * 1000L * 1000L;
+    private final static long NANOS_PER_MILLI = 1000L * 1000L;
+
+    /**
+     * Query parameter of the stream and snapshot routes selecting a
+     * rendition by name, the full preview when absent.
+     */
+    public final static String SIZE_PARAMETER = "size";
+
+    /**
+     * Query parameter of the stream and snapshot routes cropping the preview
+     * to a region, given as {@code left,top,width,height} in preview pixels.
+     */
+    public final static String CROP_PARAMETER = "crop";
+
+    /**
+     * Query parameter of the stream and snapshot routes dividing the width
+     * and height of the frame, or of the crop, by 1, 2, 4 or 8.
+     */
+    public final static String SCALE_PARAMETER = "scale";
+
+    /** The largest {@link #SCALE_PARAMETER} accepted. */
+    public final static int MAX_SCALE = 8;
+
+    /**
+     * The most renditions encoded at once, presets included. A crop nobody
+     * watches is dropped; beyond this new crops are refused with 503.
+     */
+    public final static int MAX_CHANNELS = 8;
+
+    /** Preset renditions of the whole frame, as name and scale divisor. */
+    private final static String[] RENDITION_NAMES = {"full", "half", "quarter"};
+    private final static int[] RENDITION_SCALES = {1, 2, 4};
+
+    protected static int httpPort = DEFAULT_HTTP_PORT;
     protected static boolean httpEnabled = true;
 
-    private boolean newJpeg = false;
-    private boolean streamingBufferA = true;
+    /**
+     * Frame slots in the ring: one being encoded, one held as the latest frame
+     * and the rest for viewers still sending older frames.
+     */
+    public final static int DEFAULT_FRAME_SLOTS = 6;
+
+    /**
+     * Kernel send buffer per viewer. Kept small so that a writable socket
+     * means the previous frame has mostly left the device, otherwise a slow
+     * link would queue several stale frames in the kernel.
+     */
+    private final static int CLIENT_SEND_BUFFER = 64 * 1024;
 
-    private final byte[] bufferA;
-    private final byte[] bufferB;
-    private int lengthA = Integer.MIN_VALUE;
-    private int lengthB = Integer.MIN_VALUE;
-    private long timestampA = Long.MIN_VALUE;
-    private long timestampB = Long.MIN_VALUE;
+    private final int port;
+    private final ChunkPool chunkPool;
+    private final FrameRing ring;
+    private final HttpRouter router = new HttpRouter();
+    private final StreamMetrics metrics = new StreamMetrics();
+
+    // Each channel holds one reference to its most recent frame. Clients
+    // take their own reference under bufferLock. The presets come first and
+    // stay, crops are added and removed by the selector thread, which
+    // replaces the array and its read-only view rather than change them.
+    private volatile FrameChannel[] channels;
+    private volatile List<FrameChannel> channelList;
     private final Object bufferLock = new Object();
 
+    // Modified by the selector thread only, which therefore iterates it
+    // without locking. Other threads lock it to read.
+    private final List<MJpegClient> clients = new ArrayList<MJpegClient>();
+    private volatile int clientCount = 0;
+    private volatile Runnable eventTrigger = null;
+    private volatile FrameArchive frameArchive = null;
+    // See SNAPSHOT_TIMEOUT_NANOS, only shortened by tests before start().
+    long snapshotTimeoutNanos = SNAPSHOT_TIMEOUT_NANOS;
+
+    private Selector selector = null;
+    private ReplayReader replayReader = null;
     private Thread worker = null;
     private volatile boolean running = false;
+    private volatile int localPort = 0;
 
-    public MJpegHttpStreamer(final int port, final int bufferSize)
+    public MJpegHttpStreamer(final int port, final int maxFrameBytes)
+    {
+        this(port, maxFrameBytes, DEFAULT_FRAME_SLOTS);
+    }
+
+    /**
+     * Frames are held in chunks of a pool shared by all slots, allocated as
+     * frames need them. maxFrameBytes only bounds the pool, to as many
+     * chunks as would take every slot to that size.
+     */
+    public MJpegHttpStreamer(final int port, final int maxFrameBytes, final int frameSlots)
     {
         super();
 
-        bufferA = new byte[bufferSize];
-        bufferB = new byte[bufferSize];
+        if (frameSlots < 2) {
+            throw new IllegalArgumentException("frameSlots must be at least 2");
+        }
+
+        this.port = port;
+        final int chunksPerFrame = (maxFrameBytes + ChunkPool.DEFAULT_CHUNK_BYTES - 1)
+                / ChunkPool.DEFAULT_CHUNK_BYTES;
+        // Direct, so that gathering writes go to the sockets without a copy.
+        chunkPool = new ChunkPool(ChunkPool.DEFAULT_CHUNK_BYTES,
+                Math.max(1, frameSlots * chunksPerFrame), true);
+        ring = new FrameRing(frameSlots, chunkPool);
+        final FrameChannel[] presets = new FrameChannel[RENDITION_NAMES.length];
+        for (int i = 0; i < presets.length; i++) {
+            presets[i] = new FrameChannel(RENDITION_NAMES[i], RENDITION_SCALES[i]);
+        }
+        setChannels(presets);
+
+        final HttpHandler streamHandler = new HttpHandler() {
+            @Override
+            public void handle(final MJpegClient client, final HttpRequest request) {
+                handleStream(client, request);
+            }
+        };
+        router.add(ROOT_PATH, streamHandler);
+        router.add(STREAM_PATH, streamHandler);
+        router.add(SNAPSHOT_PATH, new HttpHandler() {
+            @Override
+            public void handle(final MJpegClient client, final HttpRequest request) {
+                handleSnapshot(client, request);
+            }
+        });
+        router.add(STATS_PATH, new HttpHandler() {
+            @Override
+            public void handle(final MJpegClient client, final HttpRequest request) {
+                handleStats(client, request, false);
+            }
+        });
+        router.add(METRICS_PATH, new HttpHandler() {
+            @Override
+            public void handle(final MJpegClient client, final HttpRequest request) {
+                handleStats(client, request, true);
+            }
+        });
+        router.add(TRIGGER_PATH, new HttpHandler() {
+            @Override
+            public void handle(final MJpegClient client, final HttpRequest request) {
+                handleTrigger(client, request);
+            }
+        });
+        router.add(REPLAY_PATH, new HttpHandler() {
+            @Override
+            public void handle(final MJpegClient client, final HttpRequest request) {
+                handleReplay(client, request);
+            }
+        });
 
         // HTTP is used by default for now
+        httpPort = port;
         httpEnabled = true;
 
     }
@@ -92,6 +312,77 @@ public final class MJpegHttpStreamer
         return httpEnabled;
     }
 
+    /**
+     * Returns the pipeline counters. The streamer records delivery, the
+     * capture side records its own figures here so /stats sees them all.
+     */
+    public StreamMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /** Returns per-viewer flow control figures of the connected streaming viewers. */
+    public List<ClientStats> getClientStats()
+    {
+        final List<ClientStats> stats = new ArrayList<ClientStats>();
+        synchronized (clients) {
+            for (final MJpegClient client : clients) {
+                if (client.state == MJpegClient.STATE_STREAM) {
+                    stats.add(client.stats());
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Sets what {@link #TRIGGER_PATH} fires, null to answer it with 404. The
+     * trigger runs on the selector thread and must not block.
+     */
+    public void setEventTrigger(final Runnable trigger)
+    {
+        eventTrigger = trigger;
+    }
+
+    /** Sets the recordings {@link #REPLAY_PATH} serves, null to answer it with 404. */
+    public void setFrameArchive(final FrameArchive archive)
+    {
+        frameArchive = archive;
+    }
+
+    /**
+     * Returns the port the server is actually listening on, which differs
+     * from the configured one when that is 0, or 0 until it is bound.
+     */
+    public int getLocalPort()
+    {
+        return localPort;
+    }
+
+    /** Returns the number of viewers currently connected. */
+    public int getClientCount()
+    {
+        return clientCount;
+    }
+
+    /**
+     * Returns the renditions currently served, the full preview first. The
+     * list does not change, but crops come and go with their viewers, so
+     * the encoder asks again for every captured frame and then asks each
+     * channel whether it wants the frame.
+     */
+    public List<FrameChannel> getChannels()
+    {
+        return channelList;
+    }
+
+    // Selector thread only, or the constructor.
+    private void setChannels(final FrameChannel[] newChannels)
+    {
+        channelList = Collections.unmodifiableList(Arrays.asList(newChannels));
+        channels = newChannels;
+    }
+
     /** Starts (or restart if needed) the HTTP server. */
     public void start()
     {
@@ -99,14 +390,23 @@ public final class MJpegHttpStreamer
             throw new IllegalStateException("MJpegHttpStreamer is already running");
         }
 
+        try {
+            selector = Selector.open();
+        }
+        catch (final IOException openingSelector) {
+            throw new IllegalStateException("cannot open selector", openingSelector);
+        }
+        replayReader = new ReplayReader(selector);
+        replayReader.start();
+
         worker = new Thread(new Runnable() {
             @Override
             public void run() {
                 workerRun();
             }
-        });
-        worker.start();
+        }, TAG);
         running = true;
+        worker.start();
     }
 
     public void stop()
@@ -116,211 +416,897 @@ public final class MJpegHttpStreamer
         }
 
         running = false;
-        worker.interrupt();
+        selector.wakeup();
     }
 
-    public void streamJpeg(final byte[] jpeg, final int length, final long timestamp)
+    /**
+     * Returns a free frame slot for the encoder to write into, or null when
+     * every slot is still being sent and the frame has to be dropped. The
+     * caller owns one reference and must either publish or release it.
+     */
+    public JpegFrame acquireFrame()
     {
-        synchronized (bufferLock) {
-            final byte[] buffer;
+        return ring.acquire();
+    }
 
-            if (streamingBufferA) {
-                buffer = bufferB;
-                lengthB = length;
-                timestampB = timestamp;
+    /**
+     * Publishes a frame obtained from {@link #acquireFrame()}, handing the
+     * caller's reference over to the streamer. Stage times set with
+     * {@link JpegFrame#setStageTimes} beforehand go into the latency
+     * histograms. Viewers that are still
+     * sending an older frame skip to the newest one when they are done, so
+     * a slow viewer never blocks the caller.
+     *
+     * @param timestamp the wall clock time the frame was captured at, in
+     *                  epoch milliseconds, see {@link #FROM_PARAMETER}
+     */
+    public void publishFrame(final JpegFrame frame, final int length, final long timestamp)
+    {
+        publishFrame(channels[0], frame, length, timestamp);
+    }
+
+    /**
+     * Publishes a frame like {@link #publishFrame(JpegFrame, int, long)} to
+     * one rendition. A crop that lost its last viewer while the frame was
+     * being encoded just releases it.
+     */
+    public void publishFrame(final FrameChannel channel, final JpegFrame frame, final int length,
+                             final long timestamp)
+    {
+        final JpegFrame previous;
+        final boolean closed;
+        final FrameListener[] listeners;
+
+        synchronized (bufferLock) {
+            closed = channel.closed;
+            listeners = channel.listeners;
+            if (closed) {
+                previous = null;
             }
             else {
-                buffer = bufferA;
-                lengthA = length;
-                timestampA = timestamp;
+                frame.length = length;
+                frame.timestamp = timestamp;
+                frame.sequence = ++channel.latestSequence;
+                frame.publishedNanos = System.nanoTime();
+                channel.refreshedNanos = frame.publishedNanos;
+                channel.publishRate.record(frame.publishedNanos);
+                previous = channel.latestFrame;
+                channel.latestFrame = frame;
+                if (listeners.length > 0) {
+                    // Kept for the listeners even if a newer frame replaces it.
+                    frame.retain();
+                }
             }
+        }
+        if (closed) {
+            frame.release();
+            return;
+        }
+        if (frame.captureNanos != 0L) {
+            metrics.getQueueTime().recordNanos(frame.dequeueNanos - frame.captureNanos);
+            metrics.getEncodeTime().recordNanos(frame.encodeEndNanos - frame.encodeStartNanos);
+            metrics.getPublishTime().recordNanos(frame.publishedNanos - frame.encodeEndNanos);
+        }
+        if (previous != null) {
+            previous.release();
+        }
+        selector.wakeup();
 
-            System.arraycopy(jpeg, 0 /* srcPos */, buffer, 0 /* dstPos */, length);
-            newJpeg = true;
-            bufferLock.notify();
+        if (listeners.length > 0) {
+            for (final FrameListener listener : listeners) {
+                try {
+                    listener.onFrame(channel, frame);
+                }
+                catch (final RuntimeException listenerFailed) {
+                    System.err.println(listenerFailed);
+                }
+            }
+            frame.release();
         }
     }
 
+    /**
+     * Hands every frame published to the channel to the listener from now
+     * on. While it has a listener the channel wants every frame, viewers or
+     * not; a crop is kept as long as well.
+     */
+    public void addFrameListener(final FrameChannel channel, final FrameListener listener)
+    {
+        synchronized (bufferLock) {
+            final FrameListener[] listeners = channel.listeners;
+            final FrameListener[] added = Arrays.copyOf(listeners, listeners.length + 1);
+            added[listeners.length] = listener;
+            channel.listeners = added;
+        }
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    public void removeFrameListener(final FrameChannel channel, final FrameListener listener)
+    {
+        synchronized (bufferLock) {
+            final FrameListener[] listeners = channel.listeners;
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] == listener) {
+                    final FrameListener[] removed = new FrameListener[listeners.length - 1];
+                    System.arraycopy(listeners, 0, removed, 0, i);
+                    System.arraycopy(listeners, i + 1, removed, i, removed.length - i);
+                    channel.listeners = removed;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Confirms that the latest frame of the channel still shows the scene,
+     * in place of publishing an identical one. Viewers that have it are not
+     * sent it again; it counts as fresh for new viewers and answers waiting
+     * snapshot requests.
+     */
+    public void refreshFrame(final FrameChannel channel)
+    {
+        synchronized (bufferLock) {
+            if (channel.closed || channel.latestFrame == null) {
+                return;
+            }
+            channel.refreshedNanos = System.nanoTime();
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Copies a frame into the ring and publishes it. Prefer encoding straight
+     * into {@link #acquireFrame()} which avoids the copy.
+     */
+    public void streamJpeg(final byte[] jpeg, final int length, final long timestamp)
+    {
+        final JpegFrame frame = acquireFrame();
+        if (frame == null) {
+            metrics.getFramesDropped().increment();
+            return;
+        }
+        try {
+            frame.data.write(jpeg, 0, length);
+        }
+        catch (final IOException poolExhausted) {
+            frame.release();
+            metrics.getFramesDropped().increment();
+            return;
+        }
+        frame.setStageTimes(0L, 0L, 0L, 0L);
+        publishFrame(frame, length, timestamp);
+    }
+
     private void workerRun()
     {
-        while (running) {
-            ServerSocket serverSocket = null;
-            Socket socket = null;
-            DataOutputStream stream = null;
+        ServerSocketChannel serverChannel = null;
 
-            try {
-                serverSocket = new ServerSocket(httpPort);
-                serverSocket.setSoTimeout(1000);  /* in milliseconds */
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            localPort = serverChannel.socket().getLocalPort();
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 
-                do {
-                    try {
-                        socket = serverSocket.accept();
+            while (running) {
+                selector.select(selectTimeoutMillis());
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
                     }
-                    catch (final SocketTimeoutException e) {
-                        if (!running) return;
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                        continue;
                     }
-                } while (socket == null);
-
-                serverSocket.close();
-                serverSocket = null;
-                stream = new DataOutputStream(socket.getOutputStream());
-                headerSTATUS(stream);
-                headerMJPG(stream);
-                stream.flush();
-
-                while (running) {
-                    final byte[] buffer;
-                    final int length;
-                    final long timestamp;
-
-                    synchronized (bufferLock) {
-                        while (!newJpeg) {
-                            try {
-                                bufferLock.wait();
-                            }
-                            catch (final InterruptedException stopMayHaveBeenCalled) {
-                                return;
-                            }
-                        }
 
-                        streamingBufferA = !streamingBufferA;
-
-                        if (streamingBufferA) {
-                            buffer = bufferA;
-                            length = lengthA;
-                            timestamp = timestampA;
+                    final MJpegClient client = (MJpegClient) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            readClient(client);
                         }
-                        else {
-                            buffer = bufferB;
-                            length = lengthB;
-                            timestamp = timestampB;
+                        if (key.isValid() && key.isWritable()) {
+                            writeClient(client);
                         }
-
-                        newJpeg = false;
                     }
-
-                    /*stream.writeBytes(
-                            "Content-type: image/jpeg\r\n"
-                                    + "Content-Length: " + length + "\r\n"
-                                    + "X-Timestamp:" + timestamp + "\r\n"
-                                    + "\r\n"
-                    );*/
-                    headerBoundaryLine(stream);
-                    headerJPG(stream, length, timestamp);
-                    stream.write(buffer, 0, length);  /* the 0 is the offset */
-                    //headerBoundaryLine(stream);
-                    //stream.writeBytes(BOUNDARY_LINES);
-                    stream.flush();
+                    catch (final IOException exceptionWhileStreaming) {
+                        closeClient(client);
+                    }
                 }
+
+                dispatchReplays();
+                dispatchLatestFrame();
+                closeIdleClients();
+                updateDemand();
+                updateCongestion();
             }
-            catch (final IOException exceptionWhileStreaming) {
-                System.err.println(exceptionWhileStreaming);
+        }
+        catch (final IOException exceptionWhileServing) {
+            System.err.println(exceptionWhileServing);
+        }
+        finally {
+            synchronized (clients) {
+                for (final MJpegClient client : clients) {
+                    client.close();
+                }
+                clients.clear();
+                clientCount = 0;
             }
-            finally {
-                if (stream != null) {
-                    try {
-                        stream.close();
-                    }
-                    catch (final IOException closingStream) {
-                        System.err.println(closingStream);
+            replayReader.stop();
+            synchronized (bufferLock) {
+                for (final FrameChannel channel : channels) {
+                    channel.demandIntervalNanos = FrameChannel.NO_DEMAND;
+                    channel.congestedDrainRate = 0L;
+                    if (channel.latestFrame != null) {
+                        channel.latestFrame.release();
+                        channel.latestFrame = null;
                     }
                 }
-                if (socket != null) {
-                    try {
-                        socket.close();
-                    }
-                    catch (final IOException closingSocket) {
-                        System.err.println(closingSocket);
-                    }
+            }
+            if (serverChannel != null) {
+                try {
+                    serverChannel.close();
                 }
-                if (serverSocket != null) {
-                    try {
-                        serverSocket.close();
-                    }
-                    catch (final IOException closingServerSocket) {
-                        System.err.println(closingServerSocket);
-                    }
+                catch (final IOException closingServerChannel) {
+                    System.err.println(closingServerChannel);
+                }
+            }
+            try {
+                selector.close();
+            }
+            catch (final IOException closingSelector) {
+                System.err.println(closingSelector);
+            }
+        }
+    }
+
+    private void accept(final ServerSocketChannel serverChannel) throws IOException
+    {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setSendBufferSize(CLIENT_SEND_BUFFER);
+
+            final MJpegClient client = new MJpegClient(channel, chunkPool.getCapacity(), metrics);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            synchronized (clients) {
+                clients.add(client);
+                clientCount = clients.size();
+            }
+        }
+    }
+
+    private void readClient(final MJpegClient client) throws IOException
+    {
+        client.readInput();
+        if (client.state == MJpegClient.STATE_REQUEST) {
+            serveRequest(client);
+        }
+    }
+
+    /** Parses the buffered request, if complete, and routes it. */
+    private void serveRequest(final MJpegClient client) throws IOException
+    {
+        final HttpRequest request;
+        try {
+            request = client.parseRequest();
+        }
+        catch (final HttpException badRequest) {
+            client.beginResponse(HttpResponses.error(badRequest.status), (byte[]) null, false);
+            writeClient(client);
+            return;
+        }
+        if (request == null) {
+            return;
+        }
+
+        final HttpHandler handler = router.route(request.path);
+        if (handler == null) {
+            client.beginResponse(HttpResponses.error(404), (byte[]) null, false);
+        }
+        else if (!"GET".equals(request.method) && !request.isHead()) {
+            client.beginResponse(HttpResponses.error(405, "Allow: GET, HEAD"),
+                    (byte[]) null, false);
+        }
+        else {
+            client.keepAlive = request.isKeepAlive();
+            handler.handle(client, request);
+        }
+        writeClient(client);
+    }
+
+    private void handleStream(final MJpegClient client, final HttpRequest request)
+    {
+        if (request.isHead()) {
+            client.beginResponse(HEAD_RESPONSE_MJPG, (byte[]) null, false);
+            return;
+        }
+        final FrameChannel channel;
+        try {
+            channel = channelFor(request);
+        }
+        catch (final HttpException badRendition) {
+            client.beginResponse(HttpResponses.error(badRendition.status), (byte[]) null, false);
+            return;
+        }
+        final int fps = request.getIntParameter("fps", 0);
+        client.beginStream(channel, fps > 0 ? NANOS_PER_SECOND / fps : 0L);
+    }
+
+    /**
+     * Returns the rendition the request selects: a preset by name, or the
+     * crop and scale it asks for, adding a channel if no other client has
+     * asked for the same. Fails with 400 for a malformed selection and with
+     * 503 when {@link #MAX_CHANNELS} are already being encoded.
+     */
+    private FrameChannel channelFor(final HttpRequest request) throws HttpException
+    {
+        final FrameChannel[] current = channels;
+        final String name = request.getParameter(SIZE_PARAMETER);
+        final String crop = request.getParameter(CROP_PARAMETER);
+        final String scaleValue = request.getParameter(SCALE_PARAMETER);
+
+        if (name != null) {
+            if (crop != null || scaleValue != null) {
+                throw new HttpException(400, "size cannot be combined with crop or scale");
+            }
+            for (int i = 0; i < RENDITION_NAMES.length; i++) {
+                if (current[i].getName().equals(name)) {
+                    return current[i];
                 }
             }
+            throw new HttpException(400, "unknown size " + name);
+        }
+        if (crop == null && scaleValue == null) {
+            return current[0];
+        }
+
+        final int scale = scaleValue == null ? 1 : parseScale(scaleValue);
+        final int[] region = crop == null ? new int[4] : parseCrop(crop);
+        for (final FrameChannel channel : current) {
+            if (channel.matches(region[0], region[1], region[2], region[3], scale)) {
+                return channel;
+            }
+        }
+        if (current.length >= MAX_CHANNELS) {
+            throw new HttpException(503, "too many renditions");
         }
+
+        final FrameChannel added = new FrameChannel(
+                (crop == null ? "full" : region[0] + "," + region[1] + "," + region[2] + ","
+                        + region[3]) + "/" + scale,
+                region[0], region[1], region[2], region[3], scale);
+        final FrameChannel[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = added;
+        setChannels(grown);
+        return added;
     }
 
-    protected void headerSTATUS(DataOutputStream ps) throws IOException
+    private static int parseScale(final String value) throws HttpException
     {
-        ps.writeBytes("HTTP/2.0 200 OK");
-        ps.writeBytes(EOL_STRING);
-        //ps.write(EOL);
+        final int scale;
+        try {
+            scale = Integer.parseInt(value);
+        }
+        catch (final NumberFormatException e) {
+            throw new HttpException(400, "bad scale " + value);
+        }
+        if (scale < 1 || scale > MAX_SCALE || (scale & (scale - 1)) != 0) {
+            throw new HttpException(400, "bad scale " + value);
+        }
+        return scale;
     }
 
-    protected void headerMJPG(DataOutputStream ps) throws IOException
+    /**
+     * Parses {@code left,top,width,height}. Chroma is subsampled by two, so
+     * the region is aligned to even pixels here already, which lets requests
+     * that differ by a pixel share a channel.
+     */
+    private static int[] parseCrop(final String value) throws HttpException
     {
-        ps.writeBytes("Connection: Close");
-        ps.writeBytes(EOL_STRING);
-        //ps.write(EOL);
+        final String[] fields = value.split(",");
+        if (fields.length != 4) {
+            throw new HttpException(400, "bad crop " + value);
+        }
+        final int[] region = new int[4];
+        try {
+            for (int i = 0; i < region.length; i++) {
+                region[i] = Integer.parseInt(fields[i].trim());
+            }
+        }
+        catch (final NumberFormatException e) {
+            throw new HttpException(400, "bad crop " + value);
+        }
+        if (region[0] < 0 || region[1] < 0 || region[2] < 2 || region[3] < 2) {
+            throw new HttpException(400, "bad crop " + value);
+        }
+        region[0] &= ~1;
+        region[1] &= ~1;
+        region[2] &= ~1;
+        region[3] &= ~1;
+        return region;
+    }
 
-        ps.writeBytes("Server: MJPG-Streamer");
-        ps.writeBytes(EOL_STRING);
-        //ps.write(EOL);
+    private void handleSnapshot(final MJpegClient client, final HttpRequest request)
+    {
+        final FrameChannel channel;
+        try {
+            channel = channelFor(request);
+        }
+        catch (final HttpException badRendition) {
+            client.beginResponse(HttpResponses.error(badRendition.status), (byte[]) null, false);
+            return;
+        }
+        client.frameChannel = channel;
 
-        ps.writeBytes(MAX_AGE);
-        ps.writeBytes(EOL_STRING);
-        //ps.write(EOL);
+        final long sequence;
+        final boolean stale;
+        synchronized (bufferLock) {
+            sequence = channel.latestSequence;
+            stale = channel.latestFrame == null
+                    || System.nanoTime() - channel.refreshedNanos > STALE_FRAME_NANOS;
+        }
+        if (stale || request.hasParameter("next")) {
+            // Long-poll: answered by dispatchLatestFrame() once a newer frame is out.
+            client.state = MJpegClient.STATE_SNAPSHOT_WAIT;
+            client.lastSequence = sequence;
+            client.waitSinceNanos = System.nanoTime();
+            client.waitHeadOnly = request.isHead();
+            client.waitIfNoneMatch = request.getHeader("If-None-Match");
+            return;
+        }
+        beginSnapshot(client, request.getHeader("If-None-Match"), request.isHead());
+    }
 
-        ps.writeBytes(EXPIRES);
-        ps.writeBytes(EOL_STRING);
-        //ps.write(EOL);
+    private void handleStats(final MJpegClient client, final HttpRequest request,
+                             final boolean prometheus)
+    {
+        final List<ClientStats> viewers = getClientStats();
+        final byte[] body = ascii(prometheus
+                ? StatsRenderer.prometheus(metrics, clientCount, viewers)
+                : StatsRenderer.json(metrics, clientCount, viewers));
+        client.beginResponse(
+                HttpResponses.head(200,
+                        prometheus ? "text/plain; version=0.0.4" : "application/json",
+                        body.length, client.keepAlive, "Cache-Control: no-cache"),
+                request.isHead() ? null : body, client.keepAlive);
+    }
 
-        ps.writeBytes(CACHE_CONTROL);
-        ps.writeBytes(EOL_STRING);
-        //ps.write(EOL);
+    private void handleReplay(final MJpegClient client, final HttpRequest request)
+    {
+        final FrameArchive archive = frameArchive;
+        if (archive == null) {
+            client.beginResponse(HttpResponses.error(404), (byte[]) null, false);
+            return;
+        }
+        if (request.isHead()) {
+            client.beginResponse(HEAD_RESPONSE_MJPG, (byte[]) null, false);
+            return;
+        }
+        final long from;
+        final double speed;
+        try {
+            from = parseFrom(request.getParameter(FROM_PARAMETER));
+            speed = parseSpeed(request.getParameter(SPEED_PARAMETER));
+        }
+        catch (final HttpException badReplay) {
+            client.beginResponse(HttpResponses.error(badReplay.status), (byte[]) null, false);
+            return;
+        }
+        // The response waits for the reader to find the first frame.
+        client.beginReplay(archive, from, speed);
+        readReplay(client);
+    }
 
-        ps.writeBytes(PRAGMA);
-        ps.writeBytes(EOL_STRING);
-        //ps.write(EOL);
+    /** Hands the client to the reader to position its cursor. */
+    private void readReplay(final MJpegClient client)
+    {
+        client.beginReplayRead();
+        client.setWriteInterest(false);
+        replayReader.read(client);
+    }
 
-        //String dateString = new Date().toString();
+    /**
+     * Takes back the replays whose cursors the reader has positioned: a new
+     * replay starts, or gets 404 if there is nothing to replay, and a
+     * running one sends its next frame when due.
+     */
+    private void dispatchReplays()
+    {
+        MJpegClient client;
+        while ((client = replayReader.takeRead()) != null) {
+            if (!client.endReplayRead()) {
+                continue;
+            }
+            if (!client.isReplayStarted()) {
+                if (client.isReplayFailed()) {
+                    client.beginResponse(HttpResponses.error(500), (byte[]) null, false);
+                }
+                else if (!client.startReplay()) {
+                    client.beginResponse(HttpResponses.error(404), (byte[]) null, false);
+                }
+            }
+            else if (client.isReplayFailed()) {
+                closeClient(client);
+                continue;
+            }
+            try {
+                writeClient(client);
+            }
+            catch (final IOException exceptionWhileStreaming) {
+                closeClient(client);
+            }
+        }
+    }
 
-        //ps.writeBytes("Date: " + dateString + "\r\n");
-        //ps.write(EOL);
+    private static long parseFrom(final String value) throws HttpException
+    {
+        if (value == null) {
+            return 0L;
+        }
+        final long from;
+        try {
+            from = Long.parseLong(value);
+        }
+        catch (final NumberFormatException e) {
+            throw new HttpException(400, "bad from " + value);
+        }
+        return from < 0L ? System.currentTimeMillis() + from : from;
+    }
 
-        //ps.writeBytes("Last Modified: " + dateString + "\r\n");
-        //ps.write(EOL);
+    private static double parseSpeed(final String value) throws HttpException
+    {
+        if (value == null) {
+            return 1.0;
+        }
+        final double speed;
+        try {
+            speed = Double.parseDouble(value);
+        }
+        catch (final NumberFormatException e) {
+            throw new HttpException(400, "bad speed " + value);
+        }
+        // Also false for NaN.
+        if (!(speed > 0.0 && speed <= MAX_SPEED)) {
+            throw new HttpException(400, "bad speed " + value);
+        }
+        return speed;
+    }
 
-        ps.writeBytes(ACCESS_CONTROL);
-        ps.writeBytes(EOL_STRING);
-        //ps.write(EOL);
+    private void handleTrigger(final MJpegClient client, final HttpRequest request)
+    {
+        final Runnable trigger = eventTrigger;
+        if (trigger == null) {
+            client.beginResponse(HttpResponses.error(404), (byte[]) null, false);
+            return;
+        }
+        if (!request.isHead()) {
+            trigger.run();
+        }
+        final byte[] body = ascii("{\"triggered\":true}");
+        client.beginResponse(
+                HttpResponses.head(200, "application/json", body.length, client.keepAlive,
+                        "Cache-Control: no-cache"),
+                request.isHead() ? null : body, client.keepAlive);
+    }
+
+    /**
+     * Answers a snapshot request from the latest frame, or with 304 when the
+     * client already has it. A stale frame is never
+     * served, see {@link #handleSnapshot}.
+     */
+    private void beginSnapshot(final MJpegClient client, final String ifNoneMatch,
+                               final boolean headOnly)
+    {
+        final JpegFrame frame;
+        synchronized (bufferLock) {
+            frame = client.frameChannel.latestFrame;
+            frame.retain();
+        }
 
-        ps.writeBytes("Content-Type: " + MINE_MJPG);
-        ps.writeBytes(EOL_STRING);
-        //ps.write(EOL);
+        final String etag = "\"" + frame.timestamp + "\"";
+        if (ifNoneMatch != null && (ifNoneMatch.equals(etag) || ifNoneMatch.equals("*"))) {
+            frame.release();
+            client.beginResponse(HttpResponses.head(304, null, 0, client.keepAlive,
+                    "ETag: " + etag), (byte[]) null, client.keepAlive);
+            return;
+        }
+
+        final byte[] head = HttpResponses.head(200, "image/jpeg", frame.length, client.keepAlive,
+                "Cache-Control: no-cache",
+                "ETag: " + etag,
+                "X-Timestamp: " + frame.timestamp);
+        if (headOnly) {
+            frame.release();
+            client.beginResponse(head, (byte[]) null, client.keepAlive);
+            return;
+        }
+        client.beginResponse(head, frame, client.keepAlive);
     }
 
-    protected void headerJPG(DataOutputStream ps, int length, long timestamp) throws IOException
+    /**
+     * Starts a new part on every streaming client that has finished its
+     * previous one and answers long-polling snapshot requests.
+     */
+    private void dispatchLatestFrame()
     {
-        ps.writeBytes("Content-Type: image/jpeg");
-        ps.writeBytes(EOL_STRING);
-        //ps.write(EOL);
+        for (int i = clients.size() - 1; i >= 0; i--) {
+            final MJpegClient client = clients.get(i);
+            if (client.state == MJpegClient.STATE_SNAPSHOT_WAIT) {
+                final boolean answered;
+                synchronized (bufferLock) {
+                    final FrameChannel channel = client.frameChannel;
+                    answered = channel.latestFrame != null
+                            && (channel.latestSequence != client.lastSequence
+                            || channel.refreshedNanos > client.waitSinceNanos);
+                }
+                if (!answered) {
+                    continue;
+                }
+                beginSnapshot(client, client.waitIfNoneMatch, client.waitHeadOnly);
+                client.waitIfNoneMatch = null;
+            }
+            else if ((client.state != MJpegClient.STATE_STREAM
+                    && client.state != MJpegClient.STATE_REPLAY) || client.isSending()) {
+                continue;
+            }
+            try {
+                writeClient(client);
+            }
+            catch (final IOException exceptionWhileStreaming) {
+                closeClient(client);
+            }
+        }
+    }
 
-        ps.writeBytes("Content-Length: " + length);
-        ps.writeBytes(EOL_STRING);
-        //ps.write(EOL);
+    /**
+     * Pushes as much as the socket accepts without blocking. When a part is
+     * complete a streaming client moves straight on to the newest frame, if
+     * any. Once a single response is out the connection either waits for
+     * its next request or is closed.
+     */
+    private void writeClient(final MJpegClient client) throws IOException
+    {
+        while (true) {
+            if (!client.isSending()) {
+                if (client.state == MJpegClient.STATE_RESPONSE) {
+                    if (!client.keepAlive) {
+                        closeClient(client);
+                        return;
+                    }
+                    client.endResponse();
+                    serveRequest(client);
+                    return;
+                }
+                if (client.state == MJpegClient.STATE_REPLAY) {
+                    if (client.isReplayReading()) {
+                        client.setWriteInterest(false);
+                        return;
+                    }
+                    if (client.isReplayFinished()) {
+                        closeClient(client);
+                        return;
+                    }
+                    if (!client.isReplayReady()) {
+                        // Sent, the reader moves the cursor on.
+                        readReplay(client);
+                        return;
+                    }
+                    if (client.getReplayDueNanos() > System.nanoTime()) {
+                        client.setWriteInterest(false);
+                        return;
+                    }
+                    client.beginReplayPart();
+                }
+                else if (client.state != MJpegClient.STATE_STREAM || !nextPart(client)) {
+                    client.setWriteInterest(false);
+                    return;
+                }
+            }
+            if (!client.write()) {
+                // Socket buffer is full, wait for OP_WRITE.
+                client.setWriteInterest(true);
+                return;
+            }
+        }
+    }
 
-        ps.writeBytes("X-Timestamp: " + timestamp);
-        ps.writeBytes(EOL_STRING);
-        ps.writeBytes(EOL_STRING);
-        //ps.write(EOL);
-        //ps.write(EOL);
+    /**
+     * Hands the newest frame to the client, returns false if it has it
+     * already, it is too stale for a new viewer, or the viewer's fps limit
+     * says to skip it.
+     */
+    private boolean nextPart(final MJpegClient client)
+    {
+        final JpegFrame frame;
+
+        synchronized (bufferLock) {
+            frame = client.frameChannel.latestFrame;
+            if (frame == null || frame.sequence == client.lastSequence) {
+                return false;
+            }
+            if (client.lastSequence == 0L
+                    && System.nanoTime() - client.frameChannel.refreshedNanos
+                    > STALE_FRAME_NANOS) {
+                return false;
+            }
+            if (client.isThrottled(frame)) {
+                // Not a drop, the viewer asked for fewer frames.
+                client.lastSequence = frame.sequence;
+                return false;
+            }
+            frame.retain();
+        }
+
+        client.beginPart(frame);
+        return true;
     }
 
-    protected void headerBoundaryLine(DataOutputStream ps) throws IOException
+    /**
+     * How long the selector may sleep: until the next replayed frame is due,
+     * but no longer than the idle check interval.
+     */
+    private long selectTimeoutMillis()
     {
-        ps.writeBytes(BOUNDARY_LINES);
+        final long now = System.nanoTime();
+        long timeout = IDLE_CHECK_MS;
+        for (int i = clients.size() - 1; i >= 0; i--) {
+            final MJpegClient client = clients.get(i);
+            if (client.state != MJpegClient.STATE_REPLAY || client.isSending()
+                    || !client.isReplayReady()) {
+                continue;
+            }
+            final long due = (client.getReplayDueNanos() - now + NANOS_PER_MILLI - 1)
+                    / NANOS_PER_MILLI;
+            timeout = Math.min(timeout, due);
+        }
+        // 0 would mean no timeout at all, a frame already due waits a millisecond.
+        return Math.max(1L, timeout);
     }
 
-    private void acceptAndStream() throws IOException
+    /** Closes keep-alive connections that have not sent a request in a while. */
+    /**
+     * Closes kept-alive connections that sent no request for a while, and
+     * gives up on snapshot requests that waited too long for a frame.
+     */
+    private void closeIdleClients()
     {
+        final long now = System.nanoTime();
+        for (int i = clients.size() - 1; i >= 0; i--) {
+            final MJpegClient client = clients.get(i);
+            if (client.state == MJpegClient.STATE_REQUEST
+                    && now - client.lastActivityNanos > KEEP_ALIVE_TIMEOUT_NANOS) {
+                closeClient(client);
+            }
+            else if (client.state == MJpegClient.STATE_SNAPSHOT_WAIT
+                    && now - client.waitSinceNanos > snapshotTimeoutNanos) {
+                client.waitIfNoneMatch = null;
+                client.beginResponse(HttpResponses.error(503, "Retry-After: 1"),
+                        (byte[]) null, false);
+                try {
+                    writeClient(client);
+                }
+                catch (final IOException exceptionWhileAnswering) {
+                    closeClient(client);
+                }
+            }
+        }
+    }
 
+    /**
+     * Recomputes what the encoder should produce for each channel from the
+     * clients, and drops the crops nobody streams or waits for any more.
+     */
+    private void updateDemand()
+    {
+        final FrameChannel[] current = channels;
+        int unwatched = 0;
+        for (final FrameChannel channel : current) {
+            long interval = channel.listeners.length > 0 ? 0L : FrameChannel.NO_DEMAND;
+            for (int i = clients.size() - 1; i >= 0; i--) {
+                final MJpegClient client = clients.get(i);
+                final long wanted;
+                if (client.frameChannel != channel) {
+                    continue;
+                }
+                if (client.state == MJpegClient.STATE_STREAM) {
+                    wanted = client.getPartIntervalNanos();
+                }
+                else if (client.state == MJpegClient.STATE_SNAPSHOT_WAIT) {
+                    wanted = 0L;
+                }
+                else {
+                    continue;
+                }
+                if (interval == FrameChannel.NO_DEMAND || wanted < interval) {
+                    interval = wanted;
+                }
+            }
+            channel.demandIntervalNanos = interval;
+            if (interval == FrameChannel.NO_DEMAND) {
+                unwatched++;
+            }
+        }
+        if (unwatched > 0 && current.length > RENDITION_NAMES.length) {
+            removeUnwatchedCrops(current);
+        }
     }
 
-}
+    private void removeUnwatchedCrops(final FrameChannel[] current)
+    {
+        final List<FrameChannel> kept = new ArrayList<FrameChannel>(current.length);
+        for (int i = 0; i < current.length; i++) {
+            final FrameChannel channel = current[i];
+            if (i < RENDITION_NAMES.length
+                    || channel.demandIntervalNanos != FrameChannel.NO_DEMAND) {
+                kept.add(channel);
+                continue;
+            }
+            synchronized (bufferLock) {
+                channel.closed = true;
+                if (channel.latestFrame != null) {
+                    channel.latestFrame.release();
+                    channel.latestFrame = null;
+                }
+            }
+        }
+        if (kept.size() < current.length) {
+            setChannels(kept.toArray(new FrameChannel[kept.size()]));
+        }
+    }
+
+    /**
+     * Works out for each channel the output rate its slowest congested
+     * viewer could take, see {@link FrameChannel#getCongestedDrainRate}.
+     */
+    private void updateCongestion()
+    {
+        final FrameChannel[] current = channels;
+        for (final FrameChannel channel : current) {
+            final double framesPerSecond = channel.publishRate.getFramesPerSecond();
+            double slowest = 0.0;
+            for (int i = clients.size() - 1; i >= 0; i--) {
+                final MJpegClient client = clients.get(i);
+                if (client.frameChannel != channel || client.state != MJpegClient.STATE_STREAM
+                        || !client.isCongested()) {
+                    continue;
+                }
+                // Sent one frame in every so many of the channel's.
+                final double share = Math.max(1.0,
+                        framesPerSecond * client.getPartIntervalNanos() / NANOS_PER_SECOND);
+                final double rate = client.getDrainRate() * share;
+                if (rate > 0.0 && (slowest == 0.0 || rate < slowest)) {
+                    slowest = rate;
+                }
+            }
+            channel.congestedDrainRate = (long) slowest;
+        }
+    }
+
+    private void closeClient(final MJpegClient client)
+    {
+        client.close();
+        synchronized (clients) {
+            clients.remove(client);
+            clientCount = clients.size();
+        }
+    }
 
+    static byte[] ascii(final String string)
+    {
+        try {
+            return string.getBytes("US-ASCII");
+        }
+        catch (final UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.kseek.camjpeg.net.http;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable encoder for the boundary line and headers that precede every
+ * JPEG part. The constant pieces are encoded once, only the digits of the
+ * length, timestamp and capture latency are written per frame, straight
+ * into the backing array, so steady-state streaming allocates nothing.
+ * <p>
+ * X-Capture-Latency-Us is the time from the camera callback to this part
+ * being sent, in microseconds. Together with the client's own receive time
+ * it gives the glass-to-glass delay. Parts of frames whose capture time is
+ * not known, recorded ones among them, go without it.
+ */
+final class MJpegPartHeader
+{
+    private final static byte[] CONTENT_LENGTH = MJpegHttpStreamer.ascii(
+            MJpegHttpStreamer.BOUNDARY_LINES
+                    + "Content-Type: image/jpeg" + MJpegHttpStreamer.EOL_STRING
+                    + "Content-Length: ");
+
+    private final static byte[] TIMESTAMP = MJpegHttpStreamer.ascii(
+            MJpegHttpStreamer.EOL_STRING + "X-Timestamp: ");
+
+    private final static byte[] CAPTURE_LATENCY = MJpegHttpStreamer.ascii(
+            MJpegHttpStreamer.EOL_STRING + "X-Capture-Latency-Us: ");
+
+    private final static byte[] END = MJpegHttpStreamer.ascii(
+            MJpegHttpStreamer.EOL_STRING + MJpegHttpStreamer.EOL_STRING);
+
+    /** Long.MIN_VALUE has 19 digits plus its sign. */
+    private final static int MAX_LONG_CHARS = 20;
+
+    private final byte[] bytes = new byte[CONTENT_LENGTH.length + MAX_LONG_CHARS
+            + TIMESTAMP.length + MAX_LONG_CHARS
+            + CAPTURE_LATENCY.length + MAX_LONG_CHARS + END.length];
+    private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+    MJpegPartHeader()
+    {
+        super();
+        System.arraycopy(CONTENT_LENGTH, 0, bytes, 0, CONTENT_LENGTH.length);
+    }
+
+    /** Encodes the header and returns the shared buffer, ready to be written. */
+    ByteBuffer encode(final int length, final long timestamp, final long captureLatencyMicros)
+    {
+        int position = putTimestamp(length, timestamp);
+        position = put(bytes, position, CAPTURE_LATENCY);
+        position = putDecimal(bytes, position, captureLatencyMicros);
+        return finish(position);
+    }
+
+    /** Encodes the header of a frame without a known capture latency. */
+    ByteBuffer encode(final int length, final long timestamp)
+    {
+        return finish(putTimestamp(length, timestamp));
+    }
+
+    private int putTimestamp(final int length, final long timestamp)
+    {
+        final int position = putDecimal(bytes, CONTENT_LENGTH.length, length);
+        return putDecimal(bytes, put(bytes, position, TIMESTAMP), timestamp);
+    }
+
+    private ByteBuffer finish(final int position)
+    {
+        final int end = put(bytes, position, END);
+        buffer.clear();
+        buffer.limit(end);
+        return buffer;
+    }
+
+    private static int put(final byte[] dst, final int position, final byte[] src)
+    {
+        System.arraycopy(src, 0, dst, position, src.length);
+        return position + src.length;
+    }
+
+    /** Writes the ASCII digits of value at position, returns the next free index. */
+    static int putDecimal(final byte[] dst, int position, final long value)
+    {
+        // Work on the negative magnitude so that Long.MIN_VALUE is not a special case.
+        long remaining = value;
+        if (remaining < 0) {
+            dst[position++] = (byte) '-';
+        }
+        else {
+            remaining = -remaining;
+        }
+
+        int digits = 1;
+        for (long scan = remaining / 10; scan != 0; scan /= 10) {
+            digits++;
+        }
+
+        final int end = position + digits;
+        for (int i = end - 1; i >= position; i--) {
+            dst[i] = (byte) ('0' - (remaining % 10));
+            remaining /= 10;
+        }
+        return end;
+    }
+}
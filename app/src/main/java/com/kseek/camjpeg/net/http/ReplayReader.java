@@ -0,0 +1,168 @@
+package com.kseek.camjpeg.net.http;
+
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+
+/**
+ * Positions replay cursors on a thread of its own, so that the selector
+ * never waits for the disk. Seeking the archive for a new replay and
+ * moving a cursor on after each part both read indexes and record headers,
+ * and may open the next segment; all the selector does with a cursor is
+ * {@link FrameCursor#transferTo} the frame it is already on.
+ * <p>
+ * The selector hands a client over with {@link #read} and takes it back
+ * from {@link #takeRead} once the reader has woken it up. In between only
+ * the reader touches the client's cursor, see {@link MJpegClient#readReplay}.
+ * The queues' lock orders the two threads' accesses.
+ * <p>
+ * A replay that has caught up with a recording in progress stays with the
+ * reader, which looks for new frames every {@link #POLL_NANOS}, until one
+ * is found, the recording stops or the connection is closed.
+ */
+final class ReplayReader
+{
+    private static final String TAG = ReplayReader.class.getSimpleName();
+
+    /** About how often the recorder adds frames to its index. */
+    static final long POLL_NANOS = 200L * 1000L * 1000L;
+
+    private static final long NANOS_PER_MILLI = 1000L * 1000L;
+
+    private final Selector selector;
+    private final Object lock = new Object();
+    // Guarded by lock.
+    private final ArrayDeque<MJpegClient> pending = new ArrayDeque<MJpegClient>();
+    private final ArrayDeque<MJpegClient> read = new ArrayDeque<MJpegClient>();
+    // Due in order, each POLL_NANOS after it was last read.
+    private final ArrayDeque<MJpegClient> waiting = new ArrayDeque<MJpegClient>();
+    private boolean running = false;
+
+    ReplayReader(final Selector selector)
+    {
+        super();
+        this.selector = selector;
+    }
+
+    void start()
+    {
+        synchronized (lock) {
+            if (running) {
+                throw new IllegalStateException("ReplayReader is already running");
+            }
+            running = true;
+        }
+
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readerRun();
+            }
+        }, TAG);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Stops reading. Clients are no longer handed back, the cursors of those
+     * the reader still has are closed instead.
+     */
+    void stop()
+    {
+        synchronized (lock) {
+            running = false;
+            for (final MJpegClient client : pending) {
+                client.closeReplay();
+            }
+            for (final MJpegClient client : read) {
+                client.closeReplay();
+            }
+            for (final MJpegClient client : waiting) {
+                client.closeReplay();
+            }
+            pending.clear();
+            read.clear();
+            waiting.clear();
+            lock.notify();
+        }
+    }
+
+    /** Queues the client for its cursor to be positioned, from the selector thread. */
+    void read(final MJpegClient client)
+    {
+        synchronized (lock) {
+            pending.add(client);
+            lock.notify();
+        }
+    }
+
+    /** The next client whose cursor has been positioned, or null. */
+    MJpegClient takeRead()
+    {
+        synchronized (lock) {
+            return read.poll();
+        }
+    }
+
+    private void readerRun()
+    {
+        while (true) {
+            final MJpegClient client;
+            synchronized (lock) {
+                try {
+                    client = take();
+                }
+                catch (final InterruptedException stopReading) {
+                    return;
+                }
+                if (client == null) {
+                    return;
+                }
+            }
+
+            if (client.isClosed()) {
+                // Gone while waiting for frames, the selector has let go of it.
+                client.closeReplay();
+                continue;
+            }
+            client.readReplay();
+
+            synchronized (lock) {
+                if (!running) {
+                    client.closeReplay();
+                    return;
+                }
+                if (client.isReplayWaiting()) {
+                    client.replayRetryNanos = System.nanoTime() + POLL_NANOS;
+                    waiting.add(client);
+                    continue;
+                }
+                read.add(client);
+            }
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Called with the lock held: waits for a newly handed over client, or
+     * the first waiting one to be due. Returns null once stopped.
+     */
+    private MJpegClient take() throws InterruptedException
+    {
+        while (running) {
+            if (!pending.isEmpty()) {
+                return pending.poll();
+            }
+            final MJpegClient due = waiting.peek();
+            if (due == null) {
+                lock.wait();
+                continue;
+            }
+            final long remaining = due.replayRetryNanos - System.nanoTime();
+            if (remaining <= 0L) {
+                return waiting.poll();
+            }
+            lock.wait(remaining / NANOS_PER_MILLI + 1L);
+        }
+        return null;
+    }
+}
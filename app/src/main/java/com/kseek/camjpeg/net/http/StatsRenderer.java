@@ -0,0 +1,240 @@
+package com.kseek.camjpeg.net.http;
+
+import com.kseek.camjpeg.metrics.Counter;
+import com.kseek.camjpeg.metrics.Gauge;
+import com.kseek.camjpeg.metrics.LatencyHistogram;
+import com.kseek.camjpeg.metrics.StreamMetrics;
+
+import java.util.List;
+
+/** Renders the pipeline metrics for /stats (JSON) and /metrics (Prometheus text). */
+final class StatsRenderer
+{
+    private final static double[] QUANTILES = {0.5, 0.9, 0.99};
+    private final static double NANOS_PER_SECOND = 1e9;
+    private final static String PREFIX = "camjpeg_";
+
+    private StatsRenderer()
+    {
+        super();
+    }
+
+    static String json(final StreamMetrics metrics, final int clientCount,
+                       final List<ClientStats> viewers)
+    {
+        final StringBuilder json = new StringBuilder(512);
+        json.append("{\"framesCaptured\":").append(metrics.getFramesCaptured().get());
+        json.append(",\"framesEncoded\":").append(metrics.getFramesEncoded().get());
+        json.append(",\"framesDropped\":").append(metrics.getFramesDropped().get());
+        json.append(",\"framesSkipped\":").append(metrics.getFramesSkipped().get());
+        json.append(",\"framesCoalesced\":").append(metrics.getFramesCoalesced().get());
+        json.append(",\"framesStatic\":").append(metrics.getFramesStatic().get());
+        json.append(",\"framesRepeated\":").append(metrics.getFramesRepeated().get());
+        json.append(",\"framesSent\":").append(metrics.getFramesSent().get());
+        json.append(",\"bytesSent\":").append(metrics.getBytesSent().get());
+        json.append(",\"previewBuffers\":").append(metrics.getPreviewBuffers().get());
+        json.append(",\"previewBuffersInUse\":").append(metrics.getPreviewBuffersInUse().get());
+        json.append(",\"previewBuffersStarved\":")
+                .append(metrics.getPreviewBuffersStarved().get());
+        json.append(",\"jpegQuality\":").append(metrics.getJpegQuality().get());
+        json.append(",\"encodedBitrate\":").append(metrics.getEncodedBitrate().get());
+        json.append(",\"framesRecorded\":").append(metrics.getFramesRecorded().get());
+        json.append(",\"bytesRecorded\":").append(metrics.getBytesRecorded().get());
+        json.append(",\"framesRecordDropped\":").append(metrics.getFramesRecordDropped().get());
+        json.append(",\"recordingEvents\":").append(metrics.getRecordingEvents().get());
+        json.append(",\"preEventFrames\":").append(metrics.getPreEventFrames().get());
+        json.append(",\"preEventBytes\":").append(metrics.getPreEventBytes().get());
+        json.append(",\"motionEvents\":").append(metrics.getMotionEvents().get());
+        json.append(",\"motionActive\":").append(metrics.getMotionActive().get());
+        json.append(",\"captureFps\":").append(metrics.getCaptureRate().getFramesPerSecond());
+        json.append(",\"encodeFps\":").append(metrics.getEncodeRate().getFramesPerSecond());
+        json.append(",\"sendFps\":").append(metrics.getSendRate().getFramesPerSecond());
+        json.append(",\"sendBytesPerSecond\":").append(metrics.getSendByteRate().get());
+        json.append(",\"clients\":").append(clientCount);
+        json.append(",\"queueMillis\":");
+        jsonHistogram(json, metrics.getQueueTime());
+        json.append(",\"encodeMillis\":");
+        jsonHistogram(json, metrics.getEncodeTime());
+        json.append(",\"publishMillis\":");
+        jsonHistogram(json, metrics.getPublishTime());
+        json.append(",\"deliveryMillis\":");
+        jsonHistogram(json, metrics.getDeliveryTime());
+        json.append(",\"endToEndMillis\":");
+        jsonHistogram(json, metrics.getEndToEndTime());
+        json.append(",\"viewers\":[");
+        for (int i = 0; i < viewers.size(); i++) {
+            final ClientStats viewer = viewers.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"address\":\"").append(viewer.getRemoteAddress()).append('"');
+            json.append(",\"framesSent\":").append(viewer.getFramesSent());
+            json.append(",\"framesDropped\":").append(viewer.getFramesDropped());
+            json.append(",\"bytesSent\":").append(viewer.getBytesSent());
+            json.append(",\"drainBytesPerSecond\":").append(viewer.getDrainBytesPerSecond());
+            json.append(",\"lagMillis\":").append(viewer.getLagMillis());
+            json.append(",\"maxLagMillis\":").append(viewer.getMaxLagMillis());
+            json.append('}');
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    private static void jsonHistogram(final StringBuilder json, final LatencyHistogram histogram)
+    {
+        final double nanosPerMilli = 1e6;
+        json.append("{\"count\":").append(histogram.getCount());
+        json.append(",\"p50\":").append(histogram.getPercentileNanos(0.5) / nanosPerMilli);
+        json.append(",\"p90\":").append(histogram.getPercentileNanos(0.9) / nanosPerMilli);
+        json.append(",\"p99\":").append(histogram.getPercentileNanos(0.99) / nanosPerMilli);
+        json.append(",\"max\":").append(histogram.getMaxNanos() / nanosPerMilli);
+        json.append('}');
+    }
+
+    static String prometheus(final StreamMetrics metrics, final int clientCount,
+                             final List<ClientStats> viewers)
+    {
+        final StringBuilder text = new StringBuilder(1024);
+        counter(text, "frames_captured_total", "Preview frames delivered by the camera.",
+                metrics.getFramesCaptured());
+        counter(text, "frames_encoded_total", "Frames compressed to JPEG and published.",
+                metrics.getFramesEncoded());
+        counter(text, "frames_dropped_total", "Captured frames that were never published.",
+                metrics.getFramesDropped());
+        counter(text, "frames_skipped_total", "Captured frames not encoded for lack of demand.",
+                metrics.getFramesSkipped());
+        counter(text, "frames_coalesced_total",
+                "Captured frames superseded by a newer one while waiting for an encoder.",
+                metrics.getFramesCoalesced());
+        counter(text, "frames_static_total",
+                "Captured frames not encoded because the scene was static.",
+                metrics.getFramesStatic());
+        counter(text, "frames_repeated_total",
+                "Renditions not encoded because they matched the latest frame.",
+                metrics.getFramesRepeated());
+        counter(text, "frames_sent_total", "MJPEG parts delivered over all viewers.",
+                metrics.getFramesSent());
+        counter(text, "bytes_sent_total", "Bytes written to all connections.",
+                metrics.getBytesSent());
+        counter(text, "preview_buffers_starved_total",
+                "Preview frames dropped so the camera would not run out of buffers.",
+                metrics.getPreviewBuffersStarved());
+        gauge(text, "preview_buffers", "Callback buffers allocated for the camera preview.",
+                metrics.getPreviewBuffers());
+        gauge(text, "preview_buffers_in_use", "Callback buffers waiting for or being encoded.",
+                metrics.getPreviewBuffersInUse());
+        gauge(text, "jpeg_quality", "JPEG quality the full frame is currently encoded with.",
+                metrics.getJpegQuality());
+        gauge(text, "encoded_bits_per_second", "Smoothed output rate of the encoders.",
+                metrics.getEncodedBitrate());
+        counter(text, "frames_recorded_total", "Frames written to recording segments.",
+                metrics.getFramesRecorded());
+        counter(text, "bytes_recorded_total", "Bytes written to recording segments.",
+                metrics.getBytesRecorded());
+        counter(text, "frames_record_dropped_total",
+                "Frames left out of the recording because the disk fell behind.",
+                metrics.getFramesRecordDropped());
+        counter(text, "recording_events_total", "Triggers that started an event recording.",
+                metrics.getRecordingEvents());
+        gauge(text, "pre_event_frames", "Frames held in memory ahead of the next event.",
+                metrics.getPreEventFrames());
+        gauge(text, "pre_event_bytes", "Bytes held in memory ahead of the next event.",
+                metrics.getPreEventBytes());
+        counter(text, "motion_events_total", "Movements that started in front of the camera.",
+                metrics.getMotionEvents());
+        gauge(text, "motion_active", "1 while the scene moves, 0 while it is static.",
+                metrics.getMotionActive());
+
+        rate(text, "capture_frames_per_second", "Smoothed rate of preview frames from the camera.",
+                metrics.getCaptureRate().getFramesPerSecond());
+        rate(text, "encode_frames_per_second", "Smoothed rate of captured frames published.",
+                metrics.getEncodeRate().getFramesPerSecond());
+        rate(text, "send_frames_per_second", "Smoothed rate of MJPEG parts over all viewers.",
+                metrics.getSendRate().getFramesPerSecond());
+        rate(text, "send_bytes_per_second", "Smoothed rate of bytes written to all connections.",
+                metrics.getSendByteRate().get());
+
+        help(text, "clients", "gauge", "Connected HTTP clients.");
+        text.append(PREFIX).append("clients ").append(clientCount).append('\n');
+
+        summary(text, "queue_seconds", "Capture callback to the encoder picking the frame up.",
+                metrics.getQueueTime());
+        summary(text, "encode_seconds", "Time spent compressing one frame.",
+                metrics.getEncodeTime());
+        summary(text, "publish_seconds", "End of compression to publication.",
+                metrics.getPublishTime());
+        summary(text, "delivery_seconds", "Publication to last byte written, per viewer.",
+                metrics.getDeliveryTime());
+        summary(text, "end_to_end_seconds", "Capture callback to last byte written, per viewer.",
+                metrics.getEndToEndTime());
+
+        help(text, "client_frames_sent_total", "counter", "MJPEG parts delivered per viewer.");
+        for (final ClientStats viewer : viewers) {
+            clientSample(text, "client_frames_sent_total", viewer, viewer.getFramesSent());
+        }
+        help(text, "client_frames_dropped_total", "counter",
+                "Frames a viewer skipped because it was still busy.");
+        for (final ClientStats viewer : viewers) {
+            clientSample(text, "client_frames_dropped_total", viewer, viewer.getFramesDropped());
+        }
+        help(text, "client_lag_seconds", "gauge",
+                "Publish to last byte time of the last frame sent per viewer.");
+        for (final ClientStats viewer : viewers) {
+            text.append(PREFIX).append("client_lag_seconds{client=\"")
+                    .append(viewer.getRemoteAddress()).append("\"} ")
+                    .append(viewer.getLagMillis() / 1000.0).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void help(final StringBuilder text, final String name, final String type,
+                             final String help)
+    {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(final StringBuilder text, final String name, final String help,
+                                final Counter counter)
+    {
+        help(text, name, "counter", help);
+        text.append(PREFIX).append(name).append(' ').append(counter.get()).append('\n');
+    }
+
+    private static void gauge(final StringBuilder text, final String name, final String help,
+                              final Gauge gauge)
+    {
+        help(text, name, "gauge", help);
+        text.append(PREFIX).append(name).append(' ').append(gauge.get()).append('\n');
+    }
+
+    private static void rate(final StringBuilder text, final String name, final String help,
+                             final double perSecond)
+    {
+        help(text, name, "gauge", help);
+        text.append(PREFIX).append(name).append(' ').append(perSecond).append('\n');
+    }
+
+    private static void summary(final StringBuilder text, final String name, final String help,
+                                final LatencyHistogram histogram)
+    {
+        help(text, name, "summary", help);
+        for (final double quantile : QUANTILES) {
+            text.append(PREFIX).append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.getPercentileNanos(quantile) / NANOS_PER_SECOND)
+                    .append('\n');
+        }
+        text.append(PREFIX).append(name).append("_sum ")
+                .append(histogram.getSumNanos() / NANOS_PER_SECOND).append('\n');
+        text.append(PREFIX).append(name).append("_count ")
+                .append(histogram.getCount()).append('\n');
+    }
+
+    private static void clientSample(final StringBuilder text, final String name,
+                                     final ClientStats viewer, final long value)
+    {
+        text.append(PREFIX).append(name).append("{client=\"")
+                .append(viewer.getRemoteAddress()).append("\"} ")
+                .append(value).append('\n');
+    }
+}
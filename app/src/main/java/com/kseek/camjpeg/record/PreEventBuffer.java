@@ -0,0 +1,160 @@
+package com.kseek.camjpeg.record;
+
+import com.kseek.camjpeg.net.http.ChunkedOutputStream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the most recent frames, up to a number of seconds back, in direct
+ * memory so that a recording can start before the event that triggered it.
+ * <p>
+ * All memory is allocated up front as fixed size slabs, used as a ring:
+ * frames are appended to the current slab, and when one does not fit the
+ * next slab is taken over and the frames it held are forgotten. Large or
+ * small frames only change how many fit, never how much memory is used.
+ * Frames older than the time limit are forgotten as well. A frame larger
+ * than a slab is not kept.
+ * <p>
+ * Thread safe; every method holds the buffer's lock only for a copy.
+ */
+public final class PreEventBuffer
+{
+    public static final int DEFAULT_MEGABYTES = 16;
+    public static final int DEFAULT_SECONDS = 10;
+
+    private static final int SLAB_BYTES = 1024 * 1024;
+
+    /** Index entries, enough for the time limit at a high frame rate. */
+    private static final int MAX_FRAMES = 4096;
+
+    private final long maxAgeMillis;
+    private final ByteBuffer[] slabs;
+
+    // Guarded by this. Entries head (oldest) to tail in a ring of MAX_FRAMES.
+    private final int[] entrySlab = new int[MAX_FRAMES];
+    private final int[] entryOffset = new int[MAX_FRAMES];
+    private final int[] entryLength = new int[MAX_FRAMES];
+    private final long[] entryMillis = new long[MAX_FRAMES];
+    private int head = 0;
+    private int count = 0;
+    private int bytes = 0;
+    private int writeSlab = 0;
+    private int writeOffset = 0;
+
+    /**
+     * @param megabytes the memory to hold frames in, rounded down to whole slabs, at least two
+     * @param seconds   how far back frames are kept
+     */
+    public PreEventBuffer(final int megabytes, final int seconds)
+    {
+        super();
+
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("seconds must be positive");
+        }
+
+        maxAgeMillis = seconds * 1000L;
+        slabs = new ByteBuffer[(int) Math.max(2L, megabytes * 1024L * 1024L / SLAB_BYTES)];
+        for (int i = 0; i < slabs.length; i++) {
+            slabs[i] = ByteBuffer.allocateDirect(SLAB_BYTES);
+        }
+    }
+
+    /** The direct memory held, whatever the frames. */
+    public long getCapacity()
+    {
+        return (long) slabs.length * SLAB_BYTES;
+    }
+
+    public synchronized int getFrames()
+    {
+        return count;
+    }
+
+    /** Bytes of JPEG currently kept. */
+    public synchronized int getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Keeps a copy of the frame, forgetting what it has to. Returns false if
+     * the frame is too large to keep.
+     */
+    public synchronized boolean add(final ChunkedOutputStream jpeg, final long millis)
+    {
+        final int length = jpeg.getLength();
+        if (length > SLAB_BYTES) {
+            return false;
+        }
+        if (writeOffset + length > SLAB_BYTES) {
+            writeSlab = (writeSlab + 1) % slabs.length;
+            writeOffset = 0;
+            // The oldest entries are the ones in the slab taken over.
+            while (count > 0 && entrySlab[head] == writeSlab) {
+                removeHead();
+            }
+        }
+        while (count > 0 && (count == MAX_FRAMES || millis - entryMillis[head] > maxAgeMillis)) {
+            removeHead();
+        }
+
+        final ByteBuffer slab = slabs[writeSlab];
+        slab.clear();
+        slab.position(writeOffset);
+        jpeg.copyTo(slab);
+
+        final int tail = (head + count) % MAX_FRAMES;
+        entrySlab[tail] = writeSlab;
+        entryOffset[tail] = writeOffset;
+        entryLength[tail] = length;
+        entryMillis[tail] = millis;
+        count++;
+        bytes += length;
+        writeOffset += length;
+        return true;
+    }
+
+    /** The time of the oldest frame kept, or -1 if there is none. */
+    public synchronized long getOldestMillis()
+    {
+        return count == 0 ? -1L : entryMillis[head];
+    }
+
+    /**
+     * Moves the oldest frames, as many as fit, into out as segment records,
+     * see {@link SegmentFormat}, and forgets them. Returns the number moved.
+     */
+    public synchronized int drainTo(final ByteBuffer out)
+    {
+        int drained = 0;
+        while (count > 0
+                && out.remaining() >= SegmentFormat.RECORD_HEADER_BYTES + entryLength[head]) {
+            final ByteBuffer slab = slabs[entrySlab[head]];
+            slab.clear();
+            slab.position(entryOffset[head]);
+            slab.limit(entryOffset[head] + entryLength[head]);
+            out.putInt(entryLength[head]);
+            out.putLong(entryMillis[head]);
+            out.put(slab);
+            removeHead();
+            drained++;
+        }
+        return drained;
+    }
+
+    public synchronized void clear()
+    {
+        head = 0;
+        count = 0;
+        bytes = 0;
+        writeOffset = 0;
+    }
+
+    private void removeHead()
+    {
+        bytes -= entryLength[head];
+        head = (head + 1) % MAX_FRAMES;
+        count--;
+    }
+}
@@ -0,0 +1,53 @@
+package com.kseek.camjpeg.record;
+
+import com.kseek.camjpeg.net.http.FrameArchive;
+import com.kseek.camjpeg.net.http.FrameCursor;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The segments of a {@link SegmentedRecorder} directory as a
+ * {@link FrameArchive}. A seek bisects the recorder's {@link SegmentList}
+ * in memory, then the index of the segment found, see
+ * {@link SegmentFormat}, so it takes a logarithmic number of reads however
+ * much footage there is, and never lists the directory. Segments without
+ * an index are skipped.
+ */
+public final class SegmentArchive implements FrameArchive
+{
+    private final SegmentList segments;
+
+    public SegmentArchive(final SegmentList segments)
+    {
+        super();
+        this.segments = segments;
+    }
+
+    public File getDirectory()
+    {
+        return segments.getDirectory();
+    }
+
+    /** Whether the recorder is still adding frames, see {@link SegmentList#isRecording}. */
+    @Override
+    public boolean isRecording()
+    {
+        return segments.isRecording();
+    }
+
+    @Override
+    public FrameCursor seek(final long millis) throws IOException
+    {
+        // The last segment started at or before millis may still hold it,
+        // if not the first frame of a later one comes next.
+        final SegmentCursor cursor = new SegmentCursor(segments);
+        for (long start = segments.floor(millis); start >= 0L; start = segments.higher(start)) {
+            if (cursor.seek(start, millis)) {
+                return cursor;
+            }
+        }
+        cursor.close();
+        return null;
+    }
+}
@@ -0,0 +1,196 @@
+package com.kseek.camjpeg.record;
+
+import com.kseek.camjpeg.net.http.FrameCursor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link FrameCursor} over the segments of a {@link SegmentList}, see
+ * {@link SegmentArchive}. It reads index entries and record headers with
+ * positional reads and hands the JPEG bytes to
+ * {@link FileChannel#transferTo}, so they go from the page cache to the
+ * socket without a copy through the heap.
+ * <p>
+ * The segment being recorded can be followed: the index is only appended
+ * to once a record is complete, and its length is read again whenever the
+ * cursor runs out of known entries, so {@link #next} finds the frames
+ * written since it last returned false. The next segment is found in the
+ * list, without listing the directory. Not thread safe.
+ */
+final class SegmentCursor implements FrameCursor
+{
+    private final SegmentList segments;
+    private final ByteBuffer entryBuffer = ByteBuffer.allocate(SegmentFormat.INDEX_ENTRY_BYTES);
+    private final ByteBuffer recordHeader =
+            ByteBuffer.allocate(SegmentFormat.RECORD_HEADER_BYTES);
+
+    private RandomAccessFile dataAccess = null;
+    private RandomAccessFile indexAccess = null;
+    private FileChannel data = null;
+    private FileChannel index = null;
+    private long startMillis = 0L;
+    private int entry = -1;
+    private long position = 0L;
+    private int length = 0;
+    private long millis = 0L;
+
+    SegmentCursor(final SegmentList segments)
+    {
+        super();
+        this.segments = segments;
+    }
+
+    /**
+     * Opens the segment and moves to its first frame recorded at or after
+     * target. Returns false, and holds no segment, if it has none.
+     */
+    boolean seek(final long segmentStartMillis, final long target) throws IOException
+    {
+        if (!open(segmentStartMillis)) {
+            return false;
+        }
+        // The first entry not before target.
+        int low = 0;
+        int high = entries();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (entryMillis(middle) < target) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        if (low == entries()) {
+            closeFiles();
+            return false;
+        }
+        moveTo(low);
+        return true;
+    }
+
+    @Override
+    public long getMillis()
+    {
+        return millis;
+    }
+
+    @Override
+    public int getLength()
+    {
+        return length;
+    }
+
+    @Override
+    public long transferTo(final long offset, final long count, final WritableByteChannel target)
+            throws IOException
+    {
+        return data.transferTo(position + SegmentFormat.RECORD_HEADER_BYTES + offset,
+                Math.min(count, length - offset), target);
+    }
+
+    @Override
+    public boolean next() throws IOException
+    {
+        // The recorder completes a segment's index before it adds the next
+        // segment to the list, so look for that one first: if it is there,
+        // the entries counted next are all this segment will have.
+        final long later = segments.higher(startMillis);
+        if (entry + 1 < entries()) {
+            moveTo(entry + 1);
+            return true;
+        }
+        // On to the first frame of the next segment with any.
+        for (long start = later; start >= 0L; start = segments.higher(start)) {
+            if (open(start) && entries() > 0) {
+                moveTo(0);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close()
+    {
+        closeFiles();
+    }
+
+    private boolean open(final long segmentStartMillis) throws IOException
+    {
+        final File segment = segments.file(segmentStartMillis);
+        final File indexFile = SegmentFormat.indexFile(segment);
+        if (!indexFile.isFile()) {
+            return false;
+        }
+        closeFiles();
+        dataAccess = new RandomAccessFile(segment, "r");
+        data = dataAccess.getChannel();
+        indexAccess = new RandomAccessFile(indexFile, "r");
+        index = indexAccess.getChannel();
+        startMillis = segmentStartMillis;
+        entry = -1;
+        return true;
+    }
+
+    private int entries() throws IOException
+    {
+        return (int) (index.size() / SegmentFormat.INDEX_ENTRY_BYTES);
+    }
+
+    private long entryMillis(final int which) throws IOException
+    {
+        readFully(index, entryBuffer, (long) which * SegmentFormat.INDEX_ENTRY_BYTES);
+        return startMillis + entryBuffer.getInt(0);
+    }
+
+    private void moveTo(final int which) throws IOException
+    {
+        readFully(index, entryBuffer, (long) which * SegmentFormat.INDEX_ENTRY_BYTES);
+        position = entryBuffer.getInt(4) & 0xffffffffL;
+        readFully(data, recordHeader, position);
+        length = recordHeader.getInt(0);
+        millis = recordHeader.getLong(4);
+        entry = which;
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer,
+                                  final long at) throws IOException
+    {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, at + buffer.position()) < 0) {
+                throw new IOException("segment ends inside a record");
+            }
+        }
+    }
+
+    private void closeFiles()
+    {
+        if (dataAccess != null) {
+            try {
+                dataAccess.close();
+            }
+            catch (final IOException closeFailed) {
+                System.err.println(closeFailed);
+            }
+            dataAccess = null;
+            data = null;
+        }
+        if (indexAccess != null) {
+            try {
+                indexAccess.close();
+            }
+            catch (final IOException closeFailed) {
+                System.err.println(closeFailed);
+            }
+            indexAccess = null;
+            index = null;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.kseek.camjpeg.record;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Arrays;
+
+/**
+ * Layout of a recording segment. A segment is a file of JPEG frames, each
+ * prefixed with its length and wall clock time, all integers big-endian:
+ * <pre>
+ *   header:  int MAGIC, int VERSION, long start millis
+ *   record:  int length, long millis, length bytes of JPEG
+ * </pre>
+ * Segments are preallocated, so a file that was not closed cleanly ends in
+ * zeros; a record length of 0 ends the segment. Files are named after
+ * their start time, zero-padded, so they sort by name in time order.
+ * <p>
+ * Next to each segment, with {@link #INDEX_SUFFIX} for its suffix, an index
+ * holds one fixed size entry per record, in recording order:
+ * <pre>
+ *   entry:   int millis since the segment start, int position of the record
+ * </pre>
+ * An entry is only appended once its record is on disk, so the index covers
+ * the complete records and its length gives their number. A segment never
+ * grows past {@link #MAX_SEGMENT_BYTES}, which keeps positions in an int.
+ * Being sorted by time with entries of one size, the index is searched by
+ * bisection with a handful of reads, however long the segment.
+ */
+public final class SegmentFormat
+{
+    public static final int MAGIC = 0x4d4a5231; // "MJR1"
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 16;
+    public static final int RECORD_HEADER_BYTES = 12;
+    public static final String SUFFIX = ".mjr";
+    public static final String INDEX_SUFFIX = ".idx";
+    public static final int INDEX_ENTRY_BYTES = 8;
+    public static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+    private static final String PREFIX = "segment-";
+    private static final int NAME_DIGITS = 13;
+
+    private static final FileFilter SEGMENTS = new FileFilter()
+    {
+        @Override
+        public boolean accept(final File file)
+        {
+            return file.isFile() && startMillis(file) >= 0L;
+        }
+    };
+
+    private SegmentFormat()
+    {
+        super();
+    }
+
+    /** The file name of a segment starting at the given wall clock time. */
+    public static String fileName(final long startMillis)
+    {
+        final String digits = Long.toString(startMillis);
+        final StringBuilder name = new StringBuilder(PREFIX.length() + NAME_DIGITS + SUFFIX.length());
+        name.append(PREFIX);
+        for (int i = digits.length(); i < NAME_DIGITS; i++) {
+            name.append('0');
+        }
+        return name.append(digits).append(SUFFIX).toString();
+    }
+
+    /** The start time of a segment from its file name, -1 if it is not one. */
+    public static long startMillis(final File file)
+    {
+        final String name = file.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        }
+        catch (final NumberFormatException notASegment) {
+            return -1L;
+        }
+    }
+
+    /** The index belonging to a segment. */
+    public static File indexFile(final File segment)
+    {
+        final String name = segment.getName();
+        return new File(segment.getParentFile(),
+                name.substring(0, name.length() - SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    /** The segments in the directory, oldest first. */
+    public static File[] list(final File directory)
+    {
+        final File[] segments = directory.listFiles(SEGMENTS);
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+}
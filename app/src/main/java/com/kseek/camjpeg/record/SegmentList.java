@@ -0,0 +1,164 @@
+package com.kseek.camjpeg.record;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * The segments of a recording directory, oldest first, by start time and
+ * size on disk, see {@link SegmentFormat}. The directory is listed once,
+ * when the list is created; from then on the {@link SegmentedRecorder}
+ * adds the segments it opens and removes the ones its retention deletes.
+ * Finding a segment by time is a bisection of the list in memory, which
+ * never touches the disk however many segments there are.
+ * <p>
+ * Thread safe. Only the recorder changes the list, so it may walk it by
+ * position while others look segments up.
+ */
+public final class SegmentList
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final File directory;
+
+    // Guarded by this, sorted by start time.
+    private long[] starts;
+    private long[] bytes;
+    private int count = 0;
+    // Set by the recorder while its writer runs.
+    private volatile boolean recording = false;
+
+    /** Lists the segments already in the directory, which need not exist. */
+    public SegmentList(final File directory)
+    {
+        super();
+
+        this.directory = directory;
+        final File[] segments = SegmentFormat.list(directory);
+        starts = new long[Math.max(INITIAL_CAPACITY, segments.length * 2)];
+        bytes = new long[starts.length];
+        for (final File segment : segments) {
+            starts[count] = SegmentFormat.startMillis(segment);
+            bytes[count] = segment.length() + SegmentFormat.indexFile(segment).length();
+            count++;
+        }
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /** The file of the segment starting at the given time. */
+    public File file(final long startMillis)
+    {
+        return new File(directory, SegmentFormat.fileName(startMillis));
+    }
+
+    /**
+     * Whether a recorder is writing to the directory, so that its newest
+     * segment may still grow and more may follow.
+     */
+    public boolean isRecording()
+    {
+        return recording;
+    }
+
+    void setRecording(final boolean recording)
+    {
+        this.recording = recording;
+    }
+
+    public synchronized int size()
+    {
+        return count;
+    }
+
+    /** The start time of the segment at the given position, oldest first. */
+    public synchronized long getStart(final int which)
+    {
+        return starts[which];
+    }
+
+    /** The bytes the segment at the given position and its index take up. */
+    public synchronized long getBytes(final int which)
+    {
+        return bytes[which];
+    }
+
+    /**
+     * The start of the last segment started at or before millis, or of the
+     * first segment if none was, -1 if there are none.
+     */
+    public synchronized long floor(final long millis)
+    {
+        if (count == 0) {
+            return -1L;
+        }
+        return starts[Math.max(0, firstAfter(millis) - 1)];
+    }
+
+    /** The start of the first segment started after millis, -1 if none was. */
+    public synchronized long higher(final long millis)
+    {
+        final int which = firstAfter(millis);
+        return which == count ? -1L : starts[which];
+    }
+
+    /** Adds a segment that is being created, of no size yet. */
+    synchronized void add(final long startMillis)
+    {
+        final int which = firstAfter(startMillis);
+        if (which > 0 && starts[which - 1] == startMillis) {
+            // Reopened, the recorder truncates it.
+            bytes[which - 1] = 0L;
+            return;
+        }
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            bytes = Arrays.copyOf(bytes, count * 2);
+        }
+        System.arraycopy(starts, which, starts, which + 1, count - which);
+        System.arraycopy(bytes, which, bytes, which + 1, count - which);
+        starts[which] = startMillis;
+        bytes[which] = 0L;
+        count++;
+    }
+
+    /** Records the final size of a segment once it is closed. */
+    synchronized void setBytes(final long startMillis, final long segmentBytes)
+    {
+        final int which = firstAfter(startMillis) - 1;
+        if (which >= 0 && starts[which] == startMillis) {
+            bytes[which] = segmentBytes;
+        }
+    }
+
+    synchronized void remove(final long startMillis)
+    {
+        final int which = firstAfter(startMillis) - 1;
+        if (which < 0 || starts[which] != startMillis) {
+            return;
+        }
+        count--;
+        System.arraycopy(starts, which + 1, starts, which, count - which);
+        System.arraycopy(bytes, which + 1, bytes, which, count - which);
+    }
+
+    // Called with this held: the position of the first segment started
+    // after millis, count if none was.
+    private int firstAfter(final long millis)
+    {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (starts[middle] <= millis) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,493 @@
+package com.kseek.camjpeg.record;
+
+import com.kseek.camjpeg.metrics.StreamMetrics;
+import com.kseek.camjpeg.net.http.FrameChannel;
+import com.kseek.camjpeg.net.http.FrameListener;
+import com.kseek.camjpeg.net.http.JpegFrame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records the frames of a channel into time segmented files, see
+ * {@link SegmentFormat}, and deletes the oldest segments to stay within a
+ * size and an age limit.
+ * <p>
+ * The encoder must never wait for the disk, so frames are only copied into
+ * a staging buffer on the publishing thread. A dedicated writer thread
+ * swaps it for an empty one and writes it out in a single large
+ * {@link FileChannel} write, once enough has gathered or a second has
+ * passed. If the disk stalls for as long as it takes to fill the staging
+ * buffer, further frames are dropped from the recording, counted in the
+ * metrics, while capture and the live viewers carry on.
+ * <p>
+ * A segment is extended in {@link #PREALLOCATE_BYTES} steps ahead of the
+ * writes, so the file system updates the file size once per step rather
+ * than once per batch, and truncated to what was written when closed.
+ * Java has no portable fallocate, so the extension reserves no blocks on
+ * file systems that create sparse files. Retention is enforced whenever a
+ * segment is opened or extended, from the sizes in the recorder's
+ * {@link SegmentList}, which it keeps up to date rather than list the
+ * directory. The index of each batch is appended to the segment's index
+ * file after the batch, see {@link SegmentFormat}.
+ * <p>
+ * Given a {@link PreEventBuffer}, the recorder only records around events:
+ * frames go to the buffer until {@link #trigger} is called and the writer
+ * has moved what it holds to disk, after any frames still staged from an
+ * earlier event, so that records stay in time order. Live frames are then
+ * recorded until the post-event time has passed without another trigger.
+ */
+public final class SegmentedRecorder implements FrameListener
+{
+    private static final String TAG = SegmentedRecorder.class.getSimpleName();
+
+    public static final long DEFAULT_SEGMENT_SECONDS = 5L * 60L;
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024L * 1024L;
+    public static final long DEFAULT_MAX_AGE_SECONDS = 24L * 60L * 60L;
+
+    /** Capacity of each of the two staging buffers, seconds of video at typical rates. */
+    private static final int STAGING_BYTES = 4 * 1024 * 1024;
+
+    /** The writer wakes up once this much is staged... */
+    private static final int BATCH_BYTES = 256 * 1024;
+
+    /** ...or this long after the last write, whichever comes first. */
+    private static final long FLUSH_MS = 1000L;
+
+    private static final long PREALLOCATE_BYTES = 16L * 1024L * 1024L;
+
+    /** Index entries are gathered and written this many bytes at a time. */
+    private static final int INDEX_BUFFER_BYTES = 8 * 1024;
+
+    private final File directory;
+    private final SegmentList segments;
+    private final long segmentMillis;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final PreEventBuffer preEvent;
+    private final long postEventMillis;
+    private final StreamMetrics metrics;
+
+    private final Object lock = new Object();
+    // Guarded by lock: filled by onFrame(), swapped out by the writer.
+    private ByteBuffer staging = ByteBuffer.allocateDirect(STAGING_BYTES);
+    private int stagedFrames = 0;
+    private boolean running = false;
+    private long eventEndMillis = 0L;
+    // The newest time a frame was staged under, see onFrame().
+    private long lastFrameMillis = Long.MIN_VALUE;
+    // Set by a trigger until the writer has emptied the pre-event buffer.
+    private boolean preEventPending = false;
+
+    // Writer thread only.
+    private ByteBuffer writing = ByteBuffer.allocateDirect(STAGING_BYTES);
+    private final ByteBuffer header = ByteBuffer.allocate(SegmentFormat.HEADER_BYTES);
+    private final ByteBuffer indexEntries = ByteBuffer.allocateDirect(INDEX_BUFFER_BYTES);
+    private Thread writer = null;
+    private RandomAccessFile segmentAccess = null;
+    private FileChannel segment = null;
+    private long segmentStartMillis = 0L;
+    private long segmentPosition = 0L;
+    private long segmentAllocated = 0L;
+    private RandomAccessFile indexAccess = null;
+    private FileChannel index = null;
+    private long indexPosition = 0L;
+
+    /**
+     * @param directory      where segments go, created if needed, see {@link #getSegments}
+     * @param segmentSeconds the length of a segment
+     * @param maxBytes       the most all segments may take up, the current one included
+     * @param maxAgeSeconds  segments that ended longer ago than this are deleted
+     */
+    public SegmentedRecorder(final File directory, final long segmentSeconds, final long maxBytes,
+                             final long maxAgeSeconds, final StreamMetrics metrics)
+    {
+        this(directory, segmentSeconds, maxBytes, maxAgeSeconds, null, 0L, metrics);
+    }
+
+    /**
+     * @param preEvent         holds frames between events, null to record continuously
+     * @param postEventSeconds how long to record after the last trigger
+     */
+    public SegmentedRecorder(final File directory, final long segmentSeconds, final long maxBytes,
+                             final long maxAgeSeconds, final PreEventBuffer preEvent,
+                             final long postEventSeconds, final StreamMetrics metrics)
+    {
+        super();
+
+        if (segmentSeconds <= 0L || maxBytes <= 0L || maxAgeSeconds <= 0L) {
+            throw new IllegalArgumentException("segment length and limits must be positive");
+        }
+        if (preEvent != null && postEventSeconds <= 0L) {
+            throw new IllegalArgumentException("post-event time must be positive");
+        }
+
+        this.directory = directory;
+        segments = new SegmentList(directory);
+        segmentMillis = segmentSeconds * 1000L;
+        this.maxBytes = maxBytes;
+        maxAgeMillis = maxAgeSeconds * 1000L;
+        this.preEvent = preEvent;
+        postEventMillis = postEventSeconds * 1000L;
+        this.metrics = metrics;
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * The segments in the directory, those there before the recorder was
+     * created included, kept up to date as it records and deletes them.
+     */
+    public SegmentList getSegments()
+    {
+        return segments;
+    }
+
+    public void start()
+    {
+        synchronized (lock) {
+            if (running) {
+                throw new IllegalStateException("SegmentedRecorder is already running");
+            }
+            running = true;
+        }
+        segments.setRecording(true);
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writerRun();
+            }
+        }, TAG);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stops recording. Frames staged so far are still written and the
+     * segment closed by the writer thread, stop() does not wait for it.
+     */
+    public void stop()
+    {
+        synchronized (lock) {
+            if (!running) {
+                throw new IllegalStateException("SegmentedRecorder is already stopped");
+            }
+            running = false;
+            lock.notifyAll();
+        }
+    }
+
+    /** Whether the recorder only records around events. */
+    public boolean isEventTriggered()
+    {
+        return preEvent != null;
+    }
+
+    /**
+     * Starts an event recording, or extends the one in progress, if the
+     * recorder records around events; a continuous recorder ignores it.
+     * Callable from any thread, it never waits for the disk.
+     */
+    public void trigger()
+    {
+        if (preEvent == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            if (now >= eventEndMillis) {
+                preEventPending = true;
+                metrics.getRecordingEvents().increment();
+                lock.notify();
+            }
+            eventEndMillis = now + postEventMillis;
+        }
+    }
+
+    @Override
+    public void onFrame(final FrameChannel channel, final JpegFrame frame)
+    {
+        final int length = frame.getLength();
+        final long now = System.currentTimeMillis();
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            // Recorded under its capture time, the one viewers saw it live
+            // with. Frames arrive in capture order, but the wall clock can be
+            // set back, and no frame may be older than its segment's start.
+            final long millis = Math.max(frame.getTimestamp(), lastFrameMillis);
+            lastFrameMillis = millis;
+            if (preEvent != null && (preEventPending || now >= eventEndMillis)) {
+                // Under the lock so a trigger cannot slip between the check and the copy.
+                preEvent.add(frame.getOutputStream(), millis);
+                metrics.getPreEventFrames().set(preEvent.getFrames());
+                metrics.getPreEventBytes().set(preEvent.getBytes());
+                return;
+            }
+            if (staging.remaining() < SegmentFormat.RECORD_HEADER_BYTES + length) {
+                // The writer is behind, most likely stuck on the disk.
+                metrics.getFramesRecordDropped().increment();
+                return;
+            }
+            staging.putInt(length);
+            staging.putLong(millis);
+            frame.getOutputStream().copyTo(staging);
+            stagedFrames++;
+            if (staging.position() >= BATCH_BYTES) {
+                lock.notify();
+            }
+        }
+    }
+
+    private void writerRun()
+    {
+        try {
+            while (true) {
+                final int frames;
+                final boolean flushPreEvent;
+                synchronized (lock) {
+                    final long deadline = System.currentTimeMillis() + FLUSH_MS;
+                    long wait = FLUSH_MS;
+                    while (running && !preEventPending && staging.position() < BATCH_BYTES
+                            && wait > 0L) {
+                        lock.wait(wait);
+                        wait = deadline - System.currentTimeMillis();
+                    }
+                    flushPreEvent = preEventPending;
+                    if (!running && !flushPreEvent && staging.position() == 0) {
+                        return;
+                    }
+                    final ByteBuffer full = staging;
+                    staging = writing;
+                    writing = full;
+                    frames = stagedFrames;
+                    stagedFrames = 0;
+                }
+                // Frames staged before a trigger are older than the pre-event
+                // frames, the ones since wait in the buffer behind them.
+                writing.flip();
+                writeBatch(frames);
+                writing.clear();
+                if (flushPreEvent) {
+                    flushPreEvent();
+                }
+            }
+        }
+        catch (final InterruptedException stopWriting) {
+            // Nobody interrupts the writer, but close the segment if it happens.
+        }
+        finally {
+            closeSegment();
+            // Only once the last frames are in the index.
+            segments.setRecording(false);
+        }
+    }
+
+    /**
+     * Writes out the pre-event frames, through the writing buffer which is
+     * empty between batches. A slab always fits into it, so every round
+     * moves at least one frame. Frames keep coming into the buffer until it
+     * is found empty under the lock, when live frames take over.
+     */
+    private void flushPreEvent()
+    {
+        while (true) {
+            final int frames = preEvent.drainTo(writing);
+            if (frames == 0) {
+                synchronized (lock) {
+                    if (preEvent.getFrames() == 0) {
+                        preEventPending = false;
+                        break;
+                    }
+                }
+                continue;
+            }
+            writing.flip();
+            writeBatch(frames);
+            writing.clear();
+        }
+        metrics.getPreEventFrames().set(0L);
+        metrics.getPreEventBytes().set(0L);
+    }
+
+    /**
+     * Writes the batch in the writing buffer. A segment it opens is named
+     * after its first frame, so that no frame of the segment is older than
+     * the segment's start.
+     */
+    private void writeBatch(final int frames)
+    {
+        final long now = System.currentTimeMillis();
+        final int bytes = writing.remaining();
+        if (segment != null && (now - segmentStartMillis >= segmentMillis
+                || segmentPosition + bytes > SegmentFormat.MAX_SEGMENT_BYTES)) {
+            closeSegment();
+        }
+        if (bytes == 0) {
+            return;
+        }
+        try {
+            if (segment == null) {
+                openSegment(writing.getLong(writing.position() + 4));
+            }
+            if (segmentPosition + bytes > segmentAllocated) {
+                segmentAllocated = segmentPosition + bytes + PREALLOCATE_BYTES;
+                enforceRetention(now);
+                segmentAccess.setLength(segmentAllocated);
+            }
+            final long batchPosition = segmentPosition;
+            while (writing.hasRemaining()) {
+                segmentPosition += segment.write(writing, segmentPosition);
+            }
+            appendIndex(batchPosition);
+            metrics.getFramesRecorded().add(frames);
+            metrics.getBytesRecorded().add(bytes);
+        }
+        catch (final IOException writeFailed) {
+            System.err.println(writeFailed);
+            metrics.getFramesRecordDropped().add(frames);
+            // Start over in a new segment with the next batch.
+            closeSegment();
+        }
+    }
+
+    /** Indexes the records of the batch just written at batchPosition. */
+    private void appendIndex(final long batchPosition) throws IOException
+    {
+        final int end = writing.limit();
+        int offset = 0;
+        while (offset < end) {
+            indexEntries.putInt((int) (writing.getLong(offset + 4) - segmentStartMillis));
+            indexEntries.putInt((int) (batchPosition + offset));
+            if (!indexEntries.hasRemaining()) {
+                writeIndexEntries();
+            }
+            offset += SegmentFormat.RECORD_HEADER_BYTES + writing.getInt(offset);
+        }
+        writeIndexEntries();
+    }
+
+    private void writeIndexEntries() throws IOException
+    {
+        indexEntries.flip();
+        while (indexEntries.hasRemaining()) {
+            indexPosition += index.write(indexEntries, indexPosition);
+        }
+        indexEntries.clear();
+    }
+
+    private void openSegment(final long startMillis) throws IOException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        segmentAllocated = PREALLOCATE_BYTES;
+        enforceRetention(startMillis);
+
+        final File segmentFile = segments.file(startMillis);
+        segmentAccess = new RandomAccessFile(segmentFile, "rw");
+        segment = segmentAccess.getChannel();
+        segmentStartMillis = startMillis;
+        segmentAccess.setLength(segmentAllocated);
+        indexAccess = new RandomAccessFile(SegmentFormat.indexFile(segmentFile), "rw");
+        index = indexAccess.getChannel();
+        indexAccess.setLength(0L);
+        indexPosition = 0L;
+        indexEntries.clear();
+        segments.add(startMillis);
+
+        header.clear();
+        header.putInt(SegmentFormat.MAGIC);
+        header.putInt(SegmentFormat.VERSION);
+        header.putLong(startMillis);
+        header.flip();
+        segmentPosition = 0L;
+        while (header.hasRemaining()) {
+            segmentPosition += segment.write(header, segmentPosition);
+        }
+    }
+
+    private void closeSegment()
+    {
+        if (indexAccess != null) {
+            try {
+                indexAccess.close();
+            }
+            catch (final IOException closeFailed) {
+                System.err.println(closeFailed);
+            }
+            indexAccess = null;
+            index = null;
+        }
+        if (segmentAccess == null) {
+            return;
+        }
+        try {
+            segment.truncate(segmentPosition);
+            segment.force(true);
+        }
+        catch (final IOException truncateFailed) {
+            System.err.println(truncateFailed);
+        }
+        try {
+            segmentAccess.close();
+        }
+        catch (final IOException closeFailed) {
+            System.err.println(closeFailed);
+        }
+        segmentAccess = null;
+        segment = null;
+        segments.setBytes(segmentStartMillis, segmentPosition + indexPosition);
+    }
+
+    /**
+     * Deletes the oldest finished segments until they fit the size limit
+     * next to the current segment's allocation, and every segment that
+     * ended before the age limit.
+     */
+    private void enforceRetention(final long nowMillis)
+    {
+        // The current segment counts by its allocation, its size is only
+        // recorded when it is closed.
+        long total = segmentAllocated;
+        for (int i = 0; i < segments.size(); i++) {
+            if (segment == null || segments.getStart(i) != segmentStartMillis) {
+                total += segments.getBytes(i);
+            }
+        }
+        int i = 0;
+        while (i < segments.size()) {
+            final long startMillis = segments.getStart(i);
+            if (segment != null && startMillis == segmentStartMillis) {
+                break;
+            }
+            final File file = segments.file(startMillis);
+            final long endMillis = i + 1 < segments.size()
+                    ? segments.getStart(i + 1)
+                    : file.lastModified();
+            if (total <= maxBytes && nowMillis - endMillis <= maxAgeMillis) {
+                break;
+            }
+            if (file.delete() || !file.exists()) {
+                SegmentFormat.indexFile(file).delete();
+                total -= segments.getBytes(i);
+                segments.remove(startMillis);
+            }
+            else {
+                i++;
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.kseek.camjpeg;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EncoderPoolTest
+{
+    private static final long TIMEOUT_SECONDS = 10L;
+
+    private final List<Integer> completed = Collections.synchronizedList(new ArrayList<Integer>());
+    private EncoderPool pool = null;
+
+    @After
+    public void tearDown()
+    {
+        if (pool != null) {
+            pool.stop();
+        }
+    }
+
+    @Test
+    public void completesInSubmissionOrder() throws Exception
+    {
+        pool = new EncoderPool("test", 4, 8);
+        pool.start();
+        final Random random = new Random(42L);
+        final int jobs = 500;
+        final CountDownLatch done = new CountDownLatch(jobs);
+        int givenUp = 0;
+        for (int i = 0; i < jobs; i++) {
+            final EncoderPool.Job superseded = pool.submit(
+                    new TestJob(i, random.nextInt(2000), done));
+            if (superseded != null) {
+                givenUp++;
+                done.countDown();
+            }
+        }
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        assertEquals(jobs, completed.size() + givenUp);
+        for (int i = 1; i < completed.size(); i++) {
+            assertTrue(completed.get(i - 1) < completed.get(i));
+        }
+        // The newest job is never the one given up.
+        assertEquals(jobs - 1, (int) completed.get(completed.size() - 1));
+    }
+
+    @Test
+    public void newerJobSupersedesTheWaitingOne() throws Exception
+    {
+        pool = new EncoderPool("test", 1, 1);
+        pool.start();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        final TestJob first = new TestJob(0, 0, done);
+        first.block = blocked;
+        final TestJob second = new TestJob(1, 0, done);
+        final TestJob third = new TestJob(2, 0, done);
+
+        assertNull(pool.submit(first));
+        assertNull(pool.submit(second));
+        assertSame(second, pool.submit(third));
+        blocked.countDown();
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, completed.size());
+        assertEquals(0, (int) completed.get(0));
+        assertEquals(2, (int) completed.get(1));
+    }
+
+    @Test
+    public void failedEncodeCompletesAsNotEncoded() throws Exception
+    {
+        pool = new EncoderPool("test", 2, 2);
+        pool.start();
+        final CountDownLatch done = new CountDownLatch(1);
+        final TestJob job = new TestJob(0, 0, done);
+        job.failEncode = true;
+        assertNull(pool.submit(job));
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(job.encoded);
+    }
+
+    @Test
+    public void failedCompletionDoesNotStopThePool() throws Exception
+    {
+        // A single worker, which must survive the failure for anything to complete.
+        pool = new EncoderPool("test", 1, 4);
+        pool.start();
+        final CountDownLatch failed = new CountDownLatch(1);
+        final TestJob job = new TestJob(0, 0, failed);
+        job.failComplete = true;
+        assertNull(pool.submit(job));
+        assertTrue(failed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        for (int i = 1; i <= 10; i++) {
+            final CountDownLatch done = new CountDownLatch(1);
+            assertNull(pool.submit(new TestJob(i, 0, done)));
+            assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        assertEquals(10, completed.size());
+    }
+
+    @Test
+    public void nothingCompletesAfterStop() throws Exception
+    {
+        pool = new EncoderPool("test", 1, 2);
+        pool.start();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final TestJob job = new TestJob(0, 0, done);
+        job.block = blocked;
+        assertNull(pool.submit(job));
+        while (!job.started) {
+            Thread.sleep(1);
+        }
+        pool.stop();
+        final TestJob late = new TestJob(1, 0, done);
+        assertSame(late, pool.submit(late));
+        pool = null;
+
+        blocked.countDown();
+        assertFalse(done.await(200L, TimeUnit.MILLISECONDS));
+        assertTrue(completed.isEmpty());
+    }
+
+    private final class TestJob implements EncoderPool.Job
+    {
+        private final int id;
+        private final int encodeMicros;
+        private final CountDownLatch done;
+        CountDownLatch block = null;
+        boolean failEncode = false;
+        boolean failComplete = false;
+        volatile boolean started = false;
+        volatile boolean encoded = true;
+
+        private TestJob(final int id, final int encodeMicros, final CountDownLatch done)
+        {
+            this.id = id;
+            this.encodeMicros = encodeMicros;
+            this.done = done;
+        }
+
+        @Override
+        public boolean encode(final int worker)
+        {
+            started = true;
+            try {
+                if (block != null) {
+                    block.await();
+                }
+                Thread.sleep(encodeMicros / 1000, encodeMicros % 1000 * 1000);
+            }
+            catch (final InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            if (failEncode) {
+                throw new IllegalStateException("encode failed");
+            }
+            return true;
+        }
+
+        @Override
+        public void complete(final boolean encoded)
+        {
+            this.encoded = encoded;
+            if (failComplete) {
+                done.countDown();
+                throw new IllegalStateException("complete failed");
+            }
+            completed.add(id);
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.kseek.camjpeg;
+
+import com.kseek.camjpeg.metrics.StreamMetrics;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the gate 64 x 48 frames 1/25 s apart on a made-up clock: a still
+ * grey scene, or the same with a bright spot on one of the detector's
+ * samples.
+ */
+public class MotionGateTest
+{
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final long FRAME_NANOS = 40L * 1000L * 1000L;
+    private static final long NANOS_PER_SECOND = 1000L * 1000L * 1000L;
+    private static final int KEEP_ALIVE_SECONDS = 2;
+
+    private final StreamMetrics metrics = new StreamMetrics();
+    private final byte[] still = frame(false);
+    private final byte[] moving = frame(true);
+    private long nanos = 100L * NANOS_PER_SECOND;
+
+    @Test
+    public void stillSceneOnlyLetsKeepAlivesThrough()
+    {
+        final MotionGate gate = gate(true);
+        // Two seconds since the last keep-alive, which was never.
+        assertTrue(admit(gate, still));
+        // Then one every two seconds.
+        assertEquals(1, admitted(gate, still, 2L * NANOS_PER_SECOND));
+        assertEquals(2, admitted(gate, still, 4L * NANOS_PER_SECOND));
+        assertFalse(gate.isMoving());
+        assertEquals(0L, metrics.getMotionEvents().get());
+    }
+
+    @Test
+    public void motionLetsEveryFrameThrough()
+    {
+        final MotionGate gate = gate(true);
+        admit(gate, still);
+        assertTrue(admit(gate, moving));
+        assertTrue(gate.isMoving());
+        assertEquals(1L, metrics.getMotionEvents().get());
+        assertEquals(1L, metrics.getMotionActive().get());
+    }
+
+    @Test
+    public void motionIsHeldAfterTheLastMovingFrame()
+    {
+        final MotionGate gate = gate(true);
+        admit(gate, still);
+        admit(gate, moving);
+        // For the three second hold every still frame goes through.
+        final int frames = (int) (3L * NANOS_PER_SECOND / FRAME_NANOS);
+        assertEquals(frames, admitted(gate, still, frames * FRAME_NANOS));
+        assertTrue(gate.isMoving());
+
+        // The first frame after the hold ends the event and counts as a keep-alive.
+        assertTrue(admit(gate, still));
+        assertFalse(gate.isMoving());
+        assertEquals(0L, metrics.getMotionActive().get());
+        assertFalse(admit(gate, still));
+        assertEquals(1, admitted(gate, still, 2L * NANOS_PER_SECOND));
+    }
+
+    @Test
+    public void motionDuringTheHoldIsTheSameEvent()
+    {
+        final MotionGate gate = gate(true);
+        admit(gate, still);
+        admit(gate, moving);
+        admitted(gate, still, 2L * NANOS_PER_SECOND);
+        admit(gate, moving);
+        admitted(gate, still, 2L * NANOS_PER_SECOND);
+        assertTrue(gate.isMoving());
+        assertEquals(1L, metrics.getMotionEvents().get());
+    }
+
+    @Test
+    public void withoutGatingEveryFrameGoesThrough()
+    {
+        final MotionGate gate = gate(false);
+        final int frames = 50;
+        assertEquals(frames, admitted(gate, still, frames * FRAME_NANOS));
+        assertTrue(admit(gate, moving));
+        // Motion is still tracked, for event recording.
+        assertTrue(gate.isMoving());
+        assertEquals(1L, metrics.getMotionEvents().get());
+    }
+
+    private MotionGate gate(final boolean gating)
+    {
+        return new MotionGate(WIDTH, HEIGHT, gating, KEEP_ALIVE_SECONDS, metrics);
+    }
+
+    private boolean admit(final MotionGate gate, final byte[] frame)
+    {
+        nanos += FRAME_NANOS;
+        return gate.admit(frame, nanos);
+    }
+
+    /** Feeds the frame for the given time, returns how many were let through. */
+    private int admitted(final MotionGate gate, final byte[] frame, final long forNanos)
+    {
+        int admitted = 0;
+        for (long fed = FRAME_NANOS; fed <= forNanos; fed += FRAME_NANOS) {
+            if (admit(gate, frame)) {
+                admitted++;
+            }
+        }
+        return admitted;
+    }
+
+    private static byte[] frame(final boolean spot)
+    {
+        final byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        Arrays.fill(nv21, 0, WIDTH * HEIGHT, (byte) 100);
+        Arrays.fill(nv21, WIDTH * HEIGHT, nv21.length, (byte) 128);
+        if (spot) {
+            // The centre of the first cell of the detector's grid.
+            nv21[4 * WIDTH + 4] = (byte) 250;
+        }
+        return nv21;
+    }
+}
@@ -0,0 +1,144 @@
+package com.kseek.camjpeg;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the controller frames 1/25 s apart on a made-up clock, each of a
+ * size chosen as a multiple of the budget.
+ */
+public class QualityControllerTest
+{
+    private static final long FRAME_NANOS = 40L * 1000L * 1000L;
+    private static final int FRAMES_PER_SECOND = 25;
+    /** 1 Mbit/s, 5000 bytes a frame. */
+    private static final long TARGET_BITS = 1000L * 1000L;
+    private static final long BUDGET_BYTES = TARGET_BITS / 8L;
+
+    // Well after the controller's zero, so the first frame only starts the clock.
+    private long nanos = 100L * 1000L * 1000L * 1000L;
+
+    @Test
+    public void keepsTheQualityWithoutATarget()
+    {
+        final QualityController controller = new QualityController(95, 0L, 30, 90);
+        assertEquals(95, controller.getQuality());
+        feed(controller, 50, 10.0, 1L);
+        assertEquals(95, controller.getQuality());
+    }
+
+    @Test
+    public void startsWithinTheBounds()
+    {
+        assertEquals(90, new QualityController(95, TARGET_BITS, 30, 90).getQuality());
+        assertEquals(30, new QualityController(10, TARGET_BITS, 30, 90).getQuality());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBoundsOutOfOrder()
+    {
+        new QualityController(50, TARGET_BITS, 60, 40);
+    }
+
+    @Test
+    public void dropsFastOverBudgetThenLetsItSettle()
+    {
+        final QualityController controller = new QualityController(80, TARGET_BITS, 30, 90);
+        // The first frame only starts the clock, the second is twice the
+        // budget: the largest step.
+        feed(controller, 2, 2.0, 0L);
+        assertEquals(75, controller.getQuality());
+        // Frames still in the encoders carry the old quality.
+        feed(controller, 4, 2.0, 0L);
+        assertEquals(75, controller.getQuality());
+        feed(controller, 1, 2.0, 0L);
+        assertEquals(70, controller.getQuality());
+
+        feed(controller, 100, 2.0, 0L);
+        assertEquals(30, controller.getQuality());
+    }
+
+    @Test
+    public void creepsUpWellUnderBudget()
+    {
+        final QualityController controller = new QualityController(50, TARGET_BITS, 30, 90);
+        feed(controller, 2, 0.5, 0L);
+        assertEquals(51, controller.getQuality());
+        feed(controller, 5, 0.5, 0L);
+        assertEquals(52, controller.getQuality());
+
+        feed(controller, 500, 0.5, 0L);
+        assertEquals(90, controller.getQuality());
+    }
+
+    @Test
+    public void holdsInTheDeadBand()
+    {
+        final QualityController controller = new QualityController(50, TARGET_BITS, 30, 90);
+        feed(controller, 100, 0.9, 0L);
+        assertEquals(50, controller.getQuality());
+        feed(controller, 100, 1.04, 0L);
+        assertEquals(50, controller.getQuality());
+    }
+
+    @Test
+    public void congestedViewerLowersTheBudget()
+    {
+        final QualityController controller = new QualityController(50, TARGET_BITS, 30, 90);
+        // On budget, but a viewer could only take half of it.
+        feed(controller, 100, 1.0, BUDGET_BYTES / 2L);
+        assertEquals(30, controller.getQuality());
+
+        // Once it keeps up again the target holds.
+        feed(controller, 100, 0.5, 0L);
+        assertTrue(controller.getQuality() > 30);
+    }
+
+    @Test
+    public void drainRateAboveTheTargetChangesNothing()
+    {
+        final QualityController controller = new QualityController(50, TARGET_BITS, 30, 90);
+        feed(controller, 100, 0.9, BUDGET_BYTES * 4L);
+        assertEquals(50, controller.getQuality());
+    }
+
+    @Test
+    public void repeatedFramesCountAsNothingSent()
+    {
+        final QualityController controller = new QualityController(50, TARGET_BITS, 30, 90);
+        feed(controller, 20, 1.0, 0L);
+        assertEquals(50, controller.getQuality());
+        // A still scene, every frame repeats the one the viewers have.
+        feed(controller, 20, 0.0, 0L);
+        assertTrue(controller.getQuality() > 50);
+    }
+
+    @Test
+    public void gapRestartsTheRate()
+    {
+        final QualityController controller = new QualityController(50, TARGET_BITS, 30, 90);
+        // Nobody watching between frames: no two are close enough to rate.
+        for (int i = 0; i < 20; i++) {
+            nanos += 2L * 1000L * 1000L * 1000L;
+            controller.update(10L * BUDGET_BYTES, nanos, 0L);
+        }
+        assertEquals(50, controller.getQuality());
+
+        // The last one restarted the clock, the next frame is rated afresh.
+        feed(controller, 1, 2.0, 0L);
+        assertEquals(45, controller.getQuality());
+    }
+
+    /** Feeds frames at the given multiple of the budget. */
+    private void feed(final QualityController controller, final int frames,
+                      final double ofBudget, final long congestedDrainRate)
+    {
+        final long bytes = (long) (ofBudget * BUDGET_BYTES / FRAMES_PER_SECOND);
+        for (int i = 0; i < frames; i++) {
+            nanos += FRAME_NANOS;
+            controller.update(bytes, nanos, congestedDrainRate);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.kseek.camjpeg.codec;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes synthetic NV21 frames, decodes them with the JDK's decoder and
+ * compares the RGB pixels with the source's, as a PSNR in dB.
+ */
+public class JpegEncoderTest
+{
+    private static final int WIDTH = 96;
+    private static final int HEIGHT = 64;
+
+    private final JpegEncoder encoder = new JpegEncoder();
+    private final byte[] frame = frame(WIDTH, HEIGHT);
+
+    @Test
+    public void wholeFrameAtEveryQuality() throws IOException
+    {
+        assertRoundTrip(0, 0, WIDTH, HEIGHT, 100, 45.0);
+        assertRoundTrip(0, 0, WIDTH, HEIGHT, 90, 40.0);
+        assertRoundTrip(0, 0, WIDTH, HEIGHT, 50, 35.0);
+        assertRoundTrip(0, 0, WIDTH, HEIGHT, 1, 18.0);
+    }
+
+    @Test
+    public void qualityIsClamped() throws IOException
+    {
+        assertEquals(encode(0, 0, WIDTH, HEIGHT, 1).length,
+                encode(0, 0, WIDTH, HEIGHT, 0).length);
+        assertEquals(encode(0, 0, WIDTH, HEIGHT, 100).length,
+                encode(0, 0, WIDTH, HEIGHT, 101).length);
+    }
+
+    @Test
+    public void higherQualityTakesMoreBytes() throws IOException
+    {
+        assertTrue(encode(0, 0, WIDTH, HEIGHT, 90).length
+                > encode(0, 0, WIDTH, HEIGHT, 50).length);
+    }
+
+    @Test
+    public void cropsOfPartialMacroblocks() throws IOException
+    {
+        // Neither size is a multiple of the 16 pixel macroblock.
+        assertRoundTrip(16, 8, 40, 24, 90, 40.0);
+        assertRoundTrip(0, 0, 1, 1, 90, 40.0);
+        assertRoundTrip(WIDTH - 17, HEIGHT - 9, 17, 9, 90, 40.0);
+    }
+
+    @Test
+    public void oddCropsAreRoundedToTheChromaGrid() throws IOException
+    {
+        assertRoundTrip(5, 3, 37, 21, 90, 40.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsACropOutsideTheFrame() throws IOException
+    {
+        encode(WIDTH - 8, 0, 16, 16, 90);
+    }
+
+    private void assertRoundTrip(final int left, final int top, final int width,
+                                 final int height, final int quality, final double minPsnr)
+            throws IOException
+    {
+        final BufferedImage image = ImageIO.read(
+                new ByteArrayInputStream(encode(left, top, width, height, quality)));
+        assertNotNull("not decodable", image);
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+
+        final int x0 = left & ~1;
+        final int y0 = top & ~1;
+        final int chromaBase = WIDTH * HEIGHT;
+        double squares = 0.0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int pixel = (y0 + y) * WIDTH + x0 + x;
+                final int chroma = chromaBase + ((y0 + y) >> 1) * WIDTH + ((x0 + x) & ~1);
+                final double luma = frame[pixel] & 0xff;
+                final double cr = (frame[chroma] & 0xff) - 128.0;
+                final double cb = (frame[chroma + 1] & 0xff) - 128.0;
+                // The JFIF conversion.
+                final int rgb = image.getRGB(x, y);
+                squares += square(((rgb >> 16) & 0xff) - (luma + 1.402 * cr));
+                squares += square(((rgb >> 8) & 0xff) - (luma - 0.344136 * cb - 0.714136 * cr));
+                squares += square((rgb & 0xff) - (luma + 1.772 * cb));
+            }
+        }
+        final double psnr = 10.0 * Math.log10(255.0 * 255.0 * 3 * width * height / squares);
+        assertTrue("PSNR " + psnr + " at quality " + quality, psnr >= minPsnr);
+    }
+
+    private static double square(final double value)
+    {
+        return value * value;
+    }
+
+    private byte[] encode(final int left, final int top, final int width, final int height,
+                          final int quality) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(encoder.encode(frame, WIDTH, HEIGHT, left, top, width, height, quality, out));
+        return out.toByteArray();
+    }
+
+    /**
+     * Smooth luma waves with some fine detail, and chroma that changes
+     * slowly, all well inside the range so no RGB value is clipped.
+     */
+    private static byte[] frame(final int width, final int height)
+    {
+        final byte[] nv21 = new byte[width * height * 3 / 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final double luma = 128.0 + 50.0 * Math.sin(x / 7.0) * Math.cos(y / 5.0)
+                        + 10.0 * Math.sin((x + y) / 2.0);
+                nv21[y * width + x] = (byte) Math.round(luma);
+            }
+        }
+        final int chromaBase = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                // V first, then U.
+                nv21[chromaBase + y * width + 2 * x] =
+                        (byte) Math.round(128.0 + 20.0 * Math.cos(y / 6.0));
+                nv21[chromaBase + y * width + 2 * x + 1] =
+                        (byte) Math.round(128.0 + 20.0 * Math.sin(x / 8.0));
+            }
+        }
+        return nv21;
+    }
+}
@@ -0,0 +1,143 @@
+package com.kseek.camjpeg.codec;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Synthetic luma planes on a 64 x 48 frame, which the default step of 8
+ * samples as an 8 x 6 grid at the centre of each cell.
+ */
+public class MotionDetectorTest
+{
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int STEP = MotionDetector.DEFAULT_STEP;
+    private static final int THRESHOLD = MotionDetector.DEFAULT_THRESHOLD;
+
+    @Test
+    public void firstFrameOnlyPrimes()
+    {
+        final MotionDetector detector = detector(1);
+        assertFalse(detector.detect(frame(100)));
+        assertFalse(detector.detect(frame(100)));
+        assertEquals(0, detector.getChangedSamples());
+        assertEquals(48, detector.getSamples());
+    }
+
+    @Test
+    public void changeOverTheThresholdIsMotion()
+    {
+        final MotionDetector detector = detector(1);
+        detector.detect(frame(100));
+        assertFalse(detector.detect(withSamples(frame(100), 1, 100 + THRESHOLD)));
+        detector.reset();
+        detector.detect(frame(100));
+        assertTrue(detector.detect(withSamples(frame(100), 1, 100 + THRESHOLD + 2)));
+        assertEquals(1, detector.getChangedSamples());
+    }
+
+    @Test
+    public void pixelsBetweenSamplesAreNotSeen()
+    {
+        final MotionDetector detector = detector(1);
+        detector.detect(frame(100));
+        final byte[] moved = frame(100);
+        // The top left corner of every cell, the samples are at their centres.
+        for (int y = 0; y < HEIGHT; y += STEP) {
+            for (int x = 0; x < WIDTH; x += STEP) {
+                moved[y * WIDTH + x] = (byte) 250;
+            }
+        }
+        assertFalse(detector.detect(moved));
+    }
+
+    @Test
+    public void motionNeedsTheArea()
+    {
+        // 100 permille of 48 samples is 4.
+        final MotionDetector detector = detector(100);
+        detector.detect(frame(100));
+        assertFalse(detector.detect(withSamples(frame(100), 3, 200)));
+        assertEquals(3, detector.getChangedSamples());
+        detector.reset();
+        detector.detect(frame(100));
+        assertTrue(detector.detect(withSamples(frame(100), 4, 200)));
+    }
+
+    @Test
+    public void exposureChangeIsNotMotion()
+    {
+        final MotionDetector detector = detector(1);
+        detector.detect(frame(100));
+        assertFalse(detector.detect(frame(160)));
+        assertEquals(0, detector.getChangedSamples());
+        // A change on top of one still is.
+        assertTrue(detector.detect(withSamples(frame(60), 1, 160)));
+    }
+
+    @Test
+    public void backgroundAdaptsToAStillChange()
+    {
+        final MotionDetector detector = detector(1);
+        detector.detect(frame(100));
+        final byte[] moved = withSamples(frame(100), 1, 200);
+        assertTrue(detector.detect(moved));
+        int frames = 1;
+        while (detector.detect(moved)) {
+            frames++;
+            assertTrue("never settled", frames < 100);
+        }
+        // The difference of 100 loses 1/8 a frame, it takes about a dozen
+        // to fall under the threshold.
+        assertTrue("settled after " + frames, frames >= 8 && frames <= 14);
+    }
+
+    @Test
+    public void slowChangeAccumulates()
+    {
+        final MotionDetector detector = detector(1);
+        detector.detect(frame(100));
+        // 4 a frame, never over the threshold from one frame to the next.
+        boolean moved = false;
+        for (int value = 104; value < 250 && !moved; value += 4) {
+            moved = detector.detect(withSamples(frame(100), 1, value));
+        }
+        assertTrue(moved);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAFrameSmallerThanTheStep()
+    {
+        new MotionDetector(4, 48);
+    }
+
+    private static MotionDetector detector(final int areaPermille)
+    {
+        return new MotionDetector(WIDTH, HEIGHT, STEP, THRESHOLD, areaPermille);
+    }
+
+    private static byte[] frame(final int luma)
+    {
+        final byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        Arrays.fill(nv21, 0, WIDTH * HEIGHT, (byte) luma);
+        Arrays.fill(nv21, WIDTH * HEIGHT, nv21.length, (byte) 128);
+        return nv21;
+    }
+
+    /** Sets the first count samples of the grid, row by row, to luma. */
+    private static byte[] withSamples(final byte[] nv21, final int count, final int luma)
+    {
+        final int columns = WIDTH / STEP;
+        for (int i = 0; i < count; i++) {
+            final int y = (i / columns) * STEP + STEP / 2;
+            final int x = (i % columns) * STEP + STEP / 2;
+            nv21[y * WIDTH + x] = (byte) luma;
+        }
+        return nv21;
+    }
+}
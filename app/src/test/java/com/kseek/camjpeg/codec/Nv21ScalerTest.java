@@ -0,0 +1,150 @@
+package com.kseek.camjpeg.codec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class Nv21ScalerTest
+{
+    @Test
+    public void scaledSizeIsRoundedDownToEven()
+    {
+        assertEquals(320, Nv21Scaler.scaledSize(640, 2));
+        assertEquals(320, Nv21Scaler.scaledSize(641, 2));
+        assertEquals(162, Nv21Scaler.scaledSize(650, 4));
+        assertEquals(160, Nv21Scaler.scaledSize(647, 4));
+        assertEquals(2, Nv21Scaler.scaledSize(7, 2));
+        assertEquals(0, Nv21Scaler.scaledSize(3, 2));
+        assertEquals(641 & ~1, Nv21Scaler.scaledSize(641, 1));
+    }
+
+    @Test
+    public void frameBytesRoundsTheChromaUp()
+    {
+        assertEquals(4 * 4 * 3 / 2, Nv21Scaler.frameBytes(4, 4));
+        assertEquals(15 + 2 * 3 * 2, Nv21Scaler.frameBytes(5, 3));
+    }
+
+    @Test
+    public void halvesAKnownBlock()
+    {
+        final byte[] frame = new byte[Nv21Scaler.frameBytes(4, 4)];
+        final byte[] luma = {
+                0, 4, 8, 8,
+                4, 5, 9, 9,
+                100, 100, 50, 51,
+                100, 101, 50, 51};
+        System.arraycopy(luma, 0, frame, 0, luma.length);
+        // V, U pairs: (10, 20) (30, 40) on the first chroma row, (50, 60) (70, 80).
+        final byte[] chroma = {10, 20, 30, 40, 50, 60, 70, 80};
+        System.arraycopy(chroma, 0, frame, 16, chroma.length);
+
+        final byte[] half = new byte[Nv21Scaler.frameBytes(2, 2)];
+        Nv21Scaler.scale(frame, 4, 4, 0, 0, 4, 4, 2, half);
+        // Means of 3.25, 8.5, 100.25 and 50.5, halves round up.
+        assertEquals(3, half[0]);
+        assertEquals(9, half[1]);
+        assertEquals(100, half[2]);
+        assertEquals(51, half[3]);
+        // The four chroma pairs average to one, V still first.
+        assertEquals(40, half[4]);
+        assertEquals(50, half[5]);
+    }
+
+    @Test
+    public void boxFilterAveragesEveryBlock()
+    {
+        final int width = 64;
+        final int height = 48;
+        final byte[] frame = pattern(width, height);
+        for (int factor = 2; factor <= 8; factor <<= 1) {
+            final int outWidth = Nv21Scaler.scaledSize(width, factor);
+            final int outHeight = Nv21Scaler.scaledSize(height, factor);
+            final byte[] scaled = new byte[Nv21Scaler.frameBytes(outWidth, outHeight)];
+            Nv21Scaler.scale(frame, width, height, 0, 0, width, height, factor, scaled);
+            assertScaled(frame, width, height, 0, 0, factor, scaled, outWidth, outHeight);
+        }
+    }
+
+    @Test
+    public void cropIsScaledFromItsOwnPixels()
+    {
+        final int width = 64;
+        final int height = 48;
+        final byte[] frame = pattern(width, height);
+        // Odd coordinates round down to (10, 6).
+        final int outWidth = Nv21Scaler.scaledSize(30, 4);
+        final int outHeight = Nv21Scaler.scaledSize(20, 4);
+        final byte[] scaled = new byte[Nv21Scaler.frameBytes(outWidth, outHeight)];
+        Nv21Scaler.scale(frame, width, height, 11, 7, 30, 20, 4, scaled);
+        assertScaled(frame, width, height, 10, 6, 4, scaled, outWidth, outHeight);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAFactorThatIsNotAPowerOfTwo()
+    {
+        Nv21Scaler.scale(new byte[24], 4, 4, 0, 0, 4, 4, 3, new byte[24]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsARectangleOutsideTheFrame()
+    {
+        Nv21Scaler.scale(new byte[Nv21Scaler.frameBytes(8, 8)], 8, 8, 4, 0, 6, 8, 2,
+                new byte[Nv21Scaler.frameBytes(2, 4)]);
+    }
+
+    /** Compares every sample with the rounded mean of the block it stands for. */
+    private static void assertScaled(final byte[] frame, final int width, final int height,
+                                     final int x0, final int y0, final int factor,
+                                     final byte[] scaled, final int outWidth,
+                                     final int outHeight)
+    {
+        final int area = factor * factor;
+        for (int y = 0; y < outHeight; y++) {
+            for (int x = 0; x < outWidth; x++) {
+                int sum = 0;
+                for (int j = 0; j < factor; j++) {
+                    for (int i = 0; i < factor; i++) {
+                        sum += frame[(y0 + y * factor + j) * width + x0 + x * factor + i] & 0xff;
+                    }
+                }
+                assertEquals("luma " + x + "," + y + " / " + factor,
+                        (sum + area / 2) / area, scaled[y * outWidth + x] & 0xff);
+            }
+        }
+        final int chroma = width * height + (y0 / 2) * width + x0;
+        final int outChroma = outWidth * outHeight;
+        for (int y = 0; y < outHeight / 2; y++) {
+            for (int x = 0; x < outWidth / 2; x++) {
+                for (int component = 0; component < 2; component++) {
+                    int sum = 0;
+                    for (int j = 0; j < factor; j++) {
+                        for (int i = 0; i < factor; i++) {
+                            sum += frame[chroma + (y * factor + j) * width
+                                    + 2 * (x * factor + i) + component] & 0xff;
+                        }
+                    }
+                    assertEquals("chroma " + x + "," + y + " / " + factor,
+                            (sum + area / 2) / area,
+                            scaled[outChroma + y * outWidth + 2 * x + component] & 0xff);
+                }
+            }
+        }
+    }
+
+    /** Samples varying in both directions, V and U apart. */
+    private static byte[] pattern(final int width, final int height)
+    {
+        final byte[] nv21 = new byte[Nv21Scaler.frameBytes(width, height)];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                nv21[y * width + x] = (byte) (x * 3 + y * 5);
+            }
+        }
+        for (int i = width * height; i < nv21.length; i += 2) {
+            nv21[i] = (byte) (i * 7);
+            nv21[i + 1] = (byte) (255 - i * 3);
+        }
+        return nv21;
+    }
+}
@@ -0,0 +1,117 @@
+package com.kseek.camjpeg.codec;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TileFingerprintTest
+{
+    private static final int TOLERANCE = TileFingerprint.DEFAULT_TOLERANCE;
+
+    @Test
+    public void sameFrameMatches()
+    {
+        final byte[] frame = frame(640, 480, 100);
+        assertTrue(fingerprint(frame, 640, 480).matches(fingerprint(frame, 640, 480),
+                TOLERANCE, 0, 0, 0, 0));
+    }
+
+    @Test
+    public void noiseWithinToleranceMatches()
+    {
+        final byte[] frame = frame(640, 480, 100);
+        final byte[] noisy = frame.clone();
+        final Random random = new Random(1L);
+        for (int i = 0; i < 640 * 480; i++) {
+            noisy[i] = (byte) (100 + random.nextInt(5) - 2);
+        }
+        assertTrue(fingerprint(frame, 640, 480).matches(fingerprint(noisy, 640, 480),
+                TOLERANCE, 0, 0, 0, 0));
+    }
+
+    @Test
+    public void changeInOneTileDoesNotMatch()
+    {
+        final byte[] frame = frame(640, 480, 100);
+        final byte[] changed = frame.clone();
+        fill(changed, 640, 320, 240, 16, 16, 200);
+        assertFalse(fingerprint(frame, 640, 480).matches(fingerprint(changed, 640, 480),
+                TOLERANCE, 0, 0, 0, 0));
+    }
+
+    @Test
+    public void changeInThePartialBottomRowDoesNotMatch()
+    {
+        // 1080 is 67.5 tiles, the bottom 8 lines are a partial row.
+        final byte[] frame = frame(1920, 1080, 100);
+        final byte[] changed = frame.clone();
+        fill(changed, 1920, 0, 1072, 1920, 8, 200);
+        assertFalse(fingerprint(frame, 1920, 1080).matches(fingerprint(changed, 1920, 1080),
+                TOLERANCE, 0, 0, 0, 0));
+    }
+
+    @Test
+    public void changeInThePartialRightColumnDoesNotMatch()
+    {
+        final byte[] frame = frame(1000, 200, 100);
+        final byte[] changed = frame.clone();
+        fill(changed, 1000, 992, 0, 8, 200, 200);
+        assertFalse(fingerprint(frame, 1000, 200).matches(fingerprint(changed, 1000, 200),
+                TOLERANCE, 0, 0, 0, 0));
+    }
+
+    @Test
+    public void onlyTilesTouchingTheRectangleCount()
+    {
+        final byte[] frame = frame(640, 480, 100);
+        final byte[] changed = frame.clone();
+        fill(changed, 640, 0, 0, 64, 64, 200);
+        final TileFingerprint before = fingerprint(frame, 640, 480);
+        final TileFingerprint after = fingerprint(changed, 640, 480);
+        assertTrue(before.matches(after, TOLERANCE, 320, 240, 160, 120));
+        assertFalse(before.matches(after, TOLERANCE, 60, 60, 160, 120));
+    }
+
+    @Test
+    public void uncomputedFingerprintMatchesNothing()
+    {
+        final byte[] frame = frame(640, 480, 100);
+        final TileFingerprint reference = fingerprint(frame, 640, 480);
+        final TileFingerprint copy = new TileFingerprint(640, 480);
+        assertFalse(copy.matches(reference, TOLERANCE, 0, 0, 0, 0));
+        assertFalse(reference.matches(copy, TOLERANCE, 0, 0, 0, 0));
+        copy.copyFrom(reference);
+        assertTrue(copy.matches(reference, TOLERANCE, 0, 0, 0, 0));
+        // A copy of one never computed is not valid either.
+        copy.copyFrom(new TileFingerprint(640, 480));
+        assertFalse(copy.matches(reference, TOLERANCE, 0, 0, 0, 0));
+    }
+
+    private static byte[] frame(final int width, final int height, final int luma)
+    {
+        final byte[] nv21 = new byte[width * height * 3 / 2];
+        Arrays.fill(nv21, 0, width * height, (byte) luma);
+        Arrays.fill(nv21, width * height, nv21.length, (byte) 128);
+        return nv21;
+    }
+
+    private static void fill(final byte[] nv21, final int frameWidth, final int left,
+                             final int top, final int width, final int height, final int luma)
+    {
+        for (int y = top; y < top + height; y++) {
+            Arrays.fill(nv21, y * frameWidth + left, y * frameWidth + left + width, (byte) luma);
+        }
+    }
+
+    private static TileFingerprint fingerprint(final byte[] nv21, final int width,
+                                               final int height)
+    {
+        final TileFingerprint fingerprint = new TileFingerprint(width, height);
+        fingerprint.compute(nv21);
+        return fingerprint;
+    }
+}
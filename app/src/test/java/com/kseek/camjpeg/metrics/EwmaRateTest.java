@@ -0,0 +1,92 @@
+package com.kseek.camjpeg.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Rates, and the frame rate meter built on them, on a made-up clock with
+ * a one second window.
+ */
+public class EwmaRateTest
+{
+    private static final long NANOS_PER_SECOND = 1000L * 1000L * 1000L;
+    private static final long NANOS_PER_MILLI = 1000L * 1000L;
+
+    private long nanos = 100L * NANOS_PER_SECOND;
+
+    @Test
+    public void firstUpdateOnlyStartsTheClock()
+    {
+        final EwmaRate rate = new EwmaRate(NANOS_PER_SECOND);
+        assertEquals(0.0, rate.get(nanos), 0.0);
+        rate.update(1000L, nanos);
+        // Its amount is not counted.
+        assertEquals(0.0, rate.get(nanos + NANOS_PER_SECOND), 0.0);
+    }
+
+    @Test
+    public void rateIsRightFromTheSecondUpdate()
+    {
+        final EwmaRate rate = new EwmaRate(NANOS_PER_SECOND);
+        rate.update(100L, nanos);
+        nanos += 10L * NANOS_PER_MILLI;
+        rate.update(100L, nanos);
+        // 100 every 10 ms, the 1% off is the weight of the latest update.
+        assertEquals(10000.0, rate.get(nanos), 100.0);
+
+        for (int i = 0; i < 500; i++) {
+            nanos += 10L * NANOS_PER_MILLI;
+            rate.update(100L, nanos);
+        }
+        assertEquals(10000.0, rate.get(nanos), 100.0);
+    }
+
+    @Test
+    public void irregularUpdatesAverageOverTime()
+    {
+        final EwmaRate rate = new EwmaRate(NANOS_PER_SECOND);
+        rate.update(0L, nanos);
+        // 300 after 10 ms then nothing for 20 ms is still 10000 a second.
+        for (int i = 0; i < 200; i++) {
+            nanos += 10L * NANOS_PER_MILLI;
+            rate.update(300L, nanos);
+            nanos += 20L * NANOS_PER_MILLI;
+            rate.update(0L, nanos);
+        }
+        assertEquals(10000.0, rate.get(nanos), 200.0);
+    }
+
+    @Test
+    public void rateFallsOnceUpdatesStop()
+    {
+        final EwmaRate rate = new EwmaRate(NANOS_PER_SECOND);
+        rate.update(0L, nanos);
+        for (int i = 0; i < 1000; i++) {
+            nanos += 10L * NANOS_PER_MILLI;
+            rate.update(100L, nanos);
+        }
+        final double steady = rate.get(nanos);
+        assertEquals(steady / Math.E, rate.get(nanos + NANOS_PER_SECOND), steady * 0.01);
+    }
+
+    @Test
+    public void meterCountsFrames()
+    {
+        final FrameRateMeter meter = new FrameRateMeter(NANOS_PER_SECOND);
+        meter.record(nanos);
+        assertEquals(0.0, meter.getFramesPerSecond(nanos), 0.0);
+        for (int i = 0; i < 60; i++) {
+            nanos += NANOS_PER_SECOND / 30L;
+            meter.record(nanos);
+            // Read just after a frame, which has not decayed yet.
+            assertEquals(30.0, meter.getFramesPerSecond(nanos), 1.0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyWindow()
+    {
+        new EwmaRate(0L);
+    }
+}
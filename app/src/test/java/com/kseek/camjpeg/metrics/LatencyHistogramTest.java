@@ -0,0 +1,106 @@
+package com.kseek.camjpeg.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest
+{
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    @Test
+    public void smallValuesHaveABucketEach()
+    {
+        for (int micros = 0; micros < 4; micros++) {
+            assertEquals(micros, LatencyHistogram.bucketOf(micros));
+            assertEquals(micros + 1, LatencyHistogram.upperBoundMicros(micros));
+        }
+    }
+
+    @Test
+    public void powersOfTwoSplitInFour()
+    {
+        assertEquals(4, LatencyHistogram.bucketOf(4));
+        assertEquals(7, LatencyHistogram.bucketOf(7));
+        // 8 and 9 share a bucket up to 10, 14 and 15 one up to 16.
+        assertEquals(8, LatencyHistogram.bucketOf(8));
+        assertEquals(8, LatencyHistogram.bucketOf(9));
+        assertEquals(10L, LatencyHistogram.upperBoundMicros(8));
+        assertEquals(11, LatencyHistogram.bucketOf(15));
+        assertEquals(16L, LatencyHistogram.upperBoundMicros(11));
+        assertEquals(12, LatencyHistogram.bucketOf(16));
+    }
+
+    @Test
+    public void bucketsAreContiguousAndWithinAQuarter()
+    {
+        int previous = 0;
+        for (long micros = 1L; micros < 1L << 20; micros++) {
+            final int bucket = LatencyHistogram.bucketOf(micros);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            if (bucket > previous) {
+                // A bucket starts where the one below it ends.
+                assertEquals(micros, LatencyHistogram.upperBoundMicros(previous));
+            }
+            final long upper = LatencyHistogram.upperBoundMicros(bucket);
+            assertTrue(micros < upper);
+            assertTrue(micros + " reported as " + upper, upper <= micros + micros / 4 + 1);
+            previous = bucket;
+        }
+    }
+
+    @Test
+    public void longValuesLandInTheLastBucket()
+    {
+        final int last = LatencyHistogram.bucketOf((1L << 27) - 1L);
+        assertEquals(last, LatencyHistogram.bucketOf(1L << 27));
+        assertEquals(last, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+        assertTrue(last > LatencyHistogram.bucketOf(1L << 26));
+    }
+
+    @Test
+    public void emptyHistogramReportsZero()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.getPercentileNanos(0.5));
+        assertEquals(0L, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void percentileIsTheUpperBoundOfItsBucket()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1L; micros <= 100L; micros++) {
+            histogram.recordNanos(micros * NANOS_PER_MICRO);
+        }
+        assertEquals(100L, histogram.getCount());
+        assertEquals(5050L * NANOS_PER_MICRO, histogram.getSumNanos());
+        // The 50th value, 50us, is in the bucket from 48 up to 56.
+        assertEquals(56L * NANOS_PER_MICRO, histogram.getPercentileNanos(0.5));
+        // The 90th, 90us, in the one from 80 up to 96.
+        assertEquals(96L * NANOS_PER_MICRO, histogram.getPercentileNanos(0.9));
+        // The rank is at least 1.
+        assertEquals(2L * NANOS_PER_MICRO, histogram.getPercentileNanos(0.0));
+    }
+
+    @Test
+    public void percentileIsClampedToTheMax()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(100L * NANOS_PER_MICRO);
+        // 100us is in the bucket up to 112us, but nothing took that long.
+        assertEquals(100L * NANOS_PER_MICRO, histogram.getPercentileNanos(1.0));
+        assertEquals(100L * NANOS_PER_MICRO, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void negativeDurationsCountAsZero()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(-5L);
+        assertEquals(1L, histogram.getCount());
+        assertEquals(0L, histogram.getSumNanos());
+        assertEquals(0L, histogram.getPercentileNanos(1.0));
+    }
+}
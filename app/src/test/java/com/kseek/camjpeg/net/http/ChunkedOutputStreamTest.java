@@ -0,0 +1,129 @@
+package com.kseek.camjpeg.net.http;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Streams over a small pool of 16 byte chunks, so a few bytes span several. */
+public class ChunkedOutputStreamTest
+{
+    private static final int CHUNK_BYTES = 16;
+    private static final int CHUNKS = 4;
+
+    private final ChunkPool pool = new ChunkPool(CHUNK_BYTES, CHUNKS, false);
+
+    @Test
+    public void buffersHoldWhatWasWritten() throws IOException
+    {
+        final ChunkedOutputStream out = new ChunkedOutputStream(pool);
+        final byte[] bytes = bytes(40);
+        out.write(bytes[0]);
+        out.write(bytes, 1, bytes.length - 1);
+        assertEquals(40, out.getLength());
+        assertEquals(3, out.getChunkCount());
+
+        final ByteBuffer[] buffers = new ByteBuffer[CHUNKS];
+        assertEquals(3, out.getBuffers(new ByteBuffer[CHUNKS], buffers, 0));
+        assertEquals(CHUNK_BYTES, buffers[0].remaining());
+        assertEquals(CHUNK_BYTES, buffers[1].remaining());
+        assertEquals(40 - 2 * CHUNK_BYTES, buffers[2].remaining());
+        final ByteBuffer joined = ByteBuffer.allocate(40);
+        for (int i = 0; i < 3; i++) {
+            joined.put(buffers[i]);
+        }
+        assertArrayEquals(bytes, joined.array());
+    }
+
+    @Test
+    public void copyToLeavesTheChunksAsTheyWere() throws IOException
+    {
+        final ChunkedOutputStream out = new ChunkedOutputStream(pool);
+        final byte[] bytes = bytes(40);
+        out.write(bytes, 0, 20);
+
+        final ByteBuffer first = ByteBuffer.allocate(40);
+        out.copyTo(first);
+        assertEquals(20, first.position());
+        // Writing goes on where it stopped.
+        out.write(bytes, 20, 20);
+        final ByteBuffer second = ByteBuffer.allocate(40);
+        out.copyTo(second);
+        assertArrayEquals(bytes, second.array());
+        out.reset();
+
+        // A full last chunk is left full, the next write takes another.
+        final ChunkedOutputStream exact = new ChunkedOutputStream(pool);
+        exact.write(bytes, 0, CHUNK_BYTES);
+        exact.copyTo(ByteBuffer.allocate(CHUNK_BYTES));
+        exact.write(7);
+        assertEquals(2, exact.getChunkCount());
+    }
+
+    @Test
+    public void writeBeyondThePoolFails() throws IOException
+    {
+        final ChunkedOutputStream held = new ChunkedOutputStream(pool);
+        held.write(bytes(CHUNK_BYTES), 0, CHUNK_BYTES);
+
+        final ChunkedOutputStream out = new ChunkedOutputStream(pool);
+        final byte[] bytes = bytes(CHUNK_BYTES * CHUNKS);
+        try {
+            out.write(bytes, 0, bytes.length);
+            fail("wrote more than the pool holds");
+        }
+        catch (final IOException exhausted) {
+            // Expected, the stream keeps what fitted until it is reset.
+        }
+        assertEquals(CHUNKS - 1, out.getChunkCount());
+        out.reset();
+        assertEquals(0, out.getLength());
+
+        // Every chunk but the held one is free again.
+        out.write(bytes, 0, CHUNK_BYTES * (CHUNKS - 1));
+        assertEquals(CHUNKS, pool.getAllocatedChunks());
+    }
+
+    @Test
+    public void releasingAFrameReturnsEveryChunk() throws IOException
+    {
+        final JpegFrame frame = new JpegFrame(0, pool);
+        assertTrue(frame.tryAcquire());
+        frame.getOutputStream().write(bytes(CHUNK_BYTES * CHUNKS), 0, CHUNK_BYTES * CHUNKS);
+        frame.retain();
+
+        frame.release();
+        assertEquals(-1, pool.acquire());
+        frame.release();
+        assertEquals(0, frame.getOutputStream().getChunkCount());
+        for (int i = 0; i < CHUNKS; i++) {
+            assertTrue(pool.acquire() >= 0);
+        }
+        assertEquals(-1, pool.acquire());
+        // The slot is free for the ring again.
+        assertTrue(frame.tryAcquire());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasingAFrameTwiceFails()
+    {
+        final JpegFrame frame = new JpegFrame(0, pool);
+        assertTrue(frame.tryAcquire());
+        frame.release();
+        frame.release();
+    }
+
+    private static byte[] bytes(final int count)
+    {
+        final byte[] bytes = new byte[count];
+        for (int i = 0; i < count; i++) {
+            bytes[i] = (byte) (i * 7 + 1);
+        }
+        return bytes;
+    }
+}
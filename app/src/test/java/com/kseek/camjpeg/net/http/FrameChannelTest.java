@@ -0,0 +1,63 @@
+package com.kseek.camjpeg.net.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/** Clipping a channel's crop to the frame, as the encoder does for every frame. */
+public class FrameChannelTest
+{
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    @Test
+    public void wholeFrameIsTheFrame()
+    {
+        final FrameChannel channel = new FrameChannel("full", 1);
+        assertClip(channel, 0, 0, WIDTH, HEIGHT);
+    }
+
+    @Test
+    public void cropInsideTheFrameIsKept()
+    {
+        assertClip(new FrameChannel("crop", 100, 50, 200, 120, 1), 100, 50, 200, 120);
+    }
+
+    @Test
+    public void cropIsClippedAtTheFrameEdge()
+    {
+        assertClip(new FrameChannel("crop", 600, 400, 200, 200, 1), 600, 400, 40, 80);
+        // An odd frame size leaves an even width.
+        final FrameChannel channel = new FrameChannel("crop", 600, 400, 200, 200, 1);
+        assertEquals(40, channel.clipWidth(641));
+        assertEquals(80, channel.clipHeight(481));
+    }
+
+    @Test
+    public void cropBeyondTheFrameKeepsItsLastPixels()
+    {
+        // Nothing of the crop is in the frame: the bottom right 2 x 2 pixels are encoded.
+        assertClip(new FrameChannel("crop", 1000, 1000, 100, 100, 1),
+                WIDTH - 2, HEIGHT - 2, 2, 2);
+    }
+
+    @Test
+    public void scaleIsReducedToKeepTwoPixels()
+    {
+        final FrameChannel channel = new FrameChannel("crop", 0, 0, 8, 8, 8);
+        assertEquals(8, channel.scaleFor(16, 16));
+        assertEquals(4, channel.scaleFor(8, 8));
+        assertEquals(2, channel.scaleFor(4, 40));
+        assertEquals(1, channel.scaleFor(2, 2));
+        assertEquals(1, new FrameChannel("full", 1).scaleFor(2, 2));
+    }
+
+    private static void assertClip(final FrameChannel channel, final int left, final int top,
+                                   final int width, final int height)
+    {
+        assertEquals(left, channel.clipLeft(WIDTH));
+        assertEquals(top, channel.clipTop(HEIGHT));
+        assertEquals(width, channel.clipWidth(WIDTH));
+        assertEquals(height, channel.clipHeight(HEIGHT));
+    }
+}
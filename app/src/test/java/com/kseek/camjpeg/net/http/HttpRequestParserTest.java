@@ -0,0 +1,122 @@
+package com.kseek.camjpeg.net.http;
+
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpRequestParserTest
+{
+    private static final int CAPACITY = 4096;
+
+    @Test
+    public void parsesRequestLineHeadersAndQuery() throws Exception
+    {
+        final String head = "GET /stream.mjpg?size=half&fps=10&next&name=a%20b HTTP/1.1\r\n"
+                + "Host: camera\r\n"
+                + "If-None-Match:  \"42\" \r\n"
+                + "\r\n";
+        final HttpRequest request = parse(head + "GET /next HTTP/1.1\r\n");
+        assertEquals("GET", request.method);
+        assertEquals("/stream.mjpg", request.path);
+        assertEquals(1, request.minorVersion);
+        assertEquals(head.length(), request.headLength);
+        assertEquals("camera", request.getHeader("host"));
+        assertEquals("\"42\"", request.getHeader("IF-NONE-MATCH"));
+        assertEquals("half", request.getParameter("size"));
+        assertEquals(10, request.getIntParameter("fps", 0));
+        assertEquals(3, request.getIntParameter("scale", 3));
+        assertEquals("", request.getParameter("next"));
+        assertTrue(request.hasParameter("next"));
+        assertEquals("a b", request.getParameter("name"));
+        assertNull(request.getParameter("crop"));
+        assertFalse(request.isHead());
+        assertTrue(request.isKeepAlive());
+    }
+
+    @Test
+    public void keepAliveFollowsTheVersion() throws Exception
+    {
+        assertFalse(parse("GET / HTTP/1.1\r\nConnection: close\r\n\r\n").isKeepAlive());
+        assertFalse(parse("GET / HTTP/1.0\r\n\r\n").isKeepAlive());
+        assertTrue(parse("HEAD / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n").isKeepAlive());
+        assertTrue(parse("HEAD / HTTP/1.0\r\n\r\n").isHead());
+    }
+
+    @Test
+    public void returnsNullUntilTheHeadIsComplete() throws Exception
+    {
+        final String head = "GET /snapshot.jpg HTTP/1.1\r\nHost: camera\r\n\r\n";
+        for (int length = 0; length < head.length(); length++) {
+            assertNull(parse(head.substring(0, length)));
+        }
+        assertEquals("/snapshot.jpg", parse(head).path);
+    }
+
+    @Test
+    public void rejectsGarbageAfterTheFirstLine() throws Exception
+    {
+        assertStatus(400, "get / HTTP/1.1\r\n");
+        // Not even a complete line, but not a method either.
+        assertStatus(400, "\u0016\u0003\u0001");
+        assertStatus(400, "GET\r\n\r\n");
+        assertStatus(400, "GET stream HTTP/1.1\r\n\r\n");
+        assertStatus(400, "GET / HTTP/1.1\r\nno colon\r\n\r\n");
+        assertStatus(400, "GET /?a=%zz HTTP/1.1\r\n\r\n");
+        assertStatus(400, "GET / FTP/1.0\r\n\r\n");
+        assertStatus(505, "GET / HTTP/2.0\r\n\r\n");
+    }
+
+    @Test
+    public void refusesOversizedHeads() throws Exception
+    {
+        final char[] target = new char[HttpRequestParser.MAX_REQUEST_LINE];
+        Arrays.fill(target, 'a');
+        assertStatus(414, "GET /" + new String(target) + " HTTP/1.1\r\n\r\n");
+        assertStatus(414, "GET /" + new String(target));
+
+        final StringBuilder headers = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i <= 64; i++) {
+            headers.append("X-Header-").append(i).append(": x\r\n");
+        }
+        assertStatus(431, headers.append("\r\n").toString());
+
+        final StringBuilder large = new StringBuilder("GET / HTTP/1.1\r\n");
+        while (large.length() < CAPACITY) {
+            large.append("X-Padding: 0123456789abcdef\r\n");
+        }
+        final byte[] bytes = large.toString().getBytes("ISO-8859-1");
+        try {
+            HttpRequestParser.parse(bytes, CAPACITY, CAPACITY);
+            fail("accepted a head larger than the buffer");
+        }
+        catch (final HttpException tooLarge) {
+            assertEquals(431, tooLarge.status);
+        }
+    }
+
+    private static HttpRequest parse(final String input)
+            throws HttpException, UnsupportedEncodingException
+    {
+        final byte[] bytes = Arrays.copyOf(input.getBytes("ISO-8859-1"), CAPACITY);
+        return HttpRequestParser.parse(bytes, input.length(), CAPACITY);
+    }
+
+    private static void assertStatus(final int status, final String input)
+            throws UnsupportedEncodingException
+    {
+        try {
+            parse(input);
+            fail("accepted " + input);
+        }
+        catch (final HttpException refused) {
+            assertEquals(input, status, refused.status);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.kseek.camjpeg.net.http;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Serves loopback viewers from one streamer: every viewer gets every frame
+ * when they keep up, and accounts for every frame when they may not. The
+ * delivered rate is measured by LoopbackDeliveryBenchmark.
+ */
+public class LoopbackDeliveryTest
+{
+    private static final int FRAME_BYTES = 48 * 1024;
+    private static final long TIMEOUT_NANOS = 10L * 1000L * 1000L * 1000L;
+
+    private final byte[] jpeg = new byte[FRAME_BYTES];
+    private final List<LoopbackViewer> viewers = new ArrayList<LoopbackViewer>();
+    private MJpegHttpStreamer streamer = null;
+    private long published = 0L;
+
+    @After
+    public void tearDown()
+    {
+        closeAll();
+    }
+
+    @Test
+    public void everyViewerGetsEveryFrame() throws Exception
+    {
+        for (final int clients : new int[] {1, 4, 16}) {
+            open(clients);
+            for (int i = 0; i < 50; i++) {
+                fanOut();
+            }
+            for (final LoopbackViewer viewer : viewers) {
+                assertEquals(published, viewer.getParts());
+                assertEquals(published * FRAME_BYTES, viewer.getBytes());
+            }
+            closeAll();
+        }
+    }
+
+    @Test
+    public void viewersAtCameraRateAccountForEveryFrame() throws Exception
+    {
+        // Frames are not held back for the viewers here: each one either
+        // reaches a viewer or is counted as skipped for it.
+        for (final int clients : new int[] {1, 8, 32}) {
+            open(clients);
+            final long frames = publishAtFrameRate(30, 1000L * 1000L * 1000L);
+            final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            List<ClientStats> stats;
+            while (!accountedFor(stats = streamer.getClientStats(), frames)) {
+                assertTrue(clients + " viewers: frames unaccounted for",
+                        System.nanoTime() < deadline);
+                Thread.sleep(1);
+            }
+            assertEquals(clients, stats.size());
+            long sent = 0L;
+            for (final ClientStats client : stats) {
+                assertTrue(client.getFramesSent() > 0L);
+                sent += client.getFramesSent();
+            }
+            while (totalParts() < sent) {
+                assertTrue(clients + " viewers: " + totalParts() + " of " + sent + " parts read",
+                        System.nanoTime() < deadline);
+                Thread.sleep(1);
+            }
+            assertEquals(sent, totalParts());
+            assertEquals(sent * FRAME_BYTES, totalBytes());
+            closeAll();
+        }
+    }
+
+    /** Whether every viewer has been sent or has skipped each of the frames. */
+    private static boolean accountedFor(final List<ClientStats> stats, final long frames)
+    {
+        for (final ClientStats client : stats) {
+            if (client.getFramesSent() + client.getFramesDropped() < frames) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Publishes frames at the given rate, dropping those without a free slot. */
+    private long publishAtFrameRate(final int fps, final long durationNanos) throws IOException,
+            InterruptedException
+    {
+        final long interval = 1000L * 1000L * 1000L / fps;
+        final long start = System.nanoTime();
+        long due = start;
+        while (due - start < durationNanos) {
+            final JpegFrame frame = streamer.acquireFrame();
+            if (frame != null) {
+                frame.getOutputStream().write(jpeg, 0, FRAME_BYTES);
+                streamer.publishFrame(frame, FRAME_BYTES, ++published);
+            }
+            due += interval;
+            final long sleep = due - System.nanoTime();
+            if (sleep > 0L) {
+                Thread.sleep(sleep / 1000000L, (int) (sleep % 1000000L));
+            }
+        }
+        return published;
+    }
+
+    private void open(final int clients) throws IOException, InterruptedException
+    {
+        streamer = new MJpegHttpStreamer(0 /* any free port */, FRAME_BYTES,
+                clients + MJpegHttpStreamer.DEFAULT_FRAME_SLOTS);
+        streamer.start();
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (streamer.getLocalPort() == 0) {
+            assertTrue("streamer did not start", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        for (int i = 0; i < clients; i++) {
+            viewers.add(new LoopbackViewer(streamer.getLocalPort(), FRAME_BYTES));
+        }
+        while (streamer.getClientStats().size() < clients) {
+            assertTrue("viewers did not connect", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        published = 0L;
+    }
+
+    /** Publishes one frame and waits until every viewer has read it. */
+    private void fanOut() throws IOException
+    {
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        JpegFrame frame;
+        while ((frame = streamer.acquireFrame()) == null) {
+            assertTrue("no free frame slot", System.nanoTime() < deadline);
+            Thread.yield();
+        }
+        frame.getOutputStream().write(jpeg, 0, FRAME_BYTES);
+        streamer.publishFrame(frame, FRAME_BYTES, ++published);
+
+        for (final LoopbackViewer viewer : viewers) {
+            while (viewer.getParts() < published) {
+                assertTrue("frame " + published + " not delivered",
+                        System.nanoTime() < deadline);
+                Thread.yield();
+            }
+        }
+    }
+
+    private long totalParts()
+    {
+        long total = 0L;
+        for (final LoopbackViewer viewer : viewers) {
+            total += viewer.getParts();
+        }
+        return total;
+    }
+
+    private long totalBytes()
+    {
+        long total = 0L;
+        for (final LoopbackViewer viewer : viewers) {
+            total += viewer.getBytes();
+        }
+        return total;
+    }
+
+    private void closeAll()
+    {
+        for (final LoopbackViewer viewer : viewers) {
+            viewer.close();
+        }
+        viewers.clear();
+        if (streamer != null) {
+            streamer.stop();
+            streamer = null;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.kseek.camjpeg.net.http;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A blocking MJPEG reader on a loopback socket that counts complete parts. */
+final class LoopbackViewer implements Runnable
+{
+    private final Socket socket;
+    private final int maxFrameBytes;
+    private final AtomicLong parts = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    LoopbackViewer(final int port, final int maxFrameBytes) throws IOException
+    {
+        this.maxFrameBytes = maxFrameBytes;
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        final OutputStream out = socket.getOutputStream();
+        out.write("GET /stream.mjpg HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+        out.flush();
+
+        final Thread thread = new Thread(this, "viewer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Complete parts read so far. */
+    long getParts()
+    {
+        return parts.get();
+    }
+
+    /** JPEG bytes of the complete parts read so far. */
+    long getBytes()
+    {
+        return bytes.get();
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            final byte[] payload = new byte[maxFrameBytes];
+            int length = -1;
+            while (true) {
+                final String line = readLine(in);
+                if (line.startsWith("Content-Length: ")) {
+                    length = Integer.parseInt(line.substring(16));
+                }
+                else if (line.isEmpty() && length >= 0) {
+                    in.readFully(payload, 0, length);
+                    bytes.addAndGet(length);
+                    length = -1;
+                    parts.incrementAndGet();
+                }
+            }
+        }
+        catch (final IOException closed) {
+            // The test is over.
+        }
+    }
+
+    static String readLine(final InputStream in) throws IOException
+    {
+        final StringBuilder line = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("end of stream");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    void close()
+    {
+        try {
+            socket.close();
+        }
+        catch (final IOException closing) {
+            System.err.println(closing);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.kseek.camjpeg.net.http;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Steady-state publishing and streaming must not allocate per frame. The
+ * bytes allocated are read from the JVM's per-thread counters, after a
+ * warm-up so that class loading and JIT compilation do not count.
+ */
+public class PublishAllocationTest
+{
+    private static final int FRAME_BYTES = 48 * 1024;
+    private static final int WARM_UP_FRAMES = 20000;
+    private static final int MEASURED_FRAMES = 10000;
+    private static final long TIMEOUT_NANOS = 10L * 1000L * 1000L * 1000L;
+
+    /**
+     * What the selector may allocate per frame sent: the JDK's selected key
+     * iterators, never anything the size of a frame or a part header.
+     */
+    private static final long MAX_SELECTOR_BYTES_PER_FRAME = 256L;
+
+    private final byte[] jpeg = new byte[FRAME_BYTES];
+    private com.sun.management.ThreadMXBean threads;
+    private MJpegHttpStreamer streamer = null;
+    private long published = 0L;
+
+    @Before
+    public void setUp()
+    {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (streamer != null) {
+            streamer.stop();
+        }
+    }
+
+    @Test
+    public void partHeaderEncodesWithoutAllocating()
+    {
+        final MJpegPartHeader header = new MJpegPartHeader();
+        long timestamp = 1234567890L;
+        for (int i = 0; i < WARM_UP_FRAMES; i++) {
+            header.encode(FRAME_BYTES + i, timestamp++, i);
+            header.encode(FRAME_BYTES + i, timestamp++);
+        }
+
+        final long before = allocatedBytes();
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            header.encode(FRAME_BYTES + i, timestamp++, i);
+            header.encode(FRAME_BYTES + i, timestamp++);
+        }
+        assertEquals(0L, allocatedBytes() - before);
+    }
+
+    @Test
+    public void publishingAllocatesNothing() throws Exception
+    {
+        start();
+        for (int i = 0; i < WARM_UP_FRAMES; i++) {
+            publish();
+        }
+
+        final long before = allocatedBytes();
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            publish();
+        }
+        assertEquals(0L, allocatedBytes() - before);
+    }
+
+    @Test
+    public void streamingAllocatesNothingPerFrame() throws Exception
+    {
+        start();
+        final LoopbackViewer viewer = new LoopbackViewer(streamer.getLocalPort(), FRAME_BYTES);
+        try {
+            final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            while (streamer.getClientCount() < 1) {
+                assertTrue("viewer did not connect", System.nanoTime() < deadline);
+                Thread.sleep(1);
+            }
+            final long selectorThread = selectorThreadId();
+            for (int i = 0; i < WARM_UP_FRAMES / 10; i++) {
+                fanOut(viewer);
+            }
+
+            final long publisherBefore = allocatedBytes();
+            final long selectorBefore = threads.getThreadAllocatedBytes(selectorThread);
+            for (int i = 0; i < MEASURED_FRAMES / 10; i++) {
+                fanOut(viewer);
+            }
+            final long selectorBytes = threads.getThreadAllocatedBytes(selectorThread)
+                    - selectorBefore;
+            assertEquals(0L, allocatedBytes() - publisherBefore);
+            assertTrue("selector allocated " + selectorBytes + " bytes for "
+                            + MEASURED_FRAMES / 10 + " frames",
+                    selectorBytes <= MAX_SELECTOR_BYTES_PER_FRAME * (MEASURED_FRAMES / 10));
+        }
+        finally {
+            viewer.close();
+        }
+    }
+
+    private void start() throws InterruptedException
+    {
+        streamer = new MJpegHttpStreamer(0 /* any free port */, FRAME_BYTES);
+        streamer.start();
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (streamer.getLocalPort() == 0) {
+            assertTrue("streamer did not start", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private void publish() throws IOException
+    {
+        final JpegFrame frame = streamer.acquireFrame();
+        if (frame != null) {
+            frame.getOutputStream().write(jpeg, 0, FRAME_BYTES);
+            streamer.publishFrame(frame, FRAME_BYTES, ++published);
+        }
+    }
+
+    private void fanOut(final LoopbackViewer viewer) throws IOException
+    {
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        JpegFrame frame;
+        while ((frame = streamer.acquireFrame()) == null) {
+            assertTrue("no free frame slot", System.nanoTime() < deadline);
+            Thread.yield();
+        }
+        frame.getOutputStream().write(jpeg, 0, FRAME_BYTES);
+        streamer.publishFrame(frame, FRAME_BYTES, ++published);
+        while (viewer.getParts() < published) {
+            if (System.nanoTime() > deadline) {
+                fail("frame " + published + " not delivered");
+            }
+            Thread.yield();
+        }
+    }
+
+    /** Bytes allocated by the current thread so far. */
+    private long allocatedBytes()
+    {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private long selectorThreadId()
+    {
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (MJpegHttpStreamer.class.getSimpleName().equals(thread.getName())) {
+                return thread.getId();
+            }
+        }
+        throw new AssertionError("no selector thread");
+    }
+}
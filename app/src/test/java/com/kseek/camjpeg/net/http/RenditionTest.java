@@ -0,0 +1,141 @@
+package com.kseek.camjpeg.net.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Selecting renditions with the size, crop and scale parameters. */
+public class RenditionTest
+{
+    private static final int FRAME_BYTES = 1000;
+    private static final long TIMEOUT_NANOS = 10L * 1000L * 1000L * 1000L;
+    private static final int PRESETS = 3;
+
+    private MJpegHttpStreamer streamer;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    @Before
+    public void setUp() throws InterruptedException
+    {
+        streamer = new MJpegHttpStreamer(0 /* any free port */, FRAME_BYTES);
+        streamer.start();
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (streamer.getLocalPort() == 0) {
+            assertTrue("streamer did not start", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        for (final Socket socket : sockets) {
+            socket.close();
+        }
+        streamer.stop();
+    }
+
+    @Test
+    public void presetsAreSelectedByName() throws Exception
+    {
+        stream("size=half");
+        assertRefused(400, "size=tiny");
+        assertRefused(400, "size=half&scale=2");
+        assertEquals(PRESETS, streamer.getChannels().size());
+    }
+
+    @Test
+    public void identicalCropsShareAChannel() throws Exception
+    {
+        stream("crop=10,20,100,60");
+        // Rounded to the same even region.
+        stream("crop=11,21,101,61");
+        assertEquals(PRESETS + 1, streamer.getChannels().size());
+        final FrameChannel crop = streamer.getChannels().get(PRESETS);
+        assertTrue(crop.matches(10, 20, 100, 60, 1));
+
+        stream("crop=10,20,100,60&scale=2");
+        assertEquals(PRESETS + 2, streamer.getChannels().size());
+    }
+
+    @Test
+    public void badCropsAreRefused() throws IOException
+    {
+        assertRefused(400, "crop=10,20,100");
+        assertRefused(400, "crop=10,20,1,60");
+        assertRefused(400, "crop=-2,20,100,60");
+        assertRefused(400, "scale=3");
+        assertRefused(400, "scale=" + (MJpegHttpStreamer.MAX_SCALE * 2));
+        assertEquals(PRESETS, streamer.getChannels().size());
+    }
+
+    @Test
+    public void cropsBeyondTheLimitAreRefused() throws Exception
+    {
+        for (int i = PRESETS; i < MJpegHttpStreamer.MAX_CHANNELS; i++) {
+            stream("crop=" + (i * 10) + ",0,100,100");
+        }
+        assertEquals(MJpegHttpStreamer.MAX_CHANNELS, streamer.getChannels().size());
+        assertRefused(503, "crop=0,0,50,50");
+        // A crop already encoded is still served, and so are the presets.
+        stream("crop=30,0,100,100");
+        stream("size=quarter");
+
+        // Once its viewers are gone a crop makes room for another.
+        for (final Socket socket : sockets) {
+            socket.close();
+        }
+        sockets.clear();
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (streamer.getChannels().size() > PRESETS) {
+            assertTrue("crops were not dropped", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+        stream("crop=0,0,50,50");
+    }
+
+    /**
+     * Asks for a stream with the given query and waits until it is being
+     * served. The stream stays open until the test ends; its head only goes
+     * out with the first frame, so the viewer count tells it was granted.
+     */
+    private void stream(final String query) throws Exception
+    {
+        final int streaming = streamer.getClientStats().size();
+        send(query);
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (streamer.getClientStats().size() == streaming) {
+            assertTrue(query + " was not streamed", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /** Asks for a stream with the given query and checks it is answered with status. */
+    private void assertRefused(final int status, final String query) throws IOException
+    {
+        final String statusLine = LoopbackViewer.readLine(send(query).getInputStream());
+        assertTrue(query + ": " + statusLine, statusLine.startsWith("HTTP/1.1 " + status + " "));
+    }
+
+    private Socket send(final String query) throws IOException
+    {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), streamer.getLocalPort());
+        sockets.add(socket);
+        socket.setSoTimeout((int) (TIMEOUT_NANOS / 1000000L));
+        final OutputStream out = socket.getOutputStream();
+        out.write(("GET " + MJpegHttpStreamer.STREAM_PATH + "?" + query + " HTTP/1.1\r\n\r\n")
+                .getBytes("US-ASCII"));
+        out.flush();
+        return socket;
+    }
+}
@@ -0,0 +1,362 @@
+package com.kseek.camjpeg.net.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Replays from an archive in memory, whose seeks and moves can be held up
+ * to stand in for a slow disk.
+ */
+public class ReplayTest
+{
+    private static final int FRAME_BYTES = 30000;
+    private static final long[] FRAME_MILLIS = {1000L, 1010L, 1020L, 1030L};
+    private static final long TIMEOUT_NANOS = 10L * 1000L * 1000L * 1000L;
+
+    private final MemoryArchive archive = new MemoryArchive();
+    private MJpegHttpStreamer streamer;
+    private long published = 0L;
+
+    @Before
+    public void setUp() throws InterruptedException
+    {
+        streamer = new MJpegHttpStreamer(0 /* any free port */, FRAME_BYTES);
+        streamer.setFrameArchive(archive);
+        streamer.start();
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (streamer.getLocalPort() == 0) {
+            assertTrue("streamer did not start", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        archive.seekGate.countDown();
+        archive.nextGate.countDown();
+        streamer.stop();
+    }
+
+    @Test
+    public void replaysEveryFrameFromTheRequestedTime() throws Exception
+    {
+        final String[] response = request("GET /replay.mjpg?from=1005 HTTP/1.1\r\n");
+        assertTrue(response[0], response[0].startsWith("HTTP/1.1 200 "));
+        assertEquals(3, count(response[1], "X-Timestamp: "));
+        assertTrue(response[1].indexOf("X-Timestamp: 1010")
+                < response[1].indexOf("X-Timestamp: 1030"));
+        // Nothing was captured for the viewer, there is no latency to report.
+        assertFalse(response[1].contains("X-Capture-Latency-Us"));
+        assertTrue(archive.cursorClosed);
+    }
+
+    @Test
+    public void followsARecordingInProgress() throws Exception
+    {
+        archive.recording = true;
+        final Socket replay = send("GET /replay.mjpg?from=1005 HTTP/1.1\r\n");
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        awaitParts(replay, received, 3);
+
+        // Caught up, the replay waits for the next frame to be recorded.
+        archive.append(1040L);
+        awaitParts(replay, received, 4);
+        assertTrue(received.toString("ISO-8859-1").contains("X-Timestamp: 1040"));
+
+        archive.recording = false;
+        assertEquals(4, count(receive(replay, received)[1], "X-Timestamp: "));
+        assertTrue(archive.cursorClosed);
+    }
+
+    @Test
+    public void waitsForTheFirstFrameWhileRecording() throws Exception
+    {
+        archive.recording = true;
+        final Socket replay = send("GET /replay.mjpg?from=2000 HTTP/1.1\r\n");
+        assertTrue(archive.reading.await(TIMEOUT_NANOS, TimeUnit.NANOSECONDS));
+        archive.append(2000L);
+        archive.recording = false;
+
+        final String[] response = receive(replay);
+        assertTrue(response[0], response[0].startsWith("HTTP/1.1 200 "));
+        assertEquals(1, count(response[1], "X-Timestamp: "));
+        assertTrue(response[1].contains("X-Timestamp: 2000"));
+    }
+
+    @Test
+    public void nothingToReplayAnswers404() throws Exception
+    {
+        final String[] response = request("GET /replay.mjpg?from=2000 HTTP/1.1\r\n");
+        assertTrue(response[0], response[0].startsWith("HTTP/1.1 404 "));
+    }
+
+    @Test
+    public void failedSeekAnswers500() throws Exception
+    {
+        archive.failSeek = true;
+        final String[] response = request("GET /replay.mjpg HTTP/1.1\r\n");
+        assertTrue(response[0], response[0].startsWith("HTTP/1.1 500 "));
+    }
+
+    @Test
+    public void slowSeekDoesNotHoldUpLiveViewers() throws Exception
+    {
+        archive.seekGate = new CountDownLatch(1);
+        final Socket replay = send("GET /replay.mjpg HTTP/1.1\r\n");
+        assertTrue(archive.reading.await(TIMEOUT_NANOS, TimeUnit.NANOSECONDS));
+        streamLive();
+
+        archive.seekGate.countDown();
+        assertEquals(FRAME_MILLIS.length, count(receive(replay)[1], "X-Timestamp: "));
+    }
+
+    @Test
+    public void slowMoveDoesNotHoldUpLiveViewers() throws Exception
+    {
+        archive.nextGate = new CountDownLatch(1);
+        final Socket replay = send("GET /replay.mjpg HTTP/1.1\r\n");
+        assertTrue(archive.moving.await(TIMEOUT_NANOS, TimeUnit.NANOSECONDS));
+        streamLive();
+
+        archive.nextGate.countDown();
+        assertEquals(FRAME_MILLIS.length, count(receive(replay)[1], "X-Timestamp: "));
+    }
+
+    @Test
+    public void cursorOfAReplayClosedWhileReadingIsClosed() throws Exception
+    {
+        archive.seekGate = new CountDownLatch(1);
+        final Socket replay = send("GET /replay.mjpg HTTP/1.1\r\n");
+        assertTrue(archive.reading.await(TIMEOUT_NANOS, TimeUnit.NANOSECONDS));
+        replay.close();
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (streamer.getClientCount() > 0) {
+            assertTrue("disconnect not noticed", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+
+        archive.seekGate.countDown();
+        while (!archive.cursorClosed) {
+            assertTrue("cursor not closed", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /** Delivers frames to a live viewer one at a time. */
+    private void streamLive() throws Exception
+    {
+        final LoopbackViewer viewer = new LoopbackViewer(streamer.getLocalPort(), FRAME_BYTES);
+        try {
+            final byte[] jpeg = new byte[FRAME_BYTES];
+            final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            for (int i = 0; i < 10; i++) {
+                JpegFrame frame;
+                while ((frame = streamer.acquireFrame()) == null) {
+                    assertTrue("no free frame slot", System.nanoTime() < deadline);
+                    Thread.yield();
+                }
+                frame.getOutputStream().write(jpeg, 0, FRAME_BYTES);
+                streamer.publishFrame(frame, FRAME_BYTES, ++published);
+                while (viewer.getParts() < published) {
+                    if (System.nanoTime() > deadline) {
+                        fail("frame " + published + " not delivered");
+                    }
+                    Thread.sleep(1);
+                }
+            }
+        }
+        finally {
+            viewer.close();
+        }
+    }
+
+    private static int count(final String text, final String part)
+    {
+        int count = 0;
+        for (int at = text.indexOf(part); at >= 0; at = text.indexOf(part, at + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private String[] request(final String head) throws IOException
+    {
+        return receive(send(head));
+    }
+
+    private Socket send(final String head) throws IOException
+    {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), streamer.getLocalPort());
+        socket.setSoTimeout((int) (TIMEOUT_NANOS / 1000000L));
+        final OutputStream out = socket.getOutputStream();
+        out.write((head + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+        return socket;
+    }
+
+    /** Reads the response until it holds the given number of parts. */
+    private static void awaitParts(final Socket socket, final ByteArrayOutputStream response,
+                                   final int parts) throws IOException
+    {
+        final InputStream in = socket.getInputStream();
+        final byte[] buffer = new byte[8192];
+        while (count(response.toString("ISO-8859-1"), "X-Timestamp: ") < parts) {
+            final int read = in.read(buffer);
+            assertTrue("connection closed", read >= 0);
+            response.write(buffer, 0, read);
+        }
+    }
+
+    private static String[] receive(final Socket socket) throws IOException
+    {
+        return receive(socket, new ByteArrayOutputStream());
+    }
+
+    /**
+     * Reads the response, after what has been received of it already, up to
+     * the end of the connection. Returns its head and body.
+     */
+    private static String[] receive(final Socket socket, final ByteArrayOutputStream response)
+            throws IOException
+    {
+        try {
+            final InputStream in = socket.getInputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                response.write(buffer, 0, read);
+            }
+        }
+        finally {
+            socket.close();
+        }
+        final String text = response.toString("ISO-8859-1");
+        final int headEnd = text.indexOf("\r\n\r\n");
+        assertTrue(text, headEnd >= 0);
+        return new String[] {text.substring(0, headEnd), text.substring(headEnd + 4)};
+    }
+
+    /**
+     * FRAME_MILLIS, and any frames appended while recording, each waiting at
+     * the gates, if closed, to be found.
+     */
+    private static final class MemoryArchive implements FrameArchive
+    {
+        private final byte[] jpeg = new byte[FRAME_BYTES];
+        private volatile long[] frameMillis = FRAME_MILLIS;
+        volatile boolean recording = false;
+        volatile CountDownLatch seekGate = new CountDownLatch(0);
+        volatile CountDownLatch nextGate = new CountDownLatch(0);
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch moving = new CountDownLatch(1);
+        volatile boolean failSeek = false;
+        volatile boolean cursorClosed = false;
+
+        @Override
+        public FrameCursor seek(final long millis) throws IOException
+        {
+            reading.countDown();
+            await(seekGate);
+            if (failSeek) {
+                throw new IOException("seek failed");
+            }
+            final long[] frames = frameMillis;
+            for (int i = 0; i < frames.length; i++) {
+                if (frames[i] >= millis) {
+                    return new MemoryCursor(i);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean isRecording()
+        {
+            return recording;
+        }
+
+        synchronized void append(final long millis)
+        {
+            final long[] frames = Arrays.copyOf(frameMillis, frameMillis.length + 1);
+            frames[frameMillis.length] = millis;
+            frameMillis = frames;
+        }
+
+        private static void await(final CountDownLatch gate)
+        {
+            try {
+                gate.await();
+            }
+            catch (final InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private final class MemoryCursor implements FrameCursor
+        {
+            private int frame;
+
+            private MemoryCursor(final int frame)
+            {
+                this.frame = frame;
+            }
+
+            @Override
+            public long getMillis()
+            {
+                return frameMillis[frame];
+            }
+
+            @Override
+            public int getLength()
+            {
+                return FRAME_BYTES;
+            }
+
+            @Override
+            public long transferTo(final long offset, final long count,
+                                   final WritableByteChannel target) throws IOException
+            {
+                return target.write(ByteBuffer.wrap(jpeg, (int) offset,
+                        (int) Math.min(count, FRAME_BYTES - offset)));
+            }
+
+            @Override
+            public boolean next()
+            {
+                moving.countDown();
+                await(nextGate);
+                if (frame + 1 < frameMillis.length) {
+                    frame++;
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void close()
+            {
+                cursorClosed = true;
+            }
+        }
+    }
+}
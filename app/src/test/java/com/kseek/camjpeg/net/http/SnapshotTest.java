@@ -0,0 +1,173 @@
+package com.kseek.camjpeg.net.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Snapshot requests, answered at once or after waiting for a frame. */
+public class SnapshotTest
+{
+    private static final int FRAME_BYTES = 30000;
+    private static final long TIMEOUT_NANOS = 10L * 1000L * 1000L * 1000L;
+
+    private MJpegHttpStreamer streamer;
+
+    @Before
+    public void setUp() throws InterruptedException
+    {
+        start(new MJpegHttpStreamer(0 /* any free port */, FRAME_BYTES));
+    }
+
+    private void start(final MJpegHttpStreamer newStreamer) throws InterruptedException
+    {
+        streamer = newStreamer;
+        streamer.start();
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (streamer.getLocalPort() == 0) {
+            assertTrue("streamer did not start", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        streamer.stop();
+    }
+
+    @Test
+    public void getReturnsTheLatestFrame() throws Exception
+    {
+        publish(7L);
+        final String[] response = request("GET /snapshot.jpg HTTP/1.1\r\n");
+        assertTrue(response[0], response[0].startsWith("HTTP/1.1 200 "));
+        assertTrue(response[0], response[0].contains("ETag: \"7\""));
+        assertEquals(FRAME_BYTES, response[1].length());
+    }
+
+    @Test
+    public void waitingHeadGetsNoBody() throws Exception
+    {
+        // Nothing published yet, so the request waits for the first frame.
+        final Socket socket = send("HEAD /snapshot.jpg HTTP/1.1\r\n");
+        awaitWaiting();
+        publish(7L);
+        final String[] response = receive(socket);
+        assertTrue(response[0], response[0].startsWith("HTTP/1.1 200 "));
+        assertTrue(response[0], response[0].contains("Content-Length: " + FRAME_BYTES));
+        assertEquals("", response[1]);
+    }
+
+    @Test
+    public void waitingConditionalGetIsNotModifiedByARefresh() throws Exception
+    {
+        publish(7L);
+        final Socket socket = send("GET /snapshot.jpg?next HTTP/1.1\r\n"
+                + "If-None-Match: \"7\"\r\n");
+        awaitWaiting();
+        streamer.refreshFrame(streamer.getChannels().get(0));
+        final String[] response = receive(socket);
+        assertTrue(response[0], response[0].startsWith("HTTP/1.1 304 "));
+        assertEquals("", response[1]);
+    }
+
+    @Test
+    public void waitingConditionalGetGetsANewerFrame() throws Exception
+    {
+        publish(7L);
+        final Socket socket = send("GET /snapshot.jpg?next HTTP/1.1\r\n"
+                + "If-None-Match: \"7\"\r\n");
+        awaitWaiting();
+        publish(8L);
+        final String[] response = receive(socket);
+        assertTrue(response[0], response[0].startsWith("HTTP/1.1 200 "));
+        assertTrue(response[0], response[0].contains("ETag: \"8\""));
+        assertEquals(FRAME_BYTES, response[1].length());
+    }
+
+    @Test
+    public void waitWithoutAFrameGivesUp() throws Exception
+    {
+        streamer.stop();
+        final MJpegHttpStreamer impatient = new MJpegHttpStreamer(0, FRAME_BYTES);
+        impatient.snapshotTimeoutNanos = 100L * 1000L * 1000L;
+        start(impatient);
+
+        final Socket socket = send("GET /snapshot.jpg HTTP/1.1\r\n");
+        awaitWaiting();
+        final String[] response = receive(socket);
+        assertTrue(response[0], response[0].startsWith("HTTP/1.1 503 "));
+        assertTrue(response[0], response[0].contains("Retry-After: 1"));
+        // Nothing waits for a frame any more.
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (streamer.getChannels().get(0).demandIntervalNanos != FrameChannel.NO_DEMAND) {
+            assertTrue("demand was not withdrawn", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private void publish(final long timestamp) throws IOException
+    {
+        final JpegFrame frame = streamer.acquireFrame();
+        for (int i = 0; i < FRAME_BYTES; i++) {
+            frame.getOutputStream().write('x');
+        }
+        streamer.publishFrame(frame, FRAME_BYTES, timestamp);
+    }
+
+    /** Waits until the request has been parsed and parked. */
+    private void awaitWaiting() throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (streamer.getChannels().get(0).demandIntervalNanos != 0L) {
+            assertTrue("request did not wait", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private String[] request(final String head) throws IOException
+    {
+        return receive(send(head));
+    }
+
+    private Socket send(final String head) throws IOException
+    {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), streamer.getLocalPort());
+        socket.setSoTimeout((int) (TIMEOUT_NANOS / 1000000L));
+        final OutputStream out = socket.getOutputStream();
+        out.write((head + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+        return socket;
+    }
+
+    /** Reads the response up to the end of the connection, returns its head and body. */
+    private static String[] receive(final Socket socket) throws IOException
+    {
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try {
+            final InputStream in = socket.getInputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                response.write(buffer, 0, read);
+            }
+        }
+        finally {
+            socket.close();
+        }
+        final String text = response.toString("ISO-8859-1");
+        final int headEnd = text.indexOf("\r\n\r\n");
+        assertTrue(text, headEnd >= 0);
+        return new String[] {text.substring(0, headEnd), text.substring(headEnd + 4)};
+    }
+}
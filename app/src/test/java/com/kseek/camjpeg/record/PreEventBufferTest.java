@@ -0,0 +1,100 @@
+package com.kseek.camjpeg.record;
+
+import com.kseek.camjpeg.net.http.ChunkPool;
+import com.kseek.camjpeg.net.http.ChunkedOutputStream;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreEventBufferTest
+{
+    private static final int MEGABYTE = 1024 * 1024;
+
+    private final ChunkedOutputStream jpeg =
+            new ChunkedOutputStream(new ChunkPool(64 * 1024, 32, false));
+
+    @Test
+    public void drainsTheOldestFramesFirstAsRecords() throws IOException
+    {
+        final PreEventBuffer buffer = new PreEventBuffer(2, 10);
+        assertTrue(buffer.add(frame(100, 1), 1000L));
+        assertTrue(buffer.add(frame(200, 2), 1040L));
+        assertTrue(buffer.add(frame(300, 3), 1080L));
+        assertEquals(3, buffer.getFrames());
+        assertEquals(600, buffer.getBytes());
+        assertEquals(1000L, buffer.getOldestMillis());
+
+        // Room for the first two only.
+        final ByteBuffer out = ByteBuffer.allocate(2 * SegmentFormat.RECORD_HEADER_BYTES + 300);
+        assertEquals(2, buffer.drainTo(out));
+        out.flip();
+        assertRecord(out, 100, 1000L, 1);
+        assertRecord(out, 200, 1040L, 2);
+        assertFalse(out.hasRemaining());
+        assertEquals(1, buffer.getFrames());
+        assertEquals(1080L, buffer.getOldestMillis());
+    }
+
+    @Test
+    public void forgetsFramesOlderThanTheTimeLimit() throws IOException
+    {
+        final PreEventBuffer buffer = new PreEventBuffer(2, 1);
+        buffer.add(frame(100, 1), 0L);
+        buffer.add(frame(100, 2), 700L);
+        buffer.add(frame(100, 3), 1500L);
+        assertEquals(2, buffer.getFrames());
+        assertEquals(700L, buffer.getOldestMillis());
+    }
+
+    @Test
+    public void takingOverASlabForgetsItsFrames() throws IOException
+    {
+        final PreEventBuffer buffer = new PreEventBuffer(2, 10);
+        assertEquals(2L * MEGABYTE, buffer.getCapacity());
+        // Three fit into a slab, the seventh takes over the first slab.
+        for (int i = 1; i <= 7; i++) {
+            assertTrue(buffer.add(frame(300 * 1024, i), i));
+        }
+        assertEquals(4, buffer.getFrames());
+        assertEquals(4L, buffer.getOldestMillis());
+    }
+
+    @Test
+    public void keepsNoFrameLargerThanASlab() throws IOException
+    {
+        final PreEventBuffer buffer = new PreEventBuffer(2, 10);
+        assertFalse(buffer.add(frame(MEGABYTE + 1, 1), 0L));
+        assertEquals(0, buffer.getFrames());
+    }
+
+    @Test
+    public void holdsAtLeastTwoSlabs()
+    {
+        assertEquals(2L * MEGABYTE, new PreEventBuffer(0, 10).getCapacity());
+        assertEquals(3L * MEGABYTE, new PreEventBuffer(3, 10).getCapacity());
+    }
+
+    private ChunkedOutputStream frame(final int length, final int number) throws IOException
+    {
+        jpeg.reset();
+        final byte[] bytes = new byte[length];
+        bytes[0] = (byte) number;
+        jpeg.write(bytes, 0, length);
+        return jpeg;
+    }
+
+    private static void assertRecord(final ByteBuffer records, final int length,
+                                     final long millis, final int number)
+    {
+        assertEquals(length, records.getInt());
+        assertEquals(millis, records.getLong());
+        assertEquals(number, records.get());
+        records.position(records.position() + length - 1);
+    }
+}
@@ -0,0 +1,184 @@
+package com.kseek.camjpeg.record;
+
+import com.kseek.camjpeg.net.http.FrameCursor;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Seeks and walks segments written here in the recorder's format, each
+ * frame's JPEG being the low byte of its time.
+ */
+public class SegmentArchiveTest
+{
+    private static final int FRAME_BYTES = 16;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private FrameCursor cursor = null;
+
+    @After
+    public void tearDown()
+    {
+        if (cursor != null) {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void seeksTheFirstFrameAtOrAfterTheTime() throws IOException
+    {
+        final SegmentArchive archive = new SegmentArchive(threeSegments());
+        cursor = archive.seek(1150L);
+        assertFrames(1200L, 2000L, 2100L, 3000L);
+
+        cursor.close();
+        cursor = archive.seek(1100L);
+        assertFrames(1100L, 1200L, 2000L, 2100L, 3000L);
+    }
+
+    @Test
+    public void seekBeforeTheFirstSegmentStartsAtItsFirstFrame() throws IOException
+    {
+        cursor = new SegmentArchive(threeSegments()).seek(0L);
+        assertEquals(1000L, cursor.getMillis());
+    }
+
+    @Test
+    public void seekPastTheEndOfASegmentGoesOnToTheNext() throws IOException
+    {
+        cursor = new SegmentArchive(threeSegments()).seek(1250L);
+        assertFrames(2000L, 2100L, 3000L);
+    }
+
+    @Test
+    public void seekAfterTheLastFrameFindsNothing() throws IOException
+    {
+        assertNull(new SegmentArchive(threeSegments()).seek(3001L));
+    }
+
+    @Test
+    public void segmentWithoutAnIndexIsSkipped() throws IOException
+    {
+        final SegmentList segments = threeSegments();
+        assertTrue(SegmentFormat.indexFile(segments.file(2000L)).delete());
+        cursor = new SegmentArchive(segments).seek(1250L);
+        assertFrames(3000L);
+    }
+
+    @Test
+    public void onlySegmentsInTheListAreFound() throws IOException
+    {
+        final File directory = folder.getRoot();
+        writeSegment(directory, 1000L, 1000L);
+        final SegmentList segments = new SegmentList(directory);
+        writeSegment(directory, 2000L, 2000L);
+
+        cursor = new SegmentArchive(segments).seek(1000L);
+        assertFrames(1000L);
+        // The recorder adds the segments it opens.
+        segments.add(2000L);
+        assertTrue(cursor.next());
+        assertEquals(2000L, cursor.getMillis());
+    }
+
+    @Test
+    public void transfersTheJpeg() throws IOException
+    {
+        cursor = new SegmentArchive(threeSegments()).seek(2100L);
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        final WritableByteChannel target = new WritableByteChannel()
+        {
+            @Override
+            public int write(final ByteBuffer source)
+            {
+                // A small socket buffer, a byte at a time.
+                sent.write(source.get());
+                return 1;
+            }
+
+            @Override
+            public boolean isOpen()
+            {
+                return true;
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+        long offset = 0L;
+        while (offset < cursor.getLength()) {
+            offset += cursor.transferTo(offset, cursor.getLength() - offset, target);
+        }
+        assertEquals(FRAME_BYTES, sent.size());
+        assertEquals((byte) 2100L, sent.toByteArray()[0]);
+        assertEquals((byte) 2100L, sent.toByteArray()[FRAME_BYTES - 1]);
+    }
+
+    private SegmentList threeSegments() throws IOException
+    {
+        final File directory = folder.getRoot();
+        writeSegment(directory, 1000L, 1000L, 1100L, 1200L);
+        writeSegment(directory, 2000L, 2000L, 2100L);
+        writeSegment(directory, 3000L, 3000L);
+        return new SegmentList(directory);
+    }
+
+    private void assertFrames(final long... millis) throws IOException
+    {
+        for (int i = 0; i < millis.length; i++) {
+            if (i > 0) {
+                assertTrue(cursor.next());
+            }
+            assertEquals(millis[i], cursor.getMillis());
+            assertEquals(FRAME_BYTES, cursor.getLength());
+        }
+        assertFalse(cursor.next());
+    }
+
+    /** Writes a segment and its index, see {@link SegmentFormat}. */
+    static void writeSegment(final File directory, final long startMillis,
+                             final long... millis) throws IOException
+    {
+        final File file = new File(directory, SegmentFormat.fileName(startMillis));
+        final DataOutputStream data = new DataOutputStream(new FileOutputStream(file));
+        final DataOutputStream index = new DataOutputStream(
+                new FileOutputStream(SegmentFormat.indexFile(file)));
+        try {
+            data.writeInt(SegmentFormat.MAGIC);
+            data.writeInt(SegmentFormat.VERSION);
+            data.writeLong(startMillis);
+            for (final long frameMillis : millis) {
+                index.writeInt((int) (frameMillis - startMillis));
+                index.writeInt(data.size());
+                data.writeInt(FRAME_BYTES);
+                data.writeLong(frameMillis);
+                for (int i = 0; i < FRAME_BYTES; i++) {
+                    data.writeByte((int) frameMillis);
+                }
+            }
+        }
+        finally {
+            data.close();
+            index.close();
+        }
+    }
+}
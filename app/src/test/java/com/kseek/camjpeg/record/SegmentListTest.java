@@ -0,0 +1,86 @@
+package com.kseek.camjpeg.record;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class SegmentListTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void listsTheSegmentsInTheDirectoryOldestFirst() throws IOException
+    {
+        final File directory = folder.getRoot();
+        SegmentArchiveTest.writeSegment(directory, 3000L, 3000L);
+        SegmentArchiveTest.writeSegment(directory, 1000L, 1000L, 1100L);
+        new File(directory, "notes.txt").createNewFile();
+
+        final SegmentList segments = new SegmentList(directory);
+        assertEquals(2, segments.size());
+        assertEquals(1000L, segments.getStart(0));
+        assertEquals(3000L, segments.getStart(1));
+        final File first = segments.file(1000L);
+        assertEquals(first.length() + SegmentFormat.indexFile(first).length(),
+                segments.getBytes(0));
+    }
+
+    @Test
+    public void missingDirectoryHasNoSegments()
+    {
+        final SegmentList segments = new SegmentList(new File(folder.getRoot(), "missing"));
+        assertEquals(0, segments.size());
+        assertEquals(-1L, segments.floor(1000L));
+        assertEquals(-1L, segments.higher(1000L));
+    }
+
+    @Test
+    public void findsSegmentsByTime()
+    {
+        final SegmentList segments = new SegmentList(folder.getRoot());
+        segments.add(1000L);
+        segments.add(2000L);
+        segments.add(3000L);
+
+        assertEquals(1000L, segments.floor(0L));
+        assertEquals(1000L, segments.floor(1000L));
+        assertEquals(1000L, segments.floor(1999L));
+        assertEquals(2000L, segments.floor(2000L));
+        assertEquals(3000L, segments.floor(Long.MAX_VALUE));
+
+        assertEquals(1000L, segments.higher(0L));
+        assertEquals(2000L, segments.higher(1000L));
+        assertEquals(3000L, segments.higher(2999L));
+        assertEquals(-1L, segments.higher(3000L));
+    }
+
+    @Test
+    public void keepsOrderAsSegmentsComeAndGo()
+    {
+        final SegmentList segments = new SegmentList(folder.getRoot());
+        // More than the initial capacity, out of order.
+        for (long start = 200L; start > 0L; start--) {
+            segments.add(start * 10L);
+        }
+        segments.add(1000L);
+        assertEquals(200, segments.size());
+        for (int i = 0; i < segments.size(); i++) {
+            assertEquals((i + 1) * 10L, segments.getStart(i));
+        }
+
+        segments.setBytes(20L, 123L);
+        segments.remove(10L);
+        segments.remove(15L);
+        segments.remove(2000L);
+        assertEquals(198, segments.size());
+        assertEquals(20L, segments.getStart(0));
+        assertEquals(123L, segments.getBytes(0));
+        assertEquals(1990L, segments.getStart(segments.size() - 1));
+    }
+}
@@ -0,0 +1,270 @@
+package com.kseek.camjpeg.record;
+
+import com.kseek.camjpeg.metrics.StreamMetrics;
+import com.kseek.camjpeg.net.http.FrameCursor;
+import com.kseek.camjpeg.net.http.JpegFrame;
+import com.kseek.camjpeg.net.http.MJpegHttpStreamer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Records frames published to a streamer and reads the segments back
+ * through their indexes. Each frame carries its number in its first bytes
+ * and is published with the current time, as the camera does.
+ */
+public class SegmentedRecorderTest
+{
+    private static final int FRAME_BYTES = 1000;
+    private static final long NANOS_PER_MILLI = 1000L * 1000L;
+    private static final long TIMEOUT_NANOS = 10L * 1000L * NANOS_PER_MILLI;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final StreamMetrics metrics = new StreamMetrics();
+    private final byte[] jpeg = new byte[FRAME_BYTES];
+    private MJpegHttpStreamer streamer;
+    private SegmentedRecorder recorder = null;
+    private int published = 0;
+    private final List<Long> timestamps = new ArrayList<Long>();
+
+    @Before
+    public void setUp() throws InterruptedException
+    {
+        streamer = new MJpegHttpStreamer(0 /* any free port */, FRAME_BYTES);
+        streamer.start();
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (streamer.getLocalPort() == 0) {
+            assertTrue("streamer did not start", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (recorder != null) {
+            recorder.stop();
+        }
+        streamer.stop();
+    }
+
+    @Test
+    public void recordsEveryFrameInOrder() throws Exception
+    {
+        start(new SegmentedRecorder(folder.getRoot(), 60L, 1L << 30, 3600L, metrics));
+        for (int i = 0; i < 50; i++) {
+            publish();
+            Thread.sleep(2);
+        }
+        awaitRecorded(50);
+
+        final List<long[]> records = readRecords(folder.getRoot());
+        assertEquals(50, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(i + 1, records.get(i)[1]);
+            // Under the time it was published with, which viewers saw live.
+            assertEquals(timestamps.get(i).longValue(), records.get(i)[0]);
+        }
+    }
+
+    @Test
+    public void segmentsAreNamedAfterTheirFirstFrame() throws Exception
+    {
+        start(new SegmentedRecorder(folder.getRoot(), 60L, 1L << 30, 3600L, metrics));
+        publish();
+        // The writer only gets to the frame a while after it was staged.
+        Thread.sleep(100);
+        publish();
+        awaitRecorded(2);
+
+        final File[] segments = SegmentFormat.list(folder.getRoot());
+        assertEquals(1, segments.length);
+        final List<long[]> records = readRecords(folder.getRoot());
+        assertEquals(SegmentFormat.startMillis(segments[0]), records.get(0)[0]);
+    }
+
+    @Test
+    public void retentionDeletesSegmentsFromTheList() throws Exception
+    {
+        final File directory = folder.getRoot();
+        final long dayAgo = System.currentTimeMillis() - 24L * 60L * 60L * 1000L;
+        SegmentArchiveTest.writeSegment(directory, dayAgo, dayAgo);
+        SegmentArchiveTest.writeSegment(directory, dayAgo + 1000L, dayAgo + 1000L);
+        // The last one ends when it was last written to.
+        assertTrue(new File(directory, SegmentFormat.fileName(dayAgo + 1000L))
+                .setLastModified(dayAgo + 2000L));
+        start(new SegmentedRecorder(directory, 60L, 1L << 30, 3600L, metrics));
+        assertEquals(2, recorder.getSegments().size());
+
+        publish();
+        awaitRecorded(1);
+        final SegmentList segments = recorder.getSegments();
+        assertEquals(1, segments.size());
+        assertEquals(1, SegmentFormat.list(directory).length);
+        final FrameCursor cursor = new SegmentArchive(segments).seek(0L);
+        try {
+            assertEquals(segments.getStart(0), cursor.getMillis());
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void replayFollowsTheRecording() throws Exception
+    {
+        start(new SegmentedRecorder(folder.getRoot(), 60L, 1L << 30, 3600L, metrics));
+        final SegmentArchive archive = new SegmentArchive(recorder.getSegments());
+        assertTrue(archive.isRecording());
+        publish();
+        awaitRecorded(1);
+        final FrameCursor cursor = archive.seek(0L);
+        try {
+            assertFalse(cursor.next());
+            publish();
+            awaitRecorded(2);
+            assertTrue(cursor.next());
+        }
+        finally {
+            cursor.close();
+        }
+
+        recorder.stop();
+        recorder = null;
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (archive.isRecording()) {
+            assertTrue("writer did not stop", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void eventsAreRecordedInTimeOrder() throws Exception
+    {
+        start(new SegmentedRecorder(folder.getRoot(), 60L, 1L << 30, 3600L,
+                new PreEventBuffer(2, 10), 1L, metrics));
+        // The first event, extended to end at 1.5 s, leaves its frames from
+        // the writer's timed flush at 1 s on staged when the next event, at
+        // 1.6 s, has pre-event frames to flush.
+        final long start = System.nanoTime();
+        recorder.trigger();
+        publishUntil(start + 500L * NANOS_PER_MILLI);
+        recorder.trigger();
+        publishUntil(start + 1600L * NANOS_PER_MILLI);
+        recorder.trigger();
+        publishUntil(start + 1800L * NANOS_PER_MILLI);
+        awaitRecorded(published);
+
+        final List<long[]> records = readRecords(folder.getRoot());
+        assertEquals(published, records.size());
+        for (int i = 1; i < records.size(); i++) {
+            assertTrue("frame " + records.get(i)[1] + " recorded after " + records.get(i - 1)[1],
+                    records.get(i)[1] > records.get(i - 1)[1]);
+            assertTrue(records.get(i)[0] >= records.get(i - 1)[0]);
+        }
+        assertEquals(2L, metrics.getRecordingEvents().get());
+    }
+
+    private void start(final SegmentedRecorder newRecorder)
+    {
+        recorder = newRecorder;
+        recorder.start();
+        streamer.addFrameListener(streamer.getChannels().get(0), recorder);
+    }
+
+    private void publish() throws IOException
+    {
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        JpegFrame frame;
+        while ((frame = streamer.acquireFrame()) == null) {
+            assertTrue("no free frame slot", System.nanoTime() < deadline);
+            Thread.yield();
+        }
+        published++;
+        jpeg[0] = (byte) (published >> 8);
+        jpeg[1] = (byte) published;
+        frame.getOutputStream().write(jpeg, 0, FRAME_BYTES);
+        final long timestamp = System.currentTimeMillis();
+        timestamps.add(timestamp);
+        streamer.publishFrame(frame, FRAME_BYTES, timestamp);
+    }
+
+    private void publishUntil(final long deadlineNanos) throws Exception
+    {
+        while (System.nanoTime() < deadlineNanos) {
+            publish();
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitRecorded(final long frames) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (metrics.getFramesRecorded().get() < frames) {
+            if (System.nanoTime() > deadline) {
+                fail(metrics.getFramesRecorded().get() + " of " + frames + " frames recorded");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Every indexed record, oldest segment first, as {millis, frame number},
+     * checking that each agrees with its index entry and is no older than
+     * its segment's start.
+     */
+    static List<long[]> readRecords(final File directory) throws IOException
+    {
+        final List<long[]> records = new ArrayList<long[]>();
+        final File[] segments = directory.listFiles();
+        Arrays.sort(segments);
+        for (final File segment : segments) {
+            final long startMillis = SegmentFormat.startMillis(segment);
+            if (startMillis < 0L) {
+                continue;
+            }
+            final RandomAccessFile data = new RandomAccessFile(segment, "r");
+            final RandomAccessFile index =
+                    new RandomAccessFile(SegmentFormat.indexFile(segment), "r");
+            try {
+                assertEquals(SegmentFormat.MAGIC, data.readInt());
+                assertEquals(SegmentFormat.VERSION, data.readInt());
+                assertEquals(startMillis, data.readLong());
+                final long entries = index.length() / SegmentFormat.INDEX_ENTRY_BYTES;
+                for (long i = 0L; i < entries; i++) {
+                    final int sinceStart = index.readInt();
+                    final int position = index.readInt();
+                    assertTrue(segment + " has a frame older than its start", sinceStart >= 0);
+                    data.seek(position);
+                    assertEquals(FRAME_BYTES, data.readInt());
+                    final long millis = data.readLong();
+                    assertEquals(startMillis + sinceStart, millis);
+                    final int number = (data.readUnsignedByte() << 8) | data.readUnsignedByte();
+                    records.add(new long[] {millis, number});
+                }
+            }
+            finally {
+                data.close();
+                index.close();
+            }
+        }
+        return records;
+    }
+}
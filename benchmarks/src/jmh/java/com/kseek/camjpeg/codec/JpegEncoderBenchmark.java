@@ -0,0 +1,78 @@
+package com.kseek.camjpeg.codec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The pure Java encoder on a synthetic NV21 frame with smooth gradients and
+ * some texture, at common preview sizes. Output goes nowhere so only the
+ * encoder itself is measured.
+ */
+@State(Scope.Thread)
+public class JpegEncoderBenchmark
+{
+    @Param({"320x240", "640x480", "1280x720"})
+    public String size;
+
+    @Param({"50", "80"})
+    public int quality;
+
+    private final JpegEncoder encoder = new JpegEncoder();
+    private final CountingOutputStream out = new CountingOutputStream();
+    private byte[] nv21;
+    private int width;
+    private int height;
+
+    @Setup
+    public void setUp()
+    {
+        final int x = size.indexOf('x');
+        width = Integer.parseInt(size.substring(0, x));
+        height = Integer.parseInt(size.substring(x + 1));
+
+        nv21 = new byte[width * height * 3 / 2];
+        for (int row = 0; row < height; row++) {
+            for (int column = 0; column < width; column++) {
+                nv21[row * width + column] = (byte) (128
+                        + 90 * Math.sin(column / 17.0) * Math.cos(row / 23.0)
+                        + ((column * 31 + row * 17) & 15));
+            }
+        }
+        final int chroma = width * height;
+        for (int i = 0; i < width * height / 2; i += 2) {
+            nv21[chroma + i] = (byte) (128 + 40 * Math.sin(i / 511.0));
+            nv21[chroma + i + 1] = (byte) (128 - 30 * Math.cos(i / 257.0));
+        }
+    }
+
+    @Benchmark
+    public long encode() throws IOException
+    {
+        out.count = 0L;
+        encoder.encode(nv21, width, height, 0, 0, width, height, quality, out);
+        return out.count;
+    }
+
+    private static final class CountingOutputStream extends OutputStream
+    {
+        private long count = 0L;
+
+        @Override
+        public void write(final int b)
+        {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+        {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.kseek.camjpeg.codec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/** Downscaling a 1280x720 NV21 preview for the simulcast renditions. */
+@State(Scope.Thread)
+public class Nv21ScalerBenchmark
+{
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+
+    @Param({"2", "4"})
+    public int factor;
+
+    private byte[] nv21;
+    private byte[] scaled;
+
+    @Setup
+    public void setUp()
+    {
+        nv21 = new byte[Nv21Scaler.frameBytes(WIDTH, HEIGHT)];
+        new Random(42L).nextBytes(nv21);
+        scaled = new byte[Nv21Scaler.frameBytes(Nv21Scaler.scaledSize(WIDTH, factor),
+                Nv21Scaler.scaledSize(HEIGHT, factor))];
+    }
+
+    @Benchmark
+    public byte[] scale()
+    {
+        Nv21Scaler.scale(nv21, WIDTH, HEIGHT, 0, 0, WIDTH, HEIGHT, factor, scaled);
+        return scaled;
+    }
+}
@@ -0,0 +1,29 @@
+package com.kseek.camjpeg.metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** Per-frame cost of the frame rate bookkeeping in CameraStreamer. */
+@State(Scope.Thread)
+public class FrameRateMeterBenchmark
+{
+    private final FrameRateMeter meter = new FrameRateMeter(5000000000L); /* 5 s */
+    private long frameNanos = 0L;
+
+    @Benchmark
+    public void record()
+    {
+        // About 30 fps with some jitter.
+        frameNanos += 33000000L + (frameNanos & 1048575L);
+        meter.record(frameNanos);
+    }
+
+    @Benchmark
+    public double recordAndRead()
+    {
+        frameNanos += 33000000L + (frameNanos & 1048575L);
+        meter.record(frameNanos);
+        return meter.getFramesPerSecond();
+    }
+}
@@ -0,0 +1,57 @@
+package com.kseek.camjpeg.net.http;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * Cost of filling a ChunkedOutputStream with one JPEG worth of data in the
+ * chunk sizes the platform encoder hands out, then returning its chunks to
+ * the pool.
+ */
+@State(Scope.Thread)
+public class ChunkedOutputStreamBenchmark
+{
+    /** Roughly a 640x480 JPEG at quality 80. */
+    private static final int FRAME_BYTES = 48 * 1024;
+
+    @Param({"1", "4096"})
+    public int chunkSize;
+
+    @Param({"false", "true"})
+    public boolean direct;
+
+    private ChunkedOutputStream stream;
+    private byte[] chunk;
+    private int chunks;
+
+    @Setup
+    public void setUp()
+    {
+        final ChunkPool pool = new ChunkPool(ChunkPool.DEFAULT_CHUNK_BYTES, 4, direct);
+        stream = new ChunkedOutputStream(pool);
+        chunk = new byte[chunkSize];
+        chunks = FRAME_BYTES / chunkSize;
+    }
+
+    @Benchmark
+    public int writeFrame() throws IOException
+    {
+        stream.reset();
+        if (chunkSize == 1) {
+            for (int i = 0; i < chunks; i++) {
+                stream.write(i);
+            }
+        }
+        else {
+            for (int i = 0; i < chunks; i++) {
+                stream.write(chunk, 0, chunkSize);
+            }
+        }
+        return stream.getLength();
+    }
+}
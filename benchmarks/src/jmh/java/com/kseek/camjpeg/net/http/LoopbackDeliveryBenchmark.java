@@ -0,0 +1,153 @@
+package com.kseek.camjpeg.net.http;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes one frame per operation and waits until every loopback viewer
+ * has read it completely. The score is frames fanned out per second; the
+ * aggregate delivery rate is that times the number of clients.
+ */
+@State(Scope.Benchmark)
+public class LoopbackDeliveryBenchmark
+{
+    private static final int FRAME_BYTES = 48 * 1024;
+
+    @Param({"1", "10", "50"})
+    public int clients;
+
+    private MJpegHttpStreamer streamer;
+    private Viewer[] viewers;
+    private final byte[] jpeg = new byte[FRAME_BYTES];
+    private long published = 0L;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException
+    {
+        streamer = new MJpegHttpStreamer(0 /* any free port */, FRAME_BYTES,
+                clients + MJpegHttpStreamer.DEFAULT_FRAME_SLOTS);
+        streamer.start();
+        while (streamer.getLocalPort() == 0) {
+            Thread.sleep(1);
+        }
+
+        viewers = new Viewer[clients];
+        for (int i = 0; i < clients; i++) {
+            viewers[i] = new Viewer(streamer.getLocalPort());
+        }
+        while (streamer.getClientStats().size() < clients) {
+            Thread.sleep(1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        for (final Viewer viewer : viewers) {
+            viewer.close();
+        }
+        streamer.stop();
+    }
+
+    @Benchmark
+    public long fanOut() throws IOException
+    {
+        JpegFrame frame;
+        while ((frame = streamer.acquireFrame()) == null) {
+            Thread.yield();
+        }
+        frame.getOutputStream().write(jpeg, 0, FRAME_BYTES);
+        streamer.publishFrame(frame, FRAME_BYTES, ++published);
+
+        for (final Viewer viewer : viewers) {
+            while (viewer.parts.get() < published) {
+                Thread.yield();
+            }
+        }
+        return published;
+    }
+
+    /** A blocking MJPEG reader that counts complete parts. */
+    private static final class Viewer implements Runnable
+    {
+        private final Socket socket;
+        private final AtomicLong parts = new AtomicLong();
+
+        private Viewer(final int port) throws IOException
+        {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setTcpNoDelay(true);
+            final OutputStream out = socket.getOutputStream();
+            out.write("GET /stream.mjpg HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+            out.flush();
+
+            final Thread thread = new Thread(this, "viewer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                final DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                final byte[] payload = new byte[FRAME_BYTES];
+                int length = -1;
+                while (true) {
+                    final String line = readLine(in);
+                    if (line.startsWith("Content-Length: ")) {
+                        length = Integer.parseInt(line.substring(16));
+                    }
+                    else if (line.isEmpty() && length >= 0) {
+                        in.readFully(payload, 0, length);
+                        length = -1;
+                        parts.incrementAndGet();
+                    }
+                }
+            }
+            catch (final IOException closed) {
+                // Benchmark is over.
+            }
+        }
+
+        private static String readLine(final InputStream in) throws IOException
+        {
+            final StringBuilder line = new StringBuilder(64);
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    throw new IOException("end of stream");
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        private void close()
+        {
+            try {
+                socket.close();
+            }
+            catch (final IOException closing) {
+                System.err.println(closing);
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.kseek.camjpeg.net.http;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/** Encoding the boundary and headers in front of every MJPEG part. */
+@State(Scope.Thread)
+public class PartHeaderBenchmark
+{
+    private final MJpegPartHeader header = new MJpegPartHeader();
+    private long timestamp = 1234567890L;
+
+    @Benchmark
+    public ByteBuffer encode()
+    {
+        timestamp += 33;
+        return header.encode(48 * 1024 + (int) (timestamp & 1023), timestamp,
+                timestamp & 0xffff);
+    }
+}
@@ -0,0 +1,55 @@
+package com.kseek.camjpeg.net.http;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+
+/**
+ * Frame publication with nobody watching: the encoder side cost of
+ * {@link MJpegHttpStreamer#streamJpeg} (one copy into the ring) against
+ * encoding straight into a slot with acquireFrame/publishFrame.
+ */
+@State(Scope.Thread)
+public class PublishBenchmark
+{
+    private static final int FRAME_BYTES = 48 * 1024;
+
+    private MJpegHttpStreamer streamer;
+    private final byte[] jpeg = new byte[FRAME_BYTES];
+    private long timestamp = 0L;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        streamer = new MJpegHttpStreamer(0 /* any free port */, FRAME_BYTES);
+        streamer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        streamer.stop();
+    }
+
+    @Benchmark
+    public void streamJpeg()
+    {
+        streamer.streamJpeg(jpeg, FRAME_BYTES, timestamp++);
+    }
+
+    @Benchmark
+    public void acquireAndPublish() throws IOException
+    {
+        final JpegFrame frame = streamer.acquireFrame();
+        if (frame != null) {
+            // Stands in for the encoder, which writes into the slot anyway.
+            frame.getOutputStream().write((int) timestamp);
+            streamer.publishFrame(frame, 1, timestamp++);
+        }
+    }
+}